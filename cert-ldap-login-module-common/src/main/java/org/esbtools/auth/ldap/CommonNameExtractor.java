@@ -0,0 +1,282 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Extracts role names from group DNs: the value(s) of the first RDN with a cn. Group DNs are
+ * scanned in place, copying only the cn value, instead of parsing them into a {@link DN};
+ * users with hundreds of groups make the full parse a noticeable cost on every lookup.
+ *
+ * The scan handles the common forms, including backslash escapes of special characters and
+ * hex escaped UTF-8. Anything else (multi-valued RDNs, quoted or #-encoded values, OIDs as
+ * attribute names, malformed DNs) is left to {@link DN}, so results and errors are always the
+ * same as with {@link #addCommonNameFromDN(DN, Collection)}.
+ */
+final class CommonNameExtractor {
+
+    private CommonNameExtractor() {
+    }
+
+    /**
+     * Adds the values of the first RDN of groupDN with a cn to roles. Nothing is added if there
+     * is none.
+     *
+     * @throws LDAPException if groupDN is not a valid DN
+     */
+    static void addCommonName(String groupDN, Collection<String> roles) throws LDAPException {
+        if (!tryAddCommonName(groupDN, roles)) {
+            addCommonNameFromDN(new DN(groupDN), roles);
+        }
+    }
+
+    /**
+     * Reference implementation, with the full parse.
+     */
+    static void addCommonNameFromDN(DN groupDN, Collection<String> roles) {
+        for (RDN rdn : groupDN.getRDNs()) {
+            if (rdn.hasAttribute("cn")) {
+                roles.addAll(Arrays.asList(rdn.getAttributeValues()));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Scans groupDN without parsing it into a {@link DN}.
+     *
+     * @return false, with nothing added, if groupDN needs the full parse
+     */
+    static boolean tryAddCommonName(String groupDN, Collection<String> roles) {
+        int length = groupDN.length();
+        int i = 0;
+        String commonName = null;
+
+        while (i < length) {
+            i = skipSpaces(groupDN, i);
+
+            // attribute name: keystring only, OIDs are left to DN
+            int nameStart = i;
+            if (i >= length || !isAlpha(groupDN.charAt(i))) {
+                return false;
+            }
+            while (i < length && (isAlpha(groupDN.charAt(i)) || isDigit(groupDN.charAt(i)) || groupDN.charAt(i) == '-')) {
+                i++;
+            }
+            int nameEnd = i;
+
+            i = skipSpaces(groupDN, i);
+            if (i >= length || groupDN.charAt(i) != '=') {
+                return false;
+            }
+            i = skipSpaces(groupDN, i + 1);
+
+            if (i < length && (groupDN.charAt(i) == '"' || groupDN.charAt(i) == '#')) {
+                return false;
+            }
+
+            boolean isCn = nameEnd - nameStart == 2 && groupDN.regionMatches(true, nameStart, "cn", 0, 2);
+
+            // value, up to the next unescaped separator
+            int valueStart = i;
+            int valueEnd = i; // after the last character which is not an unescaped trailing space
+            boolean escaped = false;
+            int spaces = 0; // unescaped spaces right before i
+
+            while (i < length) {
+                char c = groupDN.charAt(i);
+
+                if (c == ',' || c == ';' || c == '+') {
+                    break;
+                }
+
+                if (c == ' ') {
+                    spaces++;
+                    i++;
+                    continue;
+                } else if (spaces > 1) {
+                    // DN collapses inner runs of spaces
+                    return false;
+                }
+                spaces = 0;
+
+                if (c == '\\') {
+                    if (i + 1 >= length) {
+                        return false;
+                    }
+                    char next = groupDN.charAt(i + 1);
+                    if (isHexDigit(next)) {
+                        if (i + 2 >= length || !isHexDigit(groupDN.charAt(i + 2))) {
+                            return false;
+                        }
+                        if (next == '2' && groupDN.charAt(i + 2) == '0') {
+                            // DN trims hex escaped spaces like unescaped ones in places
+                            return false;
+                        }
+                        i += 3;
+                    } else if (isEscapable(next)) {
+                        i += 2;
+                    } else {
+                        return false;
+                    }
+                    escaped = true;
+                    valueEnd = i;
+                } else if (c == '"' || c == '<' || c == '>' || c == '=') {
+                    return false;
+                } else {
+                    i++;
+                    valueEnd = i;
+                }
+            }
+
+            if (i < length && groupDN.charAt(i) == '+') {
+                // multi-valued RDN
+                return false;
+            }
+
+            if (isCn && commonName == null) {
+                commonName = escaped
+                        ? unescape(groupDN, valueStart, valueEnd)
+                        : groupDN.substring(valueStart, valueEnd);
+                if (commonName == null) {
+                    return false;
+                }
+            }
+
+            if (i < length) {
+                // skip the separator, there must be another RDN after it
+                i++;
+                if (skipSpaces(groupDN, i) >= length) {
+                    return false;
+                }
+            }
+        }
+
+        // the rest of the DN is scanned too, so malformed DNs are always rejected by DN
+        if (commonName != null) {
+            roles.add(commonName);
+        }
+        return true;
+    }
+
+    /**
+     * @return the unescaped value, or null if hex escapes are not valid UTF-8
+     */
+    private static String unescape(String dn, int start, int end) {
+        StringBuilder value = new StringBuilder(end - start);
+        byte[] bytes = null;
+        int byteCount = 0;
+
+        int i = start;
+        while (i < end) {
+            char c = dn.charAt(i);
+
+            if (c == '\\' && isHexDigit(dn.charAt(i + 1))) {
+                if (bytes == null) {
+                    bytes = new byte[(end - i) / 3];
+                }
+                bytes[byteCount++] = (byte) ((Character.digit(dn.charAt(i + 1), 16) << 4) + Character.digit(dn.charAt(i + 2), 16));
+                i += 3;
+                continue;
+            }
+
+            if (byteCount > 0) {
+                if (!appendUTF8(value, bytes, byteCount)) {
+                    return null;
+                }
+                byteCount = 0;
+            }
+
+            if (c == '\\') {
+                value.append(dn.charAt(i + 1));
+                i += 2;
+            } else {
+                value.append(c);
+                i++;
+            }
+        }
+
+        if (byteCount > 0 && !appendUTF8(value, bytes, byteCount)) {
+            return null;
+        }
+
+        return value.toString();
+    }
+
+    private static boolean appendUTF8(StringBuilder value, byte[] bytes, int count) {
+        // bytes are ASCII in most DNs
+        boolean ascii = true;
+        for (int i = 0; i < count; i++) {
+            if (bytes[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+
+        if (ascii) {
+            for (int i = 0; i < count; i++) {
+                value.append((char) bytes[i]);
+            }
+            return true;
+        }
+
+        String decoded = new String(bytes, 0, count, StandardCharsets.UTF_8);
+        if (decoded.indexOf('\uFFFD') >= 0) {
+            // not valid UTF-8, leave it to DN
+            return false;
+        }
+        value.append(decoded);
+        return true;
+    }
+
+    private static int skipSpaces(String dn, int i) {
+        while (i < dn.length() && dn.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static boolean isEscapable(char c) {
+        switch (c) {
+            case ',': case '+': case '"': case '\\': case '<': case '>': case ';': case '=': case '#': case ' ':
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
+import org.esbtools.auth.util.RolesCache;
+import org.esbtools.auth.util.SharedCacheRolesProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link RolesCache} in line with the directory by subscribing to changes of user
+ * entries under the search base with a persistent search (draft-ietf-ldapext-psearch). Only the
+ * users whose entries changed are touched: their cached roles are expired (but kept as fallback
+ * roles), or, with updateInPlace, replaced with roles read from the changed entry if they were
+ * cached. Deleted users, and the previous uid of renamed users, are always invalidated, fallback
+ * roles included. This makes it safe to run with long cache expiry and still see revoked
+ * memberships within moments.
+ *
+ * The subscription uses a dedicated connection. If it is lost, it is re-established every
+ * retryIntervalMS; since changes in between are unknown, the cached roles (but not the
+ * fallback roles) are then expired as a whole. If the directory does not support persistent
+ * search, the listener logs an error and gives up, leaving expiry to the cache.
+ *
+ * See {@link DirectoryChangePoller} for directories without persistent search.
+ *
+ */
+public class DirectoryChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryChangeListener.class);
+
+    private final LdapRolesProvider ldapRolesProvider;
+    private final RolesCacheUpdater rolesCacheUpdater;
+    private final long retryIntervalMS;
+
+    /**
+     * Single thread subscribing and processing change notifications, so that notifications are
+     * applied in order and never on the connection's reader thread.
+     */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ldap-changes-%d").build());
+
+    private volatile LDAPConnection connection;
+    private volatile boolean subscribed = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Subscribes in the background; see {@link #isSubscribed()}.
+     *
+     * @param updateInPlace whether cached roles of changed users are replaced instead of
+     * expired
+     * @param retryIntervalMS delay before re-subscribing after the subscription was lost
+     */
+    public DirectoryChangeListener(LdapRolesProvider ldapRolesProvider, RolesCache rolesCache, boolean updateInPlace,
+            long retryIntervalMS) {
+        this(ldapRolesProvider, rolesCache, null, updateInPlace, retryIntervalMS);
+    }
+
+    /**
+     * Like {@link #DirectoryChangeListener(LdapRolesProvider, RolesCache, boolean, long)}, also invalidating
+     * the roles of changed users in the second level cache of the nodes.
+     *
+     * @param sharedCache the second level cache of the nodes, null if none
+     */
+    public DirectoryChangeListener(LdapRolesProvider ldapRolesProvider, RolesCache rolesCache,
+            SharedCacheRolesProvider sharedCache, boolean updateInPlace, long retryIntervalMS) {
+        this.ldapRolesProvider = Objects.requireNonNull(ldapRolesProvider);
+        this.rolesCacheUpdater = new RolesCacheUpdater(ldapRolesProvider, rolesCache, sharedCache, updateInPlace);
+        this.retryIntervalMS = retryIntervalMS;
+
+        LOGGER.info("DirectoryChangeListener initialized with updateInPlace={}, retryIntervalMS={}", updateInPlace, retryIntervalMS);
+
+        executor.execute(this::subscribe);
+    }
+
+    /**
+     * @return true while changes are being received
+     */
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+
+        LDAPConnection c = connection;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    private void subscribe() {
+        if (closed) {
+            return;
+        }
+
+        LDAPConnection c = null;
+
+        try {
+            c = ldapRolesProvider.openConnection();
+
+            String userAttribute = ldapRolesProvider.getUserAttribute();
+            SearchRequest searchRequest = new SearchRequest(new ChangeNotifications(), ldapRolesProvider.getSearchBase(),
+                    ldapRolesProvider.getSearchScope(), Filter.createPresenceFilter(userAttribute), userAttribute,
+                    ldapRolesProvider.getMembershipAttribute());
+            // critical, so a directory without support rejects it instead of running a plain search
+            searchRequest.addControl(new PersistentSearchRequestControl(
+                    PersistentSearchChangeType.allChangeTypes(), true, true, true));
+            // never completes, the connection's response timeout would drop it every few seconds
+            searchRequest.setResponseTimeoutMillis(0L);
+            connection = c;
+            // set before sending, the result may arrive right after
+            subscribed = true;
+            c.asyncSearch(searchRequest);
+
+            // changes made while not subscribed are unknown
+            rolesCacheUpdater.expireAll();
+
+            LOGGER.info("Subscribed to changes under {}", ldapRolesProvider.getSearchBase());
+        } catch (LDAPException e) {
+            subscribed = false;
+            if (c != null) {
+                c.close();
+            }
+
+            if (e.getResultCode() == ResultCode.UNAVAILABLE_CRITICAL_EXTENSION) {
+                LOGGER.error("Directory does not support persistent search, not listening for changes.", e);
+                return;
+            }
+
+            LOGGER.warn("Failed to subscribe to directory changes, will retry in {}ms.", retryIntervalMS, e);
+            scheduleSubscribe();
+        }
+    }
+
+    private void scheduleSubscribe() {
+        try {
+            executor.schedule(this::subscribe, retryIntervalMS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Not subscribing to directory changes, listener was closed.");
+        }
+    }
+
+    private void onChange(SearchResultEntry entry) {
+        EntryChangeNotificationControl entryChange = null;
+
+        try {
+            entryChange = EntryChangeNotificationControl.get(entry);
+        } catch (LDAPException e) {
+            LOGGER.debug("Unreadable entry change notification for {}", entry.getDN(), e);
+        }
+
+        boolean deleted = entryChange != null && entryChange.getChangeType() == PersistentSearchChangeType.DELETE;
+
+        // a renamed user may have had another uid
+        if (entryChange != null && entryChange.getPreviousDN() != null) {
+            try {
+                RDN previousRDN = new DN(entryChange.getPreviousDN()).getRDN();
+                if (previousRDN != null && previousRDN.hasAttribute(ldapRolesProvider.getUserAttribute())) {
+                    for (String uid : previousRDN.getAttributeValues()) {
+                        rolesCacheUpdater.invalidate(uid);
+                    }
+                }
+            } catch (LDAPException e) {
+                LOGGER.warn("Unreadable previous DN {} of {}", entryChange.getPreviousDN(), entry.getDN(), e);
+            }
+        }
+
+        rolesCacheUpdater.entryChanged(entry, deleted);
+    }
+
+    /**
+     * Receives the notifications of the persistent search, on the connection's reader thread.
+     */
+    private class ChangeNotifications implements AsyncSearchResultListener {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void searchEntryReturned(SearchResultEntry searchEntry) {
+            try {
+                executor.execute(() -> onChange(searchEntry));
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Ignoring change of {}, listener was closed.", searchEntry.getDN());
+            }
+        }
+
+        @Override
+        public void searchReferenceReturned(SearchResultReference searchReference) {
+            // references are not followed
+        }
+
+        @Override
+        public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+            subscribed = false;
+
+            LDAPConnection c = connection;
+            if (c != null) {
+                c.close();
+            }
+
+            if (closed) {
+                return;
+            }
+
+            if (searchResult.getResultCode() == ResultCode.UNAVAILABLE_CRITICAL_EXTENSION) {
+                LOGGER.error("Directory does not support persistent search, not listening for changes: {}", searchResult);
+                return;
+            }
+
+            LOGGER.warn("Lost subscription to directory changes, will retry in {}ms: {}", retryIntervalMS, searchResult);
+            scheduleSubscribe();
+        }
+    }
+}
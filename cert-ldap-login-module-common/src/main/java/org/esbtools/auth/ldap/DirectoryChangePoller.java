@@ -0,0 +1,172 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.util.StaticUtils;
+import org.esbtools.auth.util.RolesCache;
+import org.esbtools.auth.util.SharedCacheRolesProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link RolesCache} in line with the directory by polling, every pollIntervalMS, for
+ * user entries under the search base whose modifyTimestamp is at or after the last sync. Only
+ * those users are touched, like with {@link DirectoryChangeListener}, so the cache expiry can
+ * be long without serving stale roles for long. For directories without persistent search.
+ *
+ * The sync point is the latest modifyTimestamp seen, so it follows the directory's clock. It
+ * starts at the local time when the poller is created, less one poll interval to allow for
+ * clock skew. Entries seen at exactly the sync point are not applied twice. If a poll fails,
+ * the sync point stays and the next poll catches up. If a poll exceeds the server's size
+ * limit, the cached roles (but not the fallback roles) are expired as a whole.
+ *
+ * Deletes do not change any remaining entry, so deleted users keep their cached roles until
+ * they expire.
+ *
+ */
+public class DirectoryChangePoller {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryChangePoller.class);
+
+    private final LdapRolesProvider ldapRolesProvider;
+    private final RolesCacheUpdater rolesCacheUpdater;
+    private final long pollIntervalMS;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ldap-poll-%d").build());
+
+    // only accessed by the polling thread
+    private Date syncPoint;
+    private Set<String> syncedDNs = new HashSet<>();
+
+    /**
+     * Polls in the background, first after pollIntervalMS.
+     *
+     * @param updateInPlace whether cached roles of changed users are replaced instead of
+     * expired
+     */
+    public DirectoryChangePoller(LdapRolesProvider ldapRolesProvider, RolesCache rolesCache, boolean updateInPlace,
+            long pollIntervalMS) {
+        this(ldapRolesProvider, rolesCache, null, updateInPlace, pollIntervalMS);
+    }
+
+    /**
+     * Like {@link #DirectoryChangePoller(LdapRolesProvider, RolesCache, boolean, long)}, also invalidating
+     * the roles of changed users in the second level cache of the nodes.
+     *
+     * @param sharedCache the second level cache of the nodes, null if none
+     */
+    public DirectoryChangePoller(LdapRolesProvider ldapRolesProvider, RolesCache rolesCache,
+            SharedCacheRolesProvider sharedCache, boolean updateInPlace, long pollIntervalMS) {
+        this.ldapRolesProvider = Objects.requireNonNull(ldapRolesProvider);
+        this.rolesCacheUpdater = new RolesCacheUpdater(ldapRolesProvider, rolesCache, sharedCache, updateInPlace);
+        this.pollIntervalMS = pollIntervalMS;
+        this.syncPoint = new Date(System.currentTimeMillis() - pollIntervalMS);
+
+        LOGGER.info("DirectoryChangePoller initialized with updateInPlace={}, pollIntervalMS={}", updateInPlace, pollIntervalMS);
+
+        executor.scheduleWithFixedDelay(this::poll, pollIntervalMS, pollIntervalMS, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void poll() {
+        long start = System.currentTimeMillis();
+        List<SearchResultEntry> changedEntries;
+
+        try {
+            changedEntries = ldapRolesProvider.getChangedUserEntries(syncPoint);
+        } catch (LDAPException e) {
+            if (e.getResultCode() == ResultCode.SIZE_LIMIT_EXCEEDED) {
+                LOGGER.warn("Too many changes since {} to apply one by one, expiring all cached roles.", syncPoint);
+                rolesCacheUpdater.expireAll();
+                syncPoint = new Date(start - pollIntervalMS);
+                syncedDNs = new HashSet<>();
+            } else {
+                LOGGER.warn("Failed to poll for directory changes since {}, will retry in {}ms.", syncPoint, pollIntervalMS, e);
+            }
+            return;
+        } catch (RuntimeException e) {
+            // would cancel the schedule otherwise
+            LOGGER.error("Failed to poll for directory changes since {}", syncPoint, e);
+            return;
+        }
+
+        Date newSyncPoint = syncPoint;
+        Set<String> newSyncedDNs = syncedDNs;
+        int applied = 0;
+
+        for (SearchResultEntry entry : changedEntries) {
+            Date modified = getModifyTimestamp(entry);
+
+            if (modified != null && modified.equals(syncPoint) && syncedDNs.contains(entry.getDN())) {
+                continue;
+            }
+
+            rolesCacheUpdater.entryChanged(entry, false);
+            applied++;
+
+            if (modified != null) {
+                if (modified.after(newSyncPoint)) {
+                    newSyncPoint = modified;
+                    newSyncedDNs = new HashSet<>();
+                }
+                if (modified.equals(newSyncPoint)) {
+                    newSyncedDNs.add(entry.getDN());
+                }
+            }
+        }
+
+        syncPoint = newSyncPoint;
+        syncedDNs = newSyncedDNs;
+
+        if (applied > 0) {
+            LOGGER.debug("Applied {} changed users in {}ms, synced to {}", applied, System.currentTimeMillis() - start, syncPoint);
+        }
+    }
+
+    private static Date getModifyTimestamp(SearchResultEntry entry) {
+        String modifyTimestamp = entry.getAttributeValue("modifyTimestamp");
+        if (modifyTimestamp == null) {
+            return null;
+        }
+
+        try {
+            return StaticUtils.decodeGeneralizedTime(modifyTimestamp);
+        } catch (ParseException e) {
+            LOGGER.warn("Unreadable modifyTimestamp {} of {}", modifyTimestamp, entry.getDN());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared cache of the group graph, used to resolve nested group membership. Holds the parent
+ * groups of each group (group to parent edges, read from the group entry's memberOf), and the
+ * full expansion of each group: the group itself and every group it is transitively a member
+ * of. Both expire expiryMS after they were loaded, so changes in ldap are picked up.
+ *
+ * An expansion is computed once and reused for every user who is a member of the group, so
+ * resolving nested groups costs ldap calls per group, not per user. Cycles in the graph are
+ * tolerated.
+ *
+ * DNs are compared normalized (see {@link DN#equals(Object)}), but kept in the form they were
+ * read in.
+ */
+class GroupGraphCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupGraphCache.class);
+
+    public static final int maximumSize = 10000;
+
+    /**
+     * Reads the groups a group is a direct member of.
+     */
+    interface ParentGroupLoader {
+        /**
+         * @return parent groups, empty if there are none or the group does not exist
+         */
+        Set<DN> getParentGroups(DN group) throws LDAPException;
+    }
+
+    private final ParentGroupLoader loader;
+    private final Cache<DN, Set<DN>> parents;
+    private final Cache<DN, Set<DN>> expansions;
+
+    GroupGraphCache(ParentGroupLoader loader, long expiryMS) {
+        this.loader = loader;
+        this.parents = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiryMS, TimeUnit.MILLISECONDS)
+                .build();
+        this.expansions = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiryMS, TimeUnit.MILLISECONDS)
+                .build();
+
+        LOGGER.info("GroupGraphCache initialized with expiryMS={}", expiryMS);
+    }
+
+    /**
+     * @return the given groups and all groups they are transitively members of
+     */
+    Set<DN> expand(Collection<DN> groups) throws LDAPException {
+        Set<DN> expanded = new LinkedHashSet<>();
+        for (DN group : groups) {
+            expanded.addAll(expand(group));
+        }
+        return expanded;
+    }
+
+    /**
+     * @return the group and all groups it is transitively a member of
+     */
+    Set<DN> expand(DN group) throws LDAPException {
+        Set<DN> expansion = expansions.getIfPresent(group);
+        if (expansion != null) {
+            return expansion;
+        }
+
+        expansion = new LinkedHashSet<>();
+        Deque<DN> toVisit = new ArrayDeque<>();
+        toVisit.add(group);
+
+        while (!toVisit.isEmpty()) {
+            DN next = toVisit.poll();
+
+            // the visited check is the cycle guard
+            if (!expansion.add(next)) {
+                continue;
+            }
+
+            Set<DN> known = next.equals(group) ? null : expansions.getIfPresent(next);
+            if (known != null) {
+                // everything reachable from there is known already
+                expansion.addAll(known);
+                continue;
+            }
+
+            toVisit.addAll(getParents(next));
+        }
+
+        expansion = Collections.unmodifiableSet(expansion);
+        expansions.put(group, expansion);
+        return expansion;
+    }
+
+    private Set<DN> getParents(DN group) throws LDAPException {
+        try {
+            // loads of the same group are single flight
+            return parents.get(group, () -> {
+                LOGGER.debug("Loading parent groups of {}", group);
+                return Collections.unmodifiableSet(loader.getParentGroups(group));
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof LDAPException) {
+                throw (LDAPException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to load parent groups of " + group, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches one connection pool per server, preferring the server with the lowest recent
+ * latency. If the preferred server has not answered within the configured percentile of its own
+ * recent latencies, the same search is also sent to the next fastest server and the first
+ * successful reply wins. A failed search is retried on the next server right away.
+ *
+ * Used by {@link LdapRolesProvider} for {@link ServerSelectionStrategy#LATENCY_AWARE}.
+ */
+class LatencyAwareSearcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LatencyAwareSearcher.class);
+
+    /**
+     * Don't hedge before there are enough latency samples for a meaningful percentile.
+     */
+    static final int MIN_SAMPLES_TO_HEDGE = 10;
+    static final int LATENCY_SAMPLES = 100;
+    /**
+     * Share of searches sent to a random server other than the fastest, so that a server which
+     * was slow or down gets a chance to prove it recovered.
+     */
+    static final double PROBE_RATE = 0.05;
+
+    private final List<Server> servers;
+    private final ScheduledExecutorService scheduler;
+    private final double hedgeDelayPercentile;
+    private final long failurePenaltyMS;
+
+    /**
+     * @param pools connection pool per server, by server name
+     * @param scheduler runs the hedging timers
+     * @param hedgeDelayPercentile percentile of the preferred server's recent latencies after
+     * which the search is hedged, e.g. 95
+     * @param failurePenaltyMS latency recorded for a failed search
+     */
+    LatencyAwareSearcher(List<String> names, List<LDAPConnectionPool> pools, ScheduledExecutorService scheduler,
+            double hedgeDelayPercentile, long failurePenaltyMS) {
+        List<Server> servers = new ArrayList<>(pools.size());
+        for (int i = 0; i < pools.size(); i++) {
+            servers.add(new Server(names.get(i), pools.get(i)));
+        }
+
+        this.servers = Collections.unmodifiableList(servers);
+        this.scheduler = scheduler;
+        this.hedgeDelayPercentile = hedgeDelayPercentile;
+        this.failurePenaltyMS = failurePenaltyMS;
+    }
+
+    List<SearchResultEntry> search(SearchRequest searchRequest) throws LDAPException {
+        try {
+            return searchAsync(searchRequest).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LDAPException(ResultCode.LOCAL_ERROR, "Interrupted while waiting for search result", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LDAPException) {
+                throw (LDAPException) e.getCause();
+            }
+            throw new LDAPException(ResultCode.LOCAL_ERROR, "Search failed", e.getCause());
+        }
+    }
+
+    CompletableFuture<List<SearchResultEntry>> searchAsync(SearchRequest searchRequest) {
+        List<Server> candidates = byEstimatedLatency();
+        HedgedSearch hedgedSearch = new HedgedSearch(searchRequest, candidates);
+
+        hedgedSearch.attemptNext();
+
+        if (candidates.size() > 1) {
+            Server preferred = candidates.get(0);
+            long hedgeDelay = preferred.latencyPercentile(hedgeDelayPercentile);
+
+            if (hedgeDelay >= 0) {
+                try {
+                    scheduler.schedule(() -> {
+                        if (!hedgedSearch.result.isDone()) {
+                            LOGGER.debug("No reply from {} within {}ms, hedging search", preferred, hedgeDelay);
+                            hedgedSearch.attemptNext();
+                        }
+                    }, hedgeDelay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    LOGGER.debug("Not hedging search, provider was closed.");
+                }
+            }
+        }
+
+        return hedgedSearch.result;
+    }
+
+    private List<Server> byEstimatedLatency() {
+        List<Server> candidates = new ArrayList<>(servers);
+        candidates.sort(Comparator.comparingDouble(Server::estimatedLatency));
+
+        if (candidates.size() > 1 && ThreadLocalRandom.current().nextDouble() < PROBE_RATE) {
+            Collections.swap(candidates, 0, 1 + ThreadLocalRandom.current().nextInt(candidates.size() - 1));
+        }
+
+        return candidates;
+    }
+
+    /**
+     * @return pool of the server with the lowest estimated latency, for work which needs a
+     * connection of its own
+     */
+    LDAPConnectionPool preferredPool() {
+        return byEstimatedLatency().get(0).pool;
+    }
+
+    void close() {
+        for (Server server : servers) {
+            server.pool.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return servers.toString();
+    }
+
+    /**
+     * One logical search, sent to one or more servers in order of preference.
+     */
+    private class HedgedSearch {
+        private final SearchRequest searchRequest;
+        private final List<Server> candidates;
+        private final AtomicInteger nextCandidate = new AtomicInteger();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final CompletableFuture<List<SearchResultEntry>> result = new CompletableFuture<>();
+
+        HedgedSearch(SearchRequest searchRequest, List<Server> candidates) {
+            this.searchRequest = searchRequest;
+            this.candidates = candidates;
+        }
+
+        /**
+         * Sends the search to the next server, if there is one left.
+         *
+         * @return false if all servers were tried already
+         */
+        boolean attemptNext() {
+            int index = nextCandidate.getAndIncrement();
+            if (index >= candidates.size()) {
+                return false;
+            }
+
+            Server server = candidates.get(index);
+            long start = System.nanoTime();
+            outstanding.incrementAndGet();
+
+            PooledAsyncSearch.search(server.pool, searchRequest).whenComplete((entries, error) -> {
+                long latencyMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                outstanding.decrementAndGet();
+
+                if (error == null) {
+                    server.recordLatency(latencyMS);
+                    result.complete(entries);
+                    return;
+                }
+
+                server.recordLatency(Math.max(latencyMS, failurePenaltyMS));
+                LOGGER.debug("Search failed on {}", server, error);
+
+                if (result.isDone()) {
+                    return;
+                }
+
+                // fail over right away; give up once nothing else is in flight
+                if (!attemptNext() && outstanding.get() == 0) {
+                    result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                }
+            });
+
+            return true;
+        }
+    }
+
+    /**
+     * A server with its connection pool and recent latencies.
+     */
+    private static class Server {
+        private static final double EWMA_WEIGHT = 0.2;
+
+        private final String name;
+        private final LDAPConnectionPool pool;
+
+        // guarded by this
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private int samples = 0;
+        private int nextSample = 0;
+        private volatile double estimatedLatency = 0;
+
+        Server(String name, LDAPConnectionPool pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        synchronized void recordLatency(long latencyMS) {
+            latencies[nextSample] = latencyMS;
+            nextSample = (nextSample + 1) % latencies.length;
+            samples = Math.min(samples + 1, latencies.length);
+
+            estimatedLatency = samples == 1
+                ? latencyMS
+                : EWMA_WEIGHT * latencyMS + (1 - EWMA_WEIGHT) * estimatedLatency;
+        }
+
+        double estimatedLatency() {
+            return estimatedLatency;
+        }
+
+        /**
+         * @return the given percentile of recent latencies, or -1 if there are not enough samples
+         */
+        synchronized long latencyPercentile(double percentile) {
+            if (samples < MIN_SAMPLES_TO_HEDGE) {
+                return -1;
+            }
+
+            long[] sorted = Arrays.copyOf(latencies, samples);
+            Arrays.sort(sorted);
+
+            int index = (int) Math.ceil(percentile / 100 * samples) - 1;
+            return sorted[Math.max(0, Math.min(index, samples - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return name + "(~" + Math.round(estimatedLatency) + "ms)";
+        }
+    }
+}
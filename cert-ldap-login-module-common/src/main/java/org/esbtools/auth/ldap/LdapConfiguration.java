@@ -18,11 +18,19 @@
  */
 package org.esbtools.auth.ldap;
 
+import com.unboundid.ldap.sdk.SearchScope;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class LdapConfiguration {
 
     private String server;
     private Integer port;
+    private List<String> servers = new ArrayList<>(); // host[:port] entries, used instead of server/port if not empty
+    private ServerSelectionStrategy serverSelectionStrategy = ServerSelectionStrategy.FAILOVER;
+    private Integer healthCheckIntervalMS = 60000; // time between background health checks of pooled connections
+    private Double hedgeDelayPercentile = 95.0; // LATENCY_AWARE only: latency percentile of the fastest server after which a search is also sent to the next one
     private String bindDn;
     private String bindDNPwd;
     private Boolean useSSL = false;
@@ -34,7 +42,19 @@ public class LdapConfiguration {
     private Integer responseTimeoutMS = 3000; // time to wait until receiving response from ldap
     private boolean debug = false;
     private boolean keepAlive = true;
-    private Integer retryIntervalSeconds = 5;
+    private Integer retryIntervalSeconds = 5; // first delay before reconnecting, doubled after every failed attempt
+    private Integer maxRetryIntervalSeconds = 60; // upper bound of the delay before reconnecting
+    private Integer searchBatchSize = 100; // max users looked up with a single search in bulk lookups
+    private boolean nestedGroups = false; // also return roles of groups the user is transitively a member of
+    private Integer nestedGroupCacheExpiryMS = 5 * 60 * 1000; // how long the group graph is cached for nested groups
+    private String changeMarkerAttribute = "modifyTimestamp"; // operational attribute revalidating cached roles, e.g. entryCSN
+    private String userAttribute = "uid"; // attribute holding the user name
+    private String membershipAttribute = "memberOf"; // attribute holding the DNs of the user's groups
+    private String userFilter = null; // filter template finding a user, {0} is replaced with the escaped user name; (userAttribute={0}) if null
+    private List<String> returnedAttributes = null; // attributes returned by lookups of a single user; membershipAttribute only if null
+    private SearchScope searchScope = SearchScope.SUB; // scope of user searches under the search base
+    private Integer searchSizeLimit = 0; // max entries returned by lookups of a single user, 0 for no limit
+    private Integer searchTimeLimitSeconds = 0; // server side time limit of user searches, 0 for no limit
 
     public LdapConfiguration server (String server) {
         this.server = server;
@@ -46,6 +66,21 @@ public class LdapConfiguration {
         return this;
     }
 
+    /**
+     * Several ldap servers, as {@code host} or {@code host:port} (defaults to {@link #port(Integer)}).
+     * Connections are spread over them according to
+     * {@link #serverSelectionStrategy(ServerSelectionStrategy)}.
+     */
+    public LdapConfiguration servers (List<String> servers) {
+        this.servers = servers;
+        return this;
+    }
+
+    public LdapConfiguration serverSelectionStrategy (ServerSelectionStrategy serverSelectionStrategy) {
+        this.serverSelectionStrategy = serverSelectionStrategy;
+        return this;
+    }
+
     public LdapConfiguration bindDn (String bindDn) {
         this.bindDn = bindDn;
         return this;
@@ -84,6 +119,14 @@ public class LdapConfiguration {
         return port;
     }
 
+    public List<String> getServers() {
+        return servers;
+    }
+
+    public ServerSelectionStrategy getServerSelectionStrategy() {
+        return serverSelectionStrategy;
+    }
+
     public String getBindDn() {
         return bindDn;
     }
@@ -162,11 +205,139 @@ public class LdapConfiguration {
         return this;
     }
 
+    public Integer getHealthCheckIntervalMS() {
+        return healthCheckIntervalMS;
+    }
+
+    public LdapConfiguration healthCheckIntervalMS(Integer healthCheckIntervalMS) {
+        this.healthCheckIntervalMS = healthCheckIntervalMS;
+        return this;
+    }
+
+    public Double getHedgeDelayPercentile() {
+        return hedgeDelayPercentile;
+    }
+
+    public LdapConfiguration hedgeDelayPercentile(Double hedgeDelayPercentile) {
+        this.hedgeDelayPercentile = hedgeDelayPercentile;
+        return this;
+    }
+
+    public Integer getMaxRetryIntervalSeconds() {
+        return maxRetryIntervalSeconds;
+    }
+
+    public LdapConfiguration maxRetryIntervalSeconds(Integer maxRetryIntervalSeconds) {
+        this.maxRetryIntervalSeconds = maxRetryIntervalSeconds;
+        return this;
+    }
+
+    public Integer getSearchBatchSize() {
+        return searchBatchSize;
+    }
+
+    public LdapConfiguration searchBatchSize(Integer searchBatchSize) {
+        this.searchBatchSize = searchBatchSize;
+        return this;
+    }
+
+    public boolean isNestedGroups() {
+        return nestedGroups;
+    }
+
+    public LdapConfiguration nestedGroups(boolean nestedGroups) {
+        this.nestedGroups = nestedGroups;
+        return this;
+    }
+
+    public Integer getNestedGroupCacheExpiryMS() {
+        return nestedGroupCacheExpiryMS;
+    }
+
+    public LdapConfiguration nestedGroupCacheExpiryMS(Integer nestedGroupCacheExpiryMS) {
+        this.nestedGroupCacheExpiryMS = nestedGroupCacheExpiryMS;
+        return this;
+    }
+
+    public String getUserAttribute() {
+        return userAttribute;
+    }
+
+    public LdapConfiguration userAttribute(String userAttribute) {
+        this.userAttribute = userAttribute;
+        return this;
+    }
+
+    public String getMembershipAttribute() {
+        return membershipAttribute;
+    }
+
+    public LdapConfiguration membershipAttribute(String membershipAttribute) {
+        this.membershipAttribute = membershipAttribute;
+        return this;
+    }
+
+    public String getUserFilter() {
+        return userFilter;
+    }
+
+    public LdapConfiguration userFilter(String userFilter) {
+        this.userFilter = userFilter;
+        return this;
+    }
+
+    public List<String> getReturnedAttributes() {
+        return returnedAttributes;
+    }
+
+    public LdapConfiguration returnedAttributes(List<String> returnedAttributes) {
+        this.returnedAttributes = returnedAttributes;
+        return this;
+    }
+
+    public SearchScope getSearchScope() {
+        return searchScope;
+    }
+
+    public LdapConfiguration searchScope(SearchScope searchScope) {
+        this.searchScope = searchScope;
+        return this;
+    }
+
+    public Integer getSearchSizeLimit() {
+        return searchSizeLimit;
+    }
+
+    public LdapConfiguration searchSizeLimit(Integer searchSizeLimit) {
+        this.searchSizeLimit = searchSizeLimit;
+        return this;
+    }
+
+    public Integer getSearchTimeLimitSeconds() {
+        return searchTimeLimitSeconds;
+    }
+
+    public LdapConfiguration searchTimeLimitSeconds(Integer searchTimeLimitSeconds) {
+        this.searchTimeLimitSeconds = searchTimeLimitSeconds;
+        return this;
+    }
+
+    public String getChangeMarkerAttribute() {
+        return changeMarkerAttribute;
+    }
+
+    public LdapConfiguration changeMarkerAttribute(String changeMarkerAttribute) {
+        this.changeMarkerAttribute = changeMarkerAttribute;
+        return this;
+    }
+
     @Override
     public String toString() {
         return "LdapConfiguration{" +
             "server='" + server + '\'' +
             ", port=" + port +
+            ", servers=" + servers +
+            ", serverSelectionStrategy=" + serverSelectionStrategy +
             ", bindDn='" + bindDn + '\'' +
             ", useSSL=" + useSSL +
             ", trustStore='" + trustStore + '\'' +
@@ -176,7 +347,21 @@ public class LdapConfiguration {
             ", responseTimeoutMS=" + responseTimeoutMS +
             ", debug=" + debug +
             ", keepAlive=" + keepAlive +
+            ", healthCheckIntervalMS=" + healthCheckIntervalMS +
+            ", hedgeDelayPercentile=" + hedgeDelayPercentile +
             ", retryIntervalSeconds=" + retryIntervalSeconds +
+            ", maxRetryIntervalSeconds=" + maxRetryIntervalSeconds +
+            ", searchBatchSize=" + searchBatchSize +
+            ", nestedGroups=" + nestedGroups +
+            ", nestedGroupCacheExpiryMS=" + nestedGroupCacheExpiryMS +
+            ", changeMarkerAttribute='" + changeMarkerAttribute + '\'' +
+            ", userAttribute='" + userAttribute + '\'' +
+            ", membershipAttribute='" + membershipAttribute + '\'' +
+            ", userFilter='" + userFilter + '\'' +
+            ", returnedAttributes=" + returnedAttributes +
+            ", searchScope=" + searchScope +
+            ", searchSizeLimit=" + searchSizeLimit +
+            ", searchTimeLimitSeconds=" + searchTimeLimitSeconds +
             '}';
     }
 
@@ -188,6 +373,14 @@ public class LdapConfiguration {
       this.port = port;
     }
 
+    public void setServers(List<String> servers) {
+      this.servers = servers;
+    }
+
+    public void setServerSelectionStrategy(ServerSelectionStrategy serverSelectionStrategy) {
+      this.serverSelectionStrategy = serverSelectionStrategy;
+    }
+
     public void setBindDn(String bindDn) {
       this.bindDn = bindDn;
     }
@@ -235,4 +428,60 @@ public class LdapConfiguration {
     public void setRetryIntervalSeconds(Integer retryIntervalSeconds) {
       this.retryIntervalSeconds = retryIntervalSeconds;
     }
+
+    public void setHealthCheckIntervalMS(Integer healthCheckIntervalMS) {
+      this.healthCheckIntervalMS = healthCheckIntervalMS;
+    }
+
+    public void setHedgeDelayPercentile(Double hedgeDelayPercentile) {
+      this.hedgeDelayPercentile = hedgeDelayPercentile;
+    }
+
+    public void setMaxRetryIntervalSeconds(Integer maxRetryIntervalSeconds) {
+      this.maxRetryIntervalSeconds = maxRetryIntervalSeconds;
+    }
+
+    public void setSearchBatchSize(Integer searchBatchSize) {
+      this.searchBatchSize = searchBatchSize;
+    }
+
+    public void setNestedGroups(boolean nestedGroups) {
+      this.nestedGroups = nestedGroups;
+    }
+
+    public void setNestedGroupCacheExpiryMS(Integer nestedGroupCacheExpiryMS) {
+      this.nestedGroupCacheExpiryMS = nestedGroupCacheExpiryMS;
+    }
+
+    public void setChangeMarkerAttribute(String changeMarkerAttribute) {
+      this.changeMarkerAttribute = changeMarkerAttribute;
+    }
+
+    public void setUserAttribute(String userAttribute) {
+      this.userAttribute = userAttribute;
+    }
+
+    public void setMembershipAttribute(String membershipAttribute) {
+      this.membershipAttribute = membershipAttribute;
+    }
+
+    public void setUserFilter(String userFilter) {
+      this.userFilter = userFilter;
+    }
+
+    public void setReturnedAttributes(List<String> returnedAttributes) {
+      this.returnedAttributes = returnedAttributes;
+    }
+
+    public void setSearchScope(SearchScope searchScope) {
+      this.searchScope = searchScope;
+    }
+
+    public void setSearchSizeLimit(Integer searchSizeLimit) {
+      this.searchSizeLimit = searchSizeLimit;
+    }
+
+    public void setSearchTimeLimitSeconds(Integer searchTimeLimitSeconds) {
+      this.searchTimeLimitSeconds = searchTimeLimitSeconds;
+    }
 }
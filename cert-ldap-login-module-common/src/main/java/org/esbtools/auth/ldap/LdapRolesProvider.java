@@ -18,35 +18,63 @@
  */
 package org.esbtools.auth.ldap;
 
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.esbtools.auth.util.RolesProvider;
-import com.unboundid.ldap.sdk.BindResult;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.BindRequest;
 import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.FailoverServerSet;
+import com.unboundid.ldap.sdk.FewestConnectionsServerSet;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
 import com.unboundid.ldap.sdk.LDAPConnection;
 import com.unboundid.ldap.sdk.LDAPConnectionOptions;
 import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
-import com.unboundid.ldap.sdk.RDN;
 import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RoundRobinServerSet;
 import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
 import com.unboundid.ldap.sdk.SearchResultEntry;
 import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.ServerSet;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
 import com.unboundid.util.DebugType;
+import com.unboundid.util.StaticUtils;
 import com.unboundid.util.ssl.SSLUtil;
 import com.unboundid.util.ssl.TrustStoreTrustManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.SocketFactory;
 import java.security.GeneralSecurityException;
-import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 
 /**
@@ -56,6 +84,17 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Ldap connection pool is created per @{link {@link LdapRolesProvider} instance. Most likely
  * you'll want to use this class as a singleton.
  *
+ * If the pool can't be created, it is retried on a background thread with exponential
+ * backoff (starting at retryIntervalSeconds, up to maxRetryIntervalSeconds, with jitter).
+ * Lookups never connect themselves: until the pool is up, they fail fast with the last
+ * connection error.
+ *
+ * With {@link ServerSelectionStrategy#LATENCY_AWARE} there is a pool per server instead, and
+ * searches go through {@link LatencyAwareSearcher}.
+ *
+ * With {@link LdapConfiguration#isNestedGroups()}, roles also include the groups a user is
+ * transitively a member of, resolved through a shared {@link GroupGraphCache}.
+ *
  *
  * @author mpatercz
  *
@@ -63,20 +102,53 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class LdapRolesProvider implements RolesProvider {
     private static final Logger LOGGER = LoggerFactory.getLogger(LdapRolesProvider.class);
 
+    private static final int NESTED_GROUP_QUEUE_SIZE = 1000;
+
     private final String searchBase;
 
     private final LdapConfiguration ldapConfiguration;
 
-    private final LDAPConnection ldapConnection;
+    private final List<SingleServerSet> servers;
+
+    private final ServerSet serverSet;
+
+    private final BindRequest bindRequest;
+
+    /**
+     * Group graph used to resolve nested groups, {@code null} unless
+     * {@link LdapConfiguration#isNestedGroups()}.
+     */
+    private final GroupGraphCache groupGraphCache;
 
     // Connection pool needs to be a singleton
     /**
-     * @{code null} until {@link #connectIfNeeded()} is called and successful.
+     * @{code null} until {@link #connect()} is called and successful. Published by the
+     * connection thread, read by lookups.
      */
-    private LDAPConnectionPool connectionPool;
+    private volatile LDAPConnectionPool connectionPool;
     private volatile LDAPException connectionException;
-    private volatile Instant lastConnectionAttempt;
-    private final AtomicBoolean attemptingConnect = new AtomicBoolean(false);
+    /**
+     * Used instead of {@link #connectionPool} with {@link ServerSelectionStrategy#LATENCY_AWARE}.
+     */
+    private volatile LatencyAwareSearcher latencyAwareSearcher;
+
+    /**
+     * Single thread doing all connection work after construction.
+     */
+    private final ScheduledExecutorService connectionExecutor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ldap-connect-%d").build());
+    private int failedConnectionAttempts = 0; // only accessed by the connecting thread
+
+    /**
+     * Runs the hedging timers of {@link LatencyAwareSearcher}, {@code null} for other strategies.
+     */
+    private final ScheduledExecutorService hedgeExecutor;
+
+    /**
+     * Completes asynchronous lookups which resolve nested groups, as that may search, which must
+     * not happen on the connection's reader thread. {@code null} without nested groups.
+     */
+    private final ExecutorService nestedGroupExecutor;
 
     public LdapRolesProvider(String searchBase, LdapConfiguration ldapConfiguration) throws Exception {
         this(searchBase, ldapConfiguration, true);
@@ -91,21 +163,49 @@ public class LdapRolesProvider implements RolesProvider {
 
         this.searchBase = searchBase;
         this.ldapConfiguration = ldapConfiguration;
-        this.ldapConnection = getLdapConnection(ldapConfiguration);
+        this.servers = getServers(ldapConfiguration);
+        this.serverSet = getServerSet(ldapConfiguration, servers);
+        this.hedgeExecutor = isLatencyAware()
+            ? Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ldap-hedge-%d").build())
+            : null;
+        this.bindRequest = new SimpleBindRequest(ldapConfiguration.getBindDn(), ldapConfiguration.getBindDNPwd());
+        this.groupGraphCache = ldapConfiguration.isNestedGroups()
+            ? new GroupGraphCache(this::getParentGroups, ldapConfiguration.getNestedGroupCacheExpiryMS())
+            : null;
+        this.nestedGroupExecutor = groupGraphCache != null
+            ? newNestedGroupExecutor(ldapConfiguration.getPoolSize())
+            : null;
 
         try {
-            connectIfNeeded();
+            connect();
         } catch (LDAPException e) {
             if (failFast) {
+                close();
                 throw e;
             } else {
-                LOGGER.warn("Failed to connect to LDAP server, will retry on next lookup after " +
-                    "{} seconds.", ldapConfiguration.getRetryIntervalSeconds(), e);
+                LOGGER.warn("Failed to connect to LDAP server, will retry in the background.", e);
+                scheduleReconnect();
             }
         }
     }
 
-    private static LDAPConnection getLdapConnection(LdapConfiguration ldapConfiguration) throws GeneralSecurityException {
+    /**
+     * Bounded like the connection pool, whose connections its threads wait for anyway.
+     */
+    private static ExecutorService newNestedGroupExecutor(Integer poolSize) {
+        int threads = poolSize == null ? 1 : Math.max(1, poolSize);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(NESTED_GROUP_QUEUE_SIZE),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ldap-nested-groups-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return a server set per configured server
+     */
+    private static List<SingleServerSet> getServers(LdapConfiguration ldapConfiguration) throws GeneralSecurityException {
         if (ldapConfiguration.isDebug()) {
             // bridge java.util.Logger output to log4j
             System.setProperty("java.util.logging.manager", "org.apache.logging.log4j.jul.LogManager");
@@ -116,8 +216,6 @@ public class LdapRolesProvider implements RolesProvider {
             System.setProperty("com.unboundid.ldap.sdk.debug.type", DebugType.getTypeNameList());
         }
 
-        LDAPConnection ldapConnection;
-
         LDAPConnectionOptions options = new LDAPConnectionOptions();
 
         // A value which specifies the maximum length of time in milliseconds that an attempt to establish a connection should be allowed to block before failing. By default, a timeout of 60,000 milliseconds (1 minute) will be used.
@@ -127,85 +225,326 @@ public class LdapRolesProvider implements RolesProvider {
         // A flag that indicates whether to use the SO_KEEPALIVE socket option to attempt to more quickly detect when idle TCP connections have been lost or to prevent them from being unexpectedly closed by intermediate network hardware. By default, the SO_KEEPALIVE socket option will be used.
         options.setUseKeepAlive(ldapConfiguration.isKeepAlive());
 
+        SocketFactory socketFactory;
+
         if (ldapConfiguration.getUseSSL()) {
             TrustStoreTrustManager trustStoreTrustManager = new TrustStoreTrustManager(
                 ldapConfiguration.getTrustStore(),
                 ldapConfiguration.getTrustStorePassword().toCharArray(),
                 "JKS",
                 true);
-            SSLSocketFactory socketFactory = new SSLUtil(trustStoreTrustManager).createSSLSocketFactory();
-
-            ldapConnection = new LDAPConnection(socketFactory, options);
+            socketFactory = new SSLUtil(trustStoreTrustManager).createSSLSocketFactory();
         } else {
             LOGGER.warn("Not using SSL to connect to ldap. This is very insecure - do not use in prod environments!");
 
-            ldapConnection = new LDAPConnection(options);
+            socketFactory = SocketFactory.getDefault();
+        }
+
+        List<String> servers = ldapConfiguration.getServers();
+
+        if (servers == null || servers.isEmpty()) {
+            return Collections.singletonList(
+                new SingleServerSet(ldapConfiguration.getServer(), ldapConfiguration.getPort(), socketFactory, options));
         }
 
-        return ldapConnection;
+        List<SingleServerSet> serverSets = new ArrayList<>(servers.size());
+
+        for (String server : servers) {
+            server = server.trim();
+            int portSeparator = server.lastIndexOf(':');
+
+            if (portSeparator < 0) {
+                serverSets.add(new SingleServerSet(server, Objects.requireNonNull(ldapConfiguration.getPort(),
+                    "No port for server " + server + " and no default port configured"), socketFactory, options));
+            } else {
+                serverSets.add(new SingleServerSet(server.substring(0, portSeparator),
+                    Integer.parseInt(server.substring(portSeparator + 1)), socketFactory, options));
+            }
+        }
+
+        return serverSets;
     }
 
-    private void connectIfNeeded() throws LDAPException {
-        if (connectionPool != null) {
-            return;
+    private static ServerSet getServerSet(LdapConfiguration ldapConfiguration, List<SingleServerSet> servers) {
+        if (servers.size() == 1) {
+            return servers.get(0);
         }
 
-        if (!readyForConnectionAttempt()) {
-            // It's too early to retry connecting again.
-            throw lastSeenConnectionException();
+        String[] addresses = new String[servers.size()];
+        int[] ports = new int[servers.size()];
+
+        for (int i = 0; i < servers.size(); i++) {
+            addresses[i] = servers.get(i).getAddress();
+            ports[i] = servers.get(i).getPort();
         }
 
-        // Multiple threads can get to this point, but establishing a connection is not thread safe
-        // (see LDAPConnection#connect), so we must synchronize access. Instead of blocking all
-        // threads except the one that makes it to this point and wins the race to connect, we fail
-        // the "loser" threads fast like when the connection retry interval has not been met, to
-        // prevent potentially many requests from waiting potentially a long wait. We do this via
-        // atomic compare and swap: see if attemptingConnect flag is false, and if so set it as one
-        // atomic operation. If attemptingConnect is true, we fail fast.
-        if (!attemptingConnect.compareAndSet(/*expect*/ false, /*update*/ true)) {
-            // attemptingConnect was true, which means another thread is connecting. Fail fast now
-            // instead of blocking.
-            throw lastSeenConnectionException();
+        SocketFactory socketFactory = servers.get(0).getSocketFactory();
+        LDAPConnectionOptions options = servers.get(0).getConnectionOptions();
+
+        switch (ldapConfiguration.getServerSelectionStrategy()) {
+            case ROUND_ROBIN:
+            case LATENCY_AWARE: // only describes the servers, each has its own pool
+                return new RoundRobinServerSet(addresses, ports, socketFactory, options);
+            case FEWEST_CONNECTIONS:
+                return new FewestConnectionsServerSet(addresses, ports, socketFactory, options);
+            case FAILOVER:
+            default:
+                FailoverServerSet failoverServerSet = new FailoverServerSet(addresses, ports, socketFactory, options);
+                // connections to servers other than the preferred one are recycled sooner, so the
+                // pool moves back to the preferred server once it recovers
+                failoverServerSet.setMaxFailoverConnectionAgeMillis(
+                    (long) ldapConfiguration.getPoolMaxConnectionAgeMS());
+                return failoverServerSet;
         }
+    }
 
+    private boolean isLatencyAware() {
+        return ldapConfiguration.getServerSelectionStrategy() == ServerSelectionStrategy.LATENCY_AWARE
+            && servers.size() > 1;
+    }
+
+    private LDAPConnectionPool createPool(ServerSet serverSet, int initialConnections) throws LDAPException {
+        // Each pooled connection is checked against its own server: on creation, and
+        // periodically in the background, so connections to a failed server are replaced.
+        GetEntryLDAPConnectionPoolHealthCheck healthCheck = new GetEntryLDAPConnectionPoolHealthCheck(
+            null, // root DSE
+            ldapConfiguration.getResponseTimeoutMS(),
+            true, // on create
+            false, // on checkout
+            false, // on release
+            true, // background checks
+            true); // after an exception
+
+        LDAPConnectionPool pool = new LDAPConnectionPool(serverSet, bindRequest,
+            initialConnections, ldapConfiguration.getPoolSize(), 1, null, true, healthCheck);
+        pool.setMaxConnectionAgeMillis(ldapConfiguration.getPoolMaxConnectionAgeMS());
+        pool.setHealthCheckIntervalMillis(ldapConfiguration.getHealthCheckIntervalMS());
+        return pool;
+    }
+
+    private void connect() throws LDAPException {
         try {
-            if (lastConnectionAttempt != null) {
-                LOGGER.info("Connection retry interval ({} seconds) passed, " +
-                    "attempting connection recovery to LDAP at {}:{}",
-                    ldapConfiguration.getRetryIntervalSeconds(),
-                    ldapConfiguration.getServer(),
-                    ldapConfiguration.getPort());
+            if (isLatencyAware()) {
+                latencyAwareSearcher = connectLatencyAware();
+            } else {
+                connectionPool = createPool(serverSet, ldapConfiguration.getPoolSize());
             }
 
-            lastConnectionAttempt = Instant.now();
-            BindResult bindResult = null;
-
-            if (!ldapConnection.isConnected()) {
-                ldapConnection.connect(
-                    ldapConfiguration.getServer(), ldapConfiguration.getPort());
-                bindResult = ldapConnection.bind(
-                    ldapConfiguration.getBindDn(), ldapConfiguration.getBindDNPwd());
-            } else if (ldapConnection.getLastBindRequest() == null) {
-                bindResult = ldapConnection.bind(
-                    ldapConfiguration.getBindDn(), ldapConfiguration.getBindDNPwd());
+            LOGGER.info("Initialized LDAPConnectionPool: servers={}, poolSize={}, poolMaxAge={}, connectionTimeout={}, responseTimeout={}, healthCheckInterval={}, debug={}, keepAlive={}.",
+                serverSet, ldapConfiguration.getPoolSize(), ldapConfiguration.getPoolMaxConnectionAgeMS(), ldapConfiguration.getConnectionTimeoutMS(), ldapConfiguration.getResponseTimeoutMS(),
+                ldapConfiguration.getHealthCheckIntervalMS(), ldapConfiguration.isDebug(), ldapConfiguration.isKeepAlive());
+        } catch (LDAPException e) {
+            connectionException = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a pool per server. Servers which can't be reached yet get an empty pool, which
+     * connects on demand once the server is back; fails only if no server can be reached.
+     */
+    private LatencyAwareSearcher connectLatencyAware() throws LDAPException {
+        List<String> names = new ArrayList<>(servers.size());
+        List<LDAPConnectionPool> pools = new ArrayList<>(servers.size());
+        LDAPException lastFailure = null;
+        int failures = 0;
+
+        for (SingleServerSet server : servers) {
+            names.add(server.getAddress() + ":" + server.getPort());
+
+            try {
+                pools.add(createPool(server, ldapConfiguration.getPoolSize()));
+            } catch (LDAPException e) {
+                LOGGER.warn("Failed to connect to LDAP server {}:{}, will connect on demand.",
+                    server.getAddress(), server.getPort(), e);
+                lastFailure = e;
+                failures++;
+                pools.add(createPool(server, 0));
             }
+        }
 
-            if (bindResult != null && bindResult.getResultCode() != ResultCode.SUCCESS) {
-                LOGGER.error("Error binding to LDAP" + bindResult.getResultCode());
-                throw new LDAPException(bindResult.getResultCode(), "Error binding to LDAP");
+        if (failures == servers.size()) {
+            for (LDAPConnectionPool pool : pools) {
+                pool.close();
             }
+            throw lastFailure;
+        }
+
+        return new LatencyAwareSearcher(names, pools, hedgeExecutor,
+            ldapConfiguration.getHedgeDelayPercentile(), ldapConfiguration.getResponseTimeoutMS());
+    }
+
+    /**
+     * Schedules the next connection attempt on the connection thread. The delay doubles with
+     * every failed attempt, from retryIntervalSeconds up to maxRetryIntervalSeconds, and is
+     * randomized between half and all of that so that many nodes don't retry in lockstep.
+     */
+    private void scheduleReconnect() {
+        long baseMillis = TimeUnit.SECONDS.toMillis(ldapConfiguration.getRetryIntervalSeconds());
+        long maxMillis = TimeUnit.SECONDS.toMillis(
+            Math.max(ldapConfiguration.getMaxRetryIntervalSeconds(), ldapConfiguration.getRetryIntervalSeconds()));
+        long backoffMillis = Math.min(maxMillis, baseMillis << Math.min(failedConnectionAttempts, 20));
+        long delayMillis = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+
+        failedConnectionAttempts++;
+
+        try {
+            connectionExecutor.schedule(this::reconnect, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Not reconnecting to LDAP, provider was closed.");
+        }
+    }
 
-            connectionPool = new LDAPConnectionPool(ldapConnection, ldapConfiguration.getPoolSize());
-            connectionPool.setMaxConnectionAgeMillis(ldapConfiguration.getPoolMaxConnectionAgeMS());
+    private void reconnect() {
+        LOGGER.info("Attempting connection recovery to LDAP at {} (attempt {})",
+            serverSet,
+            failedConnectionAttempts);
 
-            LOGGER.info("Initialized LDAPConnectionPool: poolSize={}, poolMaxAge={}, connectionTimeout={}, responseTimeout={}, debug={}, keepAlive={}.",
-                ldapConfiguration.getPoolSize(), ldapConfiguration.getPoolMaxConnectionAgeMS(), ldapConfiguration.getConnectionTimeoutMS(), ldapConfiguration.getResponseTimeoutMS(),
-                ldapConfiguration.isDebug(), ldapConfiguration.isKeepAlive());
+        try {
+            connect();
+            failedConnectionAttempts = 0;
         } catch (LDAPException e) {
-            connectionException = e;
+            LOGGER.warn("Failed to connect to LDAP server, will retry in the background.", e);
+            scheduleReconnect();
+        } catch (RuntimeException e) {
+            LOGGER.error("Unexpected error connecting to LDAP server, will retry in the background.", e);
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * @return the published connection pool
+     * @throws LDAPException the last connection error, if there is no pool (yet)
+     */
+    private LDAPConnectionPool getConnectionPool() throws LDAPException {
+        LDAPConnectionPool pool = connectionPool;
+
+        if (pool == null) {
+            throw lastSeenConnectionException();
+        }
+
+        return pool;
+    }
+
+    private List<SearchResultEntry> search(SearchRequest searchRequest) throws LDAPException {
+        LatencyAwareSearcher searcher = latencyAwareSearcher;
+
+        if (searcher != null) {
+            return searcher.search(searchRequest);
+        }
+
+        return getConnectionPool().search(searchRequest).getSearchEntries();
+    }
+
+    private CompletableFuture<List<SearchResultEntry>> searchAsync(SearchRequest searchRequest) {
+        LatencyAwareSearcher searcher = latencyAwareSearcher;
+
+        if (searcher != null) {
+            return searcher.searchAsync(searchRequest);
+        }
+
+        try {
+            return PooledAsyncSearch.search(getConnectionPool(), searchRequest);
+        } catch (LDAPException e) {
+            CompletableFuture<List<SearchResultEntry>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    String getSearchBase() {
+        return searchBase;
+    }
+
+    SearchScope getSearchScope() {
+        return ldapConfiguration.getSearchScope();
+    }
+
+    String getUserAttribute() {
+        return ldapConfiguration.getUserAttribute();
+    }
+
+    String getMembershipAttribute() {
+        return ldapConfiguration.getMembershipAttribute();
+    }
+
+    /**
+     * @return {@link LdapConfiguration#getReturnedAttributes()}, or just the membership attribute
+     */
+    private String[] getReturnedAttributes() {
+        List<String> returnedAttributes = ldapConfiguration.getReturnedAttributes();
+
+        if (returnedAttributes == null || returnedAttributes.isEmpty()) {
+            return new String[] {getMembershipAttribute()};
+        }
+
+        return returnedAttributes.toArray(new String[returnedAttributes.size()]);
+    }
+
+    /**
+     * @return {@link LdapConfiguration#getUserFilter()} for the user, with the user name escaped,
+     * or an equality filter on the user attribute
+     */
+    Filter userFilter(String username) throws LDAPException {
+        String userFilter = ldapConfiguration.getUserFilter();
+
+        if (userFilter == null) {
+            return Filter.createEqualityFilter(getUserAttribute(), username);
+        }
+
+        return Filter.create(userFilter.replace("{0}", Filter.encodeValue(username)));
+    }
+
+    /**
+     * @return a search for the entry of a single user, shaped by the configuration
+     */
+    private SearchRequest userSearchRequest(String username) throws LDAPException {
+        SearchRequest searchRequest = new SearchRequest(searchBase, ldapConfiguration.getSearchScope(),
+            userFilter(username), getReturnedAttributes());
+        searchRequest.setSizeLimit(ldapConfiguration.getSearchSizeLimit());
+        searchRequest.setTimeLimitSeconds(ldapConfiguration.getSearchTimeLimitSeconds());
+        return searchRequest;
+    }
+
+    /**
+     * @return a new, bound connection outside of the pool, for long running operations. The
+     * caller closes it.
+     */
+    LDAPConnection openConnection() throws LDAPException {
+        LDAPConnection connection = serverSet.getConnection();
+
+        try {
+            connection.bind(bindRequest.duplicate());
+        } catch (LDAPException e) {
+            connection.close();
             throw e;
-        } finally {
-            attemptingConnect.set(false);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Stops connection recovery and closes the connection pool(s).
+     */
+    public void close() {
+        connectionExecutor.shutdownNow();
+
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+        }
+
+        if (nestedGroupExecutor != null) {
+            nestedGroupExecutor.shutdownNow();
+        }
+
+        LDAPConnectionPool pool = connectionPool;
+        if (pool != null) {
+            pool.close();
+        }
+
+        LatencyAwareSearcher searcher = latencyAwareSearcher;
+        if (searcher != null) {
+            searcher.close();
         }
     }
 
@@ -215,15 +554,293 @@ public class LdapRolesProvider implements RolesProvider {
 
         Objects.requireNonNull(username);
 
-        connectIfNeeded();
+        return getRoles(username, search(userSearchRequest(username)));
+    }
 
-        Set<String> roles = new HashSet<>();
+    /**
+     * Same as {@link #getUserRoles(String)}, but the search's response timeout and server side
+     * time limit are set to the time left until the deadline.
+     *
+     * @throws TimeoutException if the deadline passed, also when the search hit its response
+     * timeout or time limit, with the {@link LDAPException} as its cause
+     */
+    @Override
+    public Set<String> getUserRoles(String username, Instant deadline) throws Exception {
+        LOGGER.debug("getRoles({}, deadline={})", username, deadline);
+
+        Objects.requireNonNull(username);
+
+        long remainingMS = deadline.toEpochMilli() - System.currentTimeMillis();
+        if (remainingMS <= 0) {
+            throw new TimeoutException("Deadline passed before searching roles for " + username);
+        }
+
+        SearchRequest searchRequest = userSearchRequest(username);
+        searchRequest.setResponseTimeoutMillis(remainingMS);
+        // in whole seconds, rounded up so it never cuts the search short of the deadline
+        int remainingSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(remainingMS + 999);
+        if (searchRequest.getTimeLimitSeconds() == 0 || remainingSeconds < searchRequest.getTimeLimitSeconds()) {
+            searchRequest.setTimeLimitSeconds(remainingSeconds);
+        }
+
+        List<SearchResultEntry> searchResultEntries;
+        try {
+            searchResultEntries = search(searchRequest);
+        } catch (LDAPException e) {
+            if (e.getResultCode() == ResultCode.TIMEOUT || e.getResultCode() == ResultCode.TIME_LIMIT_EXCEEDED) {
+                TimeoutException timeout = new TimeoutException("Deadline passed while searching roles for " + username);
+                timeout.initCause(e);
+                throw timeout;
+            }
+            throw e;
+        }
 
-        String filter = "(uid=" + username + ")";
+        return getRoles(username, searchResultEntries);
+    }
+
+    /**
+     * Looks up roles for many users with OR-filter searches of up to
+     * {@link LdapConfiguration#getSearchBatchSize()} users each, instead of one search per user.
+     * Entries are matched back to users by their user attribute, and users with no entry or with multiple
+     * entries get an empty set like in {@link #getUserRoles(String)}. With a custom
+     * {@link LdapConfiguration#getUserFilter()}, entries can't be matched back that way, so
+     * each user is searched for on their own.
+     */
+    @Override
+    public Map<String, Set<String>> getUserRoles(Collection<String> usernames) throws Exception {
+        Objects.requireNonNull(usernames);
 
-        SearchRequest searchRequest = new SearchRequest(searchBase, SearchScope.SUB, filter);
-        SearchResult searchResult = connectionPool.search(searchRequest);
-        List<SearchResultEntry> searchResultEntries = searchResult.getSearchEntries();
+        LOGGER.debug("getRoles({} users)", usernames.size());
+
+        Map<String, Set<String>> rolesByUser = new HashMap<>();
+        List<String> distinctUsernames = new ArrayList<>(new LinkedHashSet<>(usernames));
+
+        if (ldapConfiguration.getUserFilter() != null) {
+            // the filter may match on anything, not necessarily the user attribute
+            for (String username : distinctUsernames) {
+                rolesByUser.put(username, getUserRoles(Objects.requireNonNull(username)));
+            }
+            return rolesByUser;
+        }
+
+        for (List<String> batch : Lists.partition(distinctUsernames, ldapConfiguration.getSearchBatchSize())) {
+            List<Filter> filters = new ArrayList<>(batch.size());
+            for (String username : batch) {
+                filters.add(userFilter(Objects.requireNonNull(username)));
+            }
+
+            // the user attribute is needed to match entries back to users
+            List<String> attributes = new ArrayList<>(Arrays.asList(getReturnedAttributes()));
+            attributes.add(getUserAttribute());
+
+            SearchRequest searchRequest = new SearchRequest(searchBase, ldapConfiguration.getSearchScope(),
+                Filter.createORFilter(filters), attributes.toArray(new String[attributes.size()]));
+            searchRequest.setTimeLimitSeconds(ldapConfiguration.getSearchTimeLimitSeconds());
+            List<SearchResultEntry> searchResultEntries = search(searchRequest);
+
+            // uid matching is case insensitive in ldap
+            Map<String, List<SearchResultEntry>> entriesByUid = new HashMap<>();
+            for (SearchResultEntry searchResultEntry : searchResultEntries) {
+                String[] uids = searchResultEntry.getAttributeValues(getUserAttribute());
+                if (uids != null) {
+                    for (String uid : uids) {
+                        entriesByUid.computeIfAbsent(StaticUtils.toLowerCase(uid), k -> new ArrayList<>())
+                            .add(searchResultEntry);
+                    }
+                }
+            }
+
+            for (String username : batch) {
+                List<SearchResultEntry> entries = entriesByUid.getOrDefault(
+                    StaticUtils.toLowerCase(username), Collections.<SearchResultEntry>emptyList());
+                rolesByUser.put(username, getRoles(username, entries));
+            }
+        }
+
+        return rolesByUser;
+    }
+
+    /**
+     * Reads the roles of every user under the search base, with paged searches of pageSize
+     * entries on a single connection. Used by {@link PreloadedRolesProvider}.
+     *
+     * @return roles by lower-cased uid. Users with multiple entries get an empty set, like in
+     * {@link #getUserRoles(String)}.
+     */
+    Map<String, Set<String>> getAllUserRoles(int pageSize) throws LDAPException {
+        LatencyAwareSearcher searcher = latencyAwareSearcher;
+        LDAPConnectionPool pool = searcher != null ? searcher.preferredPool() : getConnectionPool();
+
+        SearchRequest searchRequest = new SearchRequest(searchBase, ldapConfiguration.getSearchScope(),
+            Filter.createPresenceFilter(getUserAttribute()), getUserAttribute(), getMembershipAttribute());
+        Map<String, List<SearchResultEntry>> entriesByUid = new HashMap<>();
+        int pages = 0;
+
+        LDAPConnection connection = pool.getConnection();
+        boolean completed = false;
+        try {
+            ASN1OctetString cookie = null;
+            do {
+                searchRequest.setControls(new SimplePagedResultsControl(pageSize, cookie));
+                SearchResult searchResult = connection.search(searchRequest);
+                pages++;
+
+                for (SearchResultEntry searchResultEntry : searchResult.getSearchEntries()) {
+                    for (String uid : searchResultEntry.getAttributeValues(getUserAttribute())) {
+                        entriesByUid.computeIfAbsent(StaticUtils.toLowerCase(uid), k -> new ArrayList<>())
+                            .add(searchResultEntry);
+                    }
+                }
+
+                SimplePagedResultsControl responseControl = SimplePagedResultsControl.get(searchResult);
+                cookie = responseControl == null || !responseControl.moreResultsToReturn()
+                    ? null
+                    : responseControl.getCookie();
+            } while (cookie != null);
+
+            completed = true;
+        } finally {
+            if (completed) {
+                pool.releaseConnection(connection);
+            } else {
+                // whatever failed, the server may still hold the paged search given up half way
+                pool.releaseDefunctConnection(connection);
+            }
+        }
+
+        LOGGER.debug("Read {} users in {} pages", entriesByUid.size(), pages);
+
+        Map<String, Set<String>> rolesByUid = new HashMap<>(entriesByUid.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<SearchResultEntry>> entries : entriesByUid.entrySet()) {
+            rolesByUid.put(entries.getKey(), getRoles(entries.getKey(), entries.getValue()));
+        }
+
+        return rolesByUid;
+    }
+
+    /**
+     * Reads the user entries under the search base modified at or after the given time, by
+     * their modifyTimestamp. Used by {@link DirectoryChangePoller}.
+     *
+     * @return entries with their uid, memberOf and modifyTimestamp
+     */
+    List<SearchResultEntry> getChangedUserEntries(Date since) throws LDAPException {
+        Filter filter = Filter.createANDFilter(
+            Filter.createPresenceFilter(getUserAttribute()),
+            Filter.createGreaterOrEqualFilter("modifyTimestamp", StaticUtils.encodeGeneralizedTime(since)));
+
+        // modifyTimestamp is operational, so it is only returned if asked for
+        SearchRequest searchRequest = new SearchRequest(searchBase, ldapConfiguration.getSearchScope(), filter,
+            getUserAttribute(), getMembershipAttribute(), "modifyTimestamp");
+
+        return search(searchRequest);
+    }
+
+    /**
+     * Looks up roles using the SDK's asynchronous search, so the calling thread is not blocked
+     * for the ldap round trip. See {@link PooledAsyncSearch}.
+     *
+     * <p>The returned future is completed on the connection's reader thread, so any dependent
+     * stages which do real work should use the {@code *Async} variants.
+     */
+    @Override
+    public CompletableFuture<Set<String>> getUserRolesAsync(String username) {
+        LOGGER.debug("getRolesAsync("+username+")");
+
+        Objects.requireNonNull(username);
+
+        SearchRequest searchRequest;
+
+        try {
+            searchRequest = userSearchRequest(username);
+        } catch (LDAPException e) {
+            CompletableFuture<Set<String>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        CompletableFuture<Set<String>> future = new CompletableFuture<>();
+
+        BiConsumer<List<SearchResultEntry>, Throwable> completion = (searchResultEntries, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+                return;
+            }
+
+            try {
+                future.complete(getRoles(username, searchResultEntries));
+            } catch (Throwable e) {
+                // not just LDAPException: the future must complete whatever happens, or callers
+                // waiting for it would wait forever
+                future.completeExceptionally(e);
+            }
+        };
+
+        CompletableFuture<List<SearchResultEntry>> completed = groupGraphCache == null
+            ? searchAsync(searchRequest).whenComplete(completion)
+            // resolving nested groups may search, which must not happen on the reader thread
+            : searchAsync(searchRequest).whenCompleteAsync(completion, nestedGroupExecutor);
+
+        // e.g. the executor rejected the completion
+        completed.whenComplete((ignored, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Reads only the {@link LdapConfiguration#getChangeMarkerAttribute()} of the user's entry.
+     * With nested groups, changes of the groups the user is a member of through other groups
+     * are not reflected in it.
+     *
+     * @return the marker, null if the user has no single entry or the entry has no marker
+     */
+    @Override
+    public String getChangeMarker(String username) throws Exception {
+        LOGGER.debug("getChangeMarker({})", username);
+
+        return getChangeMarker(username, search(changeMarkerRequest(username)));
+    }
+
+    @Override
+    public CompletableFuture<String> getChangeMarkerAsync(String username) {
+        LOGGER.debug("getChangeMarkerAsync({})", username);
+
+        SearchRequest searchRequest;
+
+        try {
+            searchRequest = changeMarkerRequest(username);
+        } catch (LDAPException e) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        return searchAsync(searchRequest)
+            .thenApply(searchResultEntries -> getChangeMarker(username, searchResultEntries));
+    }
+
+    private SearchRequest changeMarkerRequest(String username) throws LDAPException {
+        SearchRequest searchRequest = new SearchRequest(searchBase, ldapConfiguration.getSearchScope(),
+            userFilter(Objects.requireNonNull(username)), ldapConfiguration.getChangeMarkerAttribute());
+        searchRequest.setTimeLimitSeconds(ldapConfiguration.getSearchTimeLimitSeconds());
+        return searchRequest;
+    }
+
+    private String getChangeMarker(String username, List<SearchResultEntry> searchResultEntries) {
+        if (searchResultEntries.size() != 1) {
+            LOGGER.debug("No single entry for uid={}, no change marker", username);
+            return null;
+        }
+
+        return searchResultEntries.get(0).getAttributeValue(ldapConfiguration.getChangeMarkerAttribute());
+    }
+
+    Set<String> getRoles(String username, List<SearchResultEntry> searchResultEntries) throws LDAPException {
+        Set<String> roles = new HashSet<>();
 
         if(searchResultEntries.isEmpty()) {
             LOGGER.warn("No result found roles for user: " + username);
@@ -233,15 +850,19 @@ public class LdapRolesProvider implements RolesProvider {
             return new HashSet<String>();
         } else {
             for(SearchResultEntry searchResultEntry : searchResultEntries) {
-                String[] groups = searchResultEntry.getAttributeValues("memberOf");
-                if(null != groups) {
+                String[] groups = searchResultEntry.getAttributeValues(getMembershipAttribute());
+                if(null != groups && groupGraphCache == null) {
+                    for(String group : groups) {
+                        CommonNameExtractor.addCommonName(group, roles);
+                    }
+                } else if(null != groups) {
+                    // the group graph is keyed by DN
+                    Collection<DN> groupDNs = new ArrayList<>(groups.length);
                     for(String group : groups) {
-                        for (RDN rdn : new DN(group).getRDNs()) {
-                            if (rdn.hasAttribute("cn")) {
-                                roles.addAll(Arrays.asList(rdn.getAttributeValues()));
-                                break;
-                            }
-                        }
+                        groupDNs.add(new DN(group));
+                    }
+                    for(DN group : groupGraphCache.expand(groupDNs)) {
+                        CommonNameExtractor.addCommonNameFromDN(group, roles);
                     }
                 }
             }
@@ -250,6 +871,37 @@ public class LdapRolesProvider implements RolesProvider {
         return roles;
     }
 
+    /**
+     * Reads the memberOf of a group entry, see {@link GroupGraphCache}.
+     */
+    private Set<DN> getParentGroups(DN group) throws LDAPException {
+        SearchRequest searchRequest = new SearchRequest(group.toString(), SearchScope.BASE,
+            Filter.createPresenceFilter("objectClass"), getMembershipAttribute());
+        List<SearchResultEntry> searchResultEntries;
+
+        try {
+            searchResultEntries = search(searchRequest);
+        } catch (LDAPException e) {
+            if (e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
+                LOGGER.debug("Group {} not found, assuming it has no parent groups", group);
+                return Collections.emptySet();
+            }
+            throw e;
+        }
+
+        Set<DN> parents = new LinkedHashSet<>();
+        for (SearchResultEntry searchResultEntry : searchResultEntries) {
+            String[] parentGroups = searchResultEntry.getAttributeValues(getMembershipAttribute());
+            if (parentGroups != null) {
+                for (String parentGroup : parentGroups) {
+                    parents.add(new DN(parentGroup));
+                }
+            }
+        }
+
+        return parents;
+    }
+
     private LDAPException lastSeenConnectionException() {
         if (connectionException == null) {
             throw new IllegalStateException("Expected connection exception, but was null. There " +
@@ -260,15 +912,4 @@ public class LdapRolesProvider implements RolesProvider {
 
         return connectionException;
     }
-
-    private boolean readyForConnectionAttempt() {
-        if (lastConnectionAttempt == null) {
-            return true;
-        }
-
-        Duration timeSinceLastAttempt = Duration.between(lastConnectionAttempt, Instant.now());
-        Duration retryInterval = Duration.ofSeconds(ldapConfiguration.getRetryIntervalSeconds());
-
-        return timeSinceLastAttempt.compareTo(retryInterval) >= 0;
-    }
 }
@@ -0,0 +1,121 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs a search with the SDK's asynchronous search on a pooled connection, so the calling
+ * thread is not blocked for the ldap round trip. The connection is checked out for the duration
+ * of the search and returned to the pool from the listener callback (or discarded, if the result
+ * indicates the connection is no longer usable).
+ *
+ * <p>Returned futures are completed on the connection's reader thread, so any dependent stages
+ * which do real work should use the {@code *Async} variants.
+ */
+final class PooledAsyncSearch implements AsyncSearchResultListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient LDAPConnectionPool pool;
+    private final transient LDAPConnection connection;
+    private final transient CompletableFuture<List<SearchResultEntry>> future = new CompletableFuture<>();
+    private final List<SearchResultEntry> searchResultEntries = new ArrayList<>();
+
+    private PooledAsyncSearch(LDAPConnectionPool pool, LDAPConnection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    /**
+     * @return future completed with the entries found, or with an {@link LDAPException} if the
+     * search could not be sent or did not succeed
+     */
+    static CompletableFuture<List<SearchResultEntry>> search(LDAPConnectionPool pool, SearchRequest searchRequest) {
+        LDAPConnection connection;
+
+        try {
+            connection = pool.getConnection();
+        } catch (LDAPException e) {
+            CompletableFuture<List<SearchResultEntry>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        PooledAsyncSearch search = new PooledAsyncSearch(pool, connection);
+
+        try {
+            SearchRequest asyncSearchRequest = new SearchRequest(search, searchRequest.getControls(),
+                searchRequest.getBaseDN(), searchRequest.getScope(), searchRequest.getDereferencePolicy(),
+                searchRequest.getSizeLimit(), searchRequest.getTimeLimitSeconds(), searchRequest.typesOnly(),
+                searchRequest.getFilter(), searchRequest.getAttributes());
+            // -1 (the default) means the connection's response timeout
+            asyncSearchRequest.setResponseTimeoutMillis(searchRequest.getResponseTimeoutMillis(null));
+            connection.asyncSearch(asyncSearchRequest);
+        } catch (LDAPException e) {
+            search.release(e.getResultCode());
+            search.future.completeExceptionally(e);
+        }
+
+        return search.future;
+    }
+
+    @Override
+    public void searchEntryReturned(SearchResultEntry searchEntry) {
+        searchResultEntries.add(searchEntry);
+    }
+
+    @Override
+    public void searchReferenceReturned(SearchResultReference searchReference) {
+        // references are not followed, same as the synchronous search
+    }
+
+    @Override
+    public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+        release(searchResult.getResultCode());
+
+        if (searchResult.getResultCode() != ResultCode.SUCCESS) {
+            future.completeExceptionally(new LDAPSearchException(searchResult));
+        } else {
+            future.complete(searchResultEntries);
+        }
+    }
+
+    private void release(ResultCode resultCode) {
+        if (ResultCode.isConnectionUsable(resultCode)) {
+            pool.releaseConnection(connection);
+        } else {
+            pool.releaseDefunctConnection(connection);
+        }
+    }
+}
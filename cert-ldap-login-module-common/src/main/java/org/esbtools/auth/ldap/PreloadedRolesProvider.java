@@ -0,0 +1,230 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.unboundid.util.StaticUtils;
+import org.esbtools.auth.util.RolesProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves roles from an in-memory index of every user under the search base, so lookups don't
+ * touch ldap at all. The index is read with paged searches (see
+ * {@link LdapRolesProvider#getAllUserRoles(int)}), rebuilt every refreshIntervalMS on a
+ * background thread and swapped in atomically; lookups always see one complete snapshot. If a
+ * rebuild fails, the previous snapshot is kept.
+ *
+ * The first index is read in the background too, retried with exponential backoff (from
+ * {@link #INITIAL_RETRY_MS}, up to refreshIntervalMS) until it succeeds. Until then, all users
+ * are looked up live, whatever liveFallback says.
+ *
+ * Users missing from the snapshot (e.g. created since it was read) are looked up live, unless
+ * liveFallback is disabled, in which case they get no roles.
+ *
+ */
+public class PreloadedRolesProvider implements RolesProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreloadedRolesProvider.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final long INITIAL_RETRY_MS = 1000;
+
+    private final LdapRolesProvider ldapRolesProvider;
+    private final long refreshIntervalMS;
+    private final int pageSize;
+    private final boolean liveFallback;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-preload-%d").build());
+
+    /**
+     * Roles by lower-cased uid, never modified once published.
+     */
+    private volatile Map<String, Set<String>> index = Collections.emptyMap();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    public PreloadedRolesProvider(LdapRolesProvider ldapRolesProvider, long refreshIntervalMS) {
+        this(ldapRolesProvider, refreshIntervalMS, DEFAULT_PAGE_SIZE, true);
+    }
+
+    /**
+     * Starts reading the index in the background, and then reads it every refreshIntervalMS.
+     * Doesn't wait for it, see {@link #awaitLoaded(long, TimeUnit)}.
+     *
+     * @param pageSize entries read per paged search
+     * @param liveFallback whether users missing from the index are looked up in ldap
+     */
+    public PreloadedRolesProvider(LdapRolesProvider ldapRolesProvider, long refreshIntervalMS, int pageSize,
+            boolean liveFallback) {
+        this.ldapRolesProvider = Objects.requireNonNull(ldapRolesProvider);
+        this.refreshIntervalMS = refreshIntervalMS;
+        this.pageSize = pageSize;
+        this.liveFallback = liveFallback;
+
+        LOGGER.info("PreloadedRolesProvider initialized with refreshIntervalMS={}, pageSize={}, liveFallback={}",
+                refreshIntervalMS, pageSize, liveFallback);
+
+        long firstRetryMS = Math.min(INITIAL_RETRY_MS, refreshIntervalMS);
+        executor.execute(() -> preload(firstRetryMS));
+    }
+
+    /**
+     * Reads the first index, retrying until it succeeds, then schedules the periodic refresh.
+     */
+    private void preload(long retryMS) {
+        if (refresh()) {
+            executor.scheduleWithFixedDelay(this::refresh, refreshIntervalMS, refreshIntervalMS, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        LOGGER.warn("Roles not preloaded yet, looking up users live. Retrying in {}ms.", retryMS);
+        long nextRetryMS = Math.min(retryMS * 2, refreshIntervalMS);
+        executor.schedule(() -> preload(nextRetryMS), retryMS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for the first index to be read.
+     *
+     * @return true if it was read, false if the timeout elapsed first
+     */
+    public boolean awaitLoaded(long timeout, TimeUnit unit) throws InterruptedException {
+        return loaded.await(timeout, unit);
+    }
+
+    private boolean isLoaded() {
+        return loaded.getCount() == 0;
+    }
+
+    /**
+     * Rebuilds the index now. Called on schedule; keeps the current index if it fails.
+     *
+     * @return whether the index was rebuilt
+     */
+    public synchronized boolean refresh() {
+        long start = System.currentTimeMillis();
+
+        try {
+            Map<String, Set<String>> rolesByUid = ldapRolesProvider.getAllUserRoles(pageSize);
+
+            Map<String, Set<String>> newIndex = new HashMap<>(rolesByUid.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Set<String>> roles : rolesByUid.entrySet()) {
+                newIndex.put(roles.getKey(), Collections.unmodifiableSet(roles.getValue()));
+            }
+
+            index = Collections.unmodifiableMap(newIndex);
+            loaded.countDown();
+
+            LOGGER.info("Preloaded roles of {} users in {}ms", newIndex.size(), System.currentTimeMillis() - start);
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("Failed to preload roles, keeping the previous {} users.", index.size(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return number of users in the current index
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public Set<String> getUserRoles(String username) throws Exception {
+        Set<String> roles = index.get(StaticUtils.toLowerCase(Objects.requireNonNull(username)));
+
+        if (roles != null) {
+            return roles;
+        }
+
+        LOGGER.debug("uid={} not preloaded", username);
+        return liveFallback || !isLoaded() ? ldapRolesProvider.getUserRoles(username) : Collections.<String>emptySet();
+    }
+
+    @Override
+    public Set<String> getUserRoles(String username, Instant deadline) throws Exception {
+        Set<String> roles = index.get(StaticUtils.toLowerCase(Objects.requireNonNull(username)));
+
+        if (roles != null) {
+            return roles;
+        }
+
+        LOGGER.debug("uid={} not preloaded", username);
+        return liveFallback || !isLoaded() ? ldapRolesProvider.getUserRoles(username, deadline) : Collections.<String>emptySet();
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> getUserRolesAsync(String username) {
+        Set<String> roles = index.get(StaticUtils.toLowerCase(Objects.requireNonNull(username)));
+
+        if (roles != null) {
+            return CompletableFuture.completedFuture(roles);
+        }
+
+        LOGGER.debug("uid={} not preloaded", username);
+        return liveFallback || !isLoaded()
+                ? ldapRolesProvider.getUserRolesAsync(username)
+                : CompletableFuture.completedFuture(Collections.<String>emptySet());
+    }
+
+    @Override
+    public Map<String, Set<String>> getUserRoles(Collection<String> usernames) throws Exception {
+        Map<String, Set<String>> snapshot = index;
+        boolean lookUpMissed = liveFallback || !isLoaded();
+        Map<String, Set<String>> rolesByUser = new HashMap<>();
+        List<String> missed = new ArrayList<>();
+
+        for (String username : usernames) {
+            Set<String> roles = snapshot.get(StaticUtils.toLowerCase(username));
+            if (roles != null) {
+                rolesByUser.put(username, roles);
+            } else if (lookUpMissed) {
+                missed.add(username);
+            } else {
+                rolesByUser.put(username, Collections.<String>emptySet());
+            }
+        }
+
+        if (!missed.isEmpty()) {
+            LOGGER.debug("{} of {} users not preloaded", missed.size(), usernames.size());
+            rolesByUser.putAll(ldapRolesProvider.getUserRoles(missed));
+        }
+
+        return rolesByUser;
+    }
+}
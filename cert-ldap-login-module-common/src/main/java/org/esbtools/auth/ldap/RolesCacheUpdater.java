@@ -0,0 +1,124 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.util.StaticUtils;
+import org.esbtools.auth.util.RolesCache;
+import org.esbtools.auth.util.SharedCacheRolesProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Objects;
+
+/**
+ * Applies changed user entries to a {@link RolesCache}: the cached roles of the entry's uids
+ * are expired, or, with updateInPlace, replaced with roles read from the entry if they were
+ * cached. Expired roles are kept as fallback roles, as the change may well not affect them.
+ * Only the roles of deleted (or renamed) users are invalidated, fallback roles included.
+ * Shared by {@link DirectoryChangeListener} and {@link DirectoryChangePoller}.
+ *
+ * Cache keys are matched against the values of the user attribute lower-cased, like the
+ * logins looked up (see {@link RolesCache}).
+ *
+ * If the nodes share a second level cache, the roles of changed users are invalidated there
+ * first, so they are not served from it again; see {@link SharedCacheRolesProvider}. Only
+ * known changes are: when changes may have been missed, only the local cache is expired.
+ */
+class RolesCacheUpdater {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RolesCacheUpdater.class);
+
+    private final LdapRolesProvider ldapRolesProvider;
+    private final RolesCache rolesCache;
+    private final SharedCacheRolesProvider sharedCache; // optional
+    private final boolean updateInPlace;
+
+    /**
+     * @param sharedCache the second level cache of the nodes, null if none
+     */
+    RolesCacheUpdater(LdapRolesProvider ldapRolesProvider, RolesCache rolesCache, SharedCacheRolesProvider sharedCache,
+            boolean updateInPlace) {
+        this.ldapRolesProvider = Objects.requireNonNull(ldapRolesProvider);
+        this.rolesCache = Objects.requireNonNull(rolesCache);
+        this.sharedCache = sharedCache;
+        this.updateInPlace = updateInPlace;
+    }
+
+    /**
+     * @param entry the changed entry, with its uid and memberOf
+     * @param deleted whether the entry was deleted, in which case its uids are always invalidated
+     * instead of expired
+     */
+    void entryChanged(SearchResultEntry entry, boolean deleted) {
+        String[] uids = entry.getAttributeValues(ldapRolesProvider.getUserAttribute());
+        if (uids == null) {
+            return;
+        }
+
+        for (String uid : uids) {
+            uid = StaticUtils.toLowerCase(uid);
+            if (sharedCache != null) {
+                sharedCache.invalidate(uid);
+            }
+
+            if (deleted) {
+                invalidate(uid);
+                continue;
+            }
+
+            if (updateInPlace && rolesCache.get(uid) != null) {
+                try {
+                    rolesCache.put(uid, ldapRolesProvider.getRoles(uid, Collections.singletonList(entry)));
+                    LOGGER.debug("Updated cached roles of uid={} after change of {}", uid, entry.getDN());
+                    continue;
+                } catch (LDAPException e) {
+                    LOGGER.warn("Failed to read roles of changed entry {}, expiring.", entry.getDN(), e);
+                }
+            }
+
+            rolesCache.expire(uid);
+            LOGGER.debug("Expired cached roles of uid={}", uid);
+        }
+    }
+
+    /**
+     * Removes the roles of a uid which is gone, fallback roles included.
+     */
+    void invalidate(String uid) {
+        uid = StaticUtils.toLowerCase(uid);
+        if (sharedCache != null) {
+            sharedCache.invalidate(uid);
+        }
+        rolesCache.invalidate(uid);
+        LOGGER.debug("Invalidated cached roles of uid={}", uid);
+    }
+
+    /**
+     * Expires all roles, but keeps fallback roles, for when changes may have been missed.
+     * Only the local cache is expired: every node does this on its own whenever it
+     * resubscribes or polls past the size limit, and wiping the second level cache of all
+     * nodes each time would send them all to the directory. Roles there still expire.
+     */
+    void expireAll() {
+        rolesCache.expireAll();
+    }
+}
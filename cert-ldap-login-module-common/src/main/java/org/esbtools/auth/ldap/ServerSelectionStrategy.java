@@ -0,0 +1,53 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+/**
+ * How pooled connections are spread over the servers configured with
+ * {@link LdapConfiguration#servers(java.util.List)}.
+ *
+ * @see com.unboundid.ldap.sdk.ServerSet
+ */
+public enum ServerSelectionStrategy {
+
+    /**
+     * Connect to the first available server, in the order they are configured. See
+     * {@link com.unboundid.ldap.sdk.FailoverServerSet}.
+     */
+    FAILOVER,
+
+    /**
+     * Connect to each server in turn. See {@link com.unboundid.ldap.sdk.RoundRobinServerSet}.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Connect to the server with the fewest connections from the pool. See
+     * {@link com.unboundid.ldap.sdk.FewestConnectionsServerSet}.
+     */
+    FEWEST_CONNECTIONS,
+
+    /**
+     * Keep a connection pool per server and send each search to the server with the lowest
+     * recent latency. A search not answered within
+     * {@link LdapConfiguration#getHedgeDelayPercentile()} of that server's recent latencies is
+     * also sent to the next fastest server, and the first reply wins.
+     */
+    LATENCY_AWARE
+}
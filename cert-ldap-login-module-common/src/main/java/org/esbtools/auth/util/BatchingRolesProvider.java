@@ -0,0 +1,266 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces lookups of distinct users arriving close together into a single bulk lookup (see
+ * {@link RolesProvider#getUserRoles(java.util.Collection)}). A batch is resolved once
+ * batchWindowMS passed since its first lookup, or as soon as it reaches maxBatchSize users,
+ * whichever comes first. Each waiting caller then gets its own user's roles, or the error of
+ * the bulk lookup. Synchronous callers wait at most maxWaitMS for it.
+ *
+ * Meant to sit between {@link CachedRolesProvider} and the ldap roles provider, so that many
+ * concurrent cache misses cost one search instead of one search each:
+ *
+ * <pre>
+ * new CachedRolesProvider(new BatchingRolesProvider(ldapRolesProvider, 5, 50), rolesCache);
+ * </pre>
+ *
+ */
+public class BatchingRolesProvider implements RolesProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchingRolesProvider.class);
+
+    public static final int DEFAULT_BATCH_THREADS = 4;
+    public static final long DEFAULT_MAX_WAIT_MS = 60 * 1000;
+
+    private final RolesProvider rolesProvider;
+    private final long batchWindowMS;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService executor;
+    // shut down on close if created here
+    private final boolean ownExecutor;
+
+    private volatile long maxWaitMS = DEFAULT_MAX_WAIT_MS;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private Map<String, CompletableFuture<Set<String>>> pending = new HashMap<>();
+    // guarded by lock
+    private ScheduledFuture<?> scheduledBatch;
+
+    public BatchingRolesProvider(RolesProvider rolesProvider, long batchWindowMS, int maxBatchSize) {
+        this(rolesProvider, batchWindowMS, maxBatchSize, Executors.newScheduledThreadPool(DEFAULT_BATCH_THREADS,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-batch-%d").build()), true);
+    }
+
+    /**
+     * @param executor runs the bulk lookups. Its thread count caps how many batches can be in
+     * flight at once. Left running on {@link #close()}.
+     */
+    public BatchingRolesProvider(RolesProvider rolesProvider, long batchWindowMS, int maxBatchSize,
+            ScheduledExecutorService executor) {
+        this(rolesProvider, batchWindowMS, maxBatchSize, executor, false);
+    }
+
+    private BatchingRolesProvider(RolesProvider rolesProvider, long batchWindowMS, int maxBatchSize,
+            ScheduledExecutorService executor, boolean ownExecutor) {
+        if (batchWindowMS < 0) {
+            throw new IllegalArgumentException("batchWindowMS must not be negative: " + batchWindowMS);
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+
+        this.rolesProvider = Objects.requireNonNull(rolesProvider);
+        this.batchWindowMS = batchWindowMS;
+        this.maxBatchSize = maxBatchSize;
+        this.executor = Objects.requireNonNull(executor);
+        this.ownExecutor = ownExecutor;
+
+        LOGGER.info("BatchingRolesProvider initialized with batchWindowMS={}, maxBatchSize={}", batchWindowMS, maxBatchSize);
+    }
+
+    /**
+     * @throws TimeoutException if the batch isn't resolved within maxWaitMS
+     */
+    @Override
+    public Set<String> getUserRoles(String username) throws Exception {
+        try {
+            return getUserRolesAsync(username).get(maxWaitMS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the batch until the deadline, or at most maxWaitMS. The bulk lookup serves
+     * other callers as well, so it runs with the underlying roles provider's own limits rather
+     * than this caller's deadline.
+     *
+     * @throws TimeoutException if the batch isn't resolved by then
+     */
+    @Override
+    public Set<String> getUserRoles(String username, Instant deadline) throws Exception {
+        long remainingMS = Math.max(0, deadline.toEpochMilli() - System.currentTimeMillis());
+        try {
+            return getUserRolesAsync(username).get(Math.min(remainingMS, maxWaitMS), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> getUserRolesAsync(String username) {
+        Objects.requireNonNull(username);
+
+        CompletableFuture<Set<String>> future;
+        Map<String, CompletableFuture<Set<String>>> fullBatch = null;
+
+        synchronized (lock) {
+            future = pending.get(username);
+
+            if (future == null) {
+                future = new CompletableFuture<>();
+                pending.put(username, future);
+
+                if (pending.size() >= maxBatchSize) {
+                    fullBatch = takePending();
+                } else if (scheduledBatch == null) {
+                    try {
+                        scheduledBatch = executor.schedule(() -> resolve(takePendingIfAny()), batchWindowMS,
+                                TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        fail(takePending(), e);
+                    }
+                }
+            }
+        }
+
+        if (fullBatch != null) {
+            Map<String, CompletableFuture<Set<String>>> batch = fullBatch;
+            try {
+                executor.execute(() -> resolve(batch));
+            } catch (RejectedExecutionException e) {
+                fail(batch, e);
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * Bulk lookups are already batched, so they bypass the coalescing window.
+     */
+    @Override
+    public Map<String, Set<String>> getUserRoles(Collection<String> usernames) throws Exception {
+        return rolesProvider.getUserRoles(usernames);
+    }
+
+    @Override
+    public String getChangeMarker(String username) throws Exception {
+        return rolesProvider.getChangeMarker(username);
+    }
+
+    @Override
+    public CompletableFuture<String> getChangeMarkerAsync(String username) {
+        return rolesProvider.getChangeMarkerAsync(username);
+    }
+
+    /**
+     * @param maxWaitMS how long synchronous lookups wait for their batch, see
+     * {@link #DEFAULT_MAX_WAIT_MS}. Should be longer than the roles provider's own timeouts.
+     */
+    public void setMaxWaitMS(long maxWaitMS) {
+        if (maxWaitMS <= 0) {
+            throw new IllegalArgumentException("maxWaitMS must be positive: " + maxWaitMS);
+        }
+        this.maxWaitMS = maxWaitMS;
+    }
+
+    /**
+     * Fails lookups waiting for a batch, and stops the executor if it was created here.
+     */
+    public void close() {
+        fail(takePendingIfAny(), new IllegalStateException("BatchingRolesProvider closed"));
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    private Map<String, CompletableFuture<Set<String>>> takePending() {
+        Map<String, CompletableFuture<Set<String>>> batch = pending;
+        pending = new HashMap<>();
+
+        if (scheduledBatch != null) {
+            scheduledBatch.cancel(false);
+            scheduledBatch = null;
+        }
+
+        return batch;
+    }
+
+    private Map<String, CompletableFuture<Set<String>>> takePendingIfAny() {
+        synchronized (lock) {
+            return takePending();
+        }
+    }
+
+    private void resolve(Map<String, CompletableFuture<Set<String>>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        LOGGER.debug("Resolving batch of {} users", batch.size());
+
+        try {
+            Map<String, Set<String>> rolesByUser = rolesProvider.getUserRoles(batch.keySet());
+
+            for (Map.Entry<String, CompletableFuture<Set<String>>> entry : batch.entrySet()) {
+                Set<String> roles = rolesByUser.get(entry.getKey());
+                entry.getValue().complete(roles != null ? roles : Collections.<String>emptySet());
+            }
+        } catch (Throwable t) {
+            // an Error too, or the callers would wait forever
+            fail(batch, t);
+        }
+    }
+
+    private static void fail(Map<String, CompletableFuture<Set<String>>> batch, Throwable t) {
+        for (CompletableFuture<Set<String>> future : batch.values()) {
+            future.completeExceptionally(t);
+        }
+    }
+}
@@ -18,10 +18,30 @@
  */
 package org.esbtools.auth.util;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Caches results from {@link RolesProvider} and supports fallback to cache.
@@ -36,47 +56,469 @@ public class CachedRolesProvider implements RolesProvider {
 
     private RolesProvider rolesProvider;
     private RolesCache rolesCache;
+    private final Executor refreshExecutor;
+    private final CircuitBreaker circuitBreaker;
+
+    public static final int DEFAULT_REFRESH_THREADS = 2;
+    public static final int DEFAULT_REFRESH_QUEUE_SIZE = 100;
+    /**
+     * How long callers wait for a lookup of the same user already in progress, by default.
+     */
+    public static final long DEFAULT_MAX_WAIT_MS = 60 * 1000;
+
+    private volatile long maxWaitMS = DEFAULT_MAX_WAIT_MS;
+
+    /**
+     * Lookups in progress, by user. Used to make cache misses single-flight.
+     */
+    private final ConcurrentMap<String, CompletableFuture<Set<String>>> loads = new ConcurrentHashMap<>();
 
     public CachedRolesProvider(RolesProvider rolesProvider) {
-        super();
-        this.rolesProvider = rolesProvider;
-        this.rolesCache = new RolesCache(5*60*1000);
+        this(rolesProvider, new RolesCache(5*60*1000));
     }
 
     public CachedRolesProvider(RolesProvider rolesProvider, RolesCache rolesCache) {
+        this(rolesProvider, rolesCache, (CircuitBreaker) null);
+    }
+
+    public CachedRolesProvider(RolesProvider rolesProvider, RolesCache rolesCache, CircuitBreaker circuitBreaker) {
+        this(rolesProvider, rolesCache, rolesCache.getRefreshAfterMS() > 0 ? newRefreshExecutor() : null, circuitBreaker);
+    }
+
+    /**
+     * @param refreshExecutor runs background refreshes of roles when rolesCache refreshes
+     * ahead of expiry (see {@link RolesCache#needsRefresh(String)}). Should be bounded; refreshes
+     * it rejects are skipped.
+     */
+    public CachedRolesProvider(RolesProvider rolesProvider, RolesCache rolesCache, Executor refreshExecutor) {
+        this(rolesProvider, rolesCache, refreshExecutor, null);
+    }
+
+    /**
+     * @param circuitBreaker guards calls to rolesProvider, or {@code null} to always call it.
+     * While the breaker is open, roles are served from the fallback cache right away (or
+     * {@link CircuitBreakerOpenException} is thrown if there are none), without waiting for
+     * rolesProvider to time out.
+     */
+    public CachedRolesProvider(RolesProvider rolesProvider, RolesCache rolesCache, Executor refreshExecutor,
+            CircuitBreaker circuitBreaker) {
         super();
         this.rolesProvider = rolesProvider;
         this.rolesCache = rolesCache;
+        this.refreshExecutor = refreshExecutor;
+        this.circuitBreaker = circuitBreaker;
     }
 
+    private static Executor newRefreshExecutor() {
+        return new ThreadPoolExecutor(1, DEFAULT_REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_REFRESH_QUEUE_SIZE),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-refresh-%d").build());
+    }
+
+    /**
+     * Cache misses are single-flight per user: while a lookup for a user is in progress, other
+     * callers asking for the same user wait for its outcome instead of sending their own,
+     * identical, search. They all see the same roles, fallback roles or error.
+     */
     @Override
     public Set<String> getUserRoles(String username) throws Exception {
+        Set<String> roles = rolesCache.get(username);
+
+        if (roles != null) {
+            LOGGER.debug("Found roles in cache for uid={}", username);
+            refreshIfNeeded(username, roles);
+            return roles;
+        }
+
+        CompletableFuture<Set<String>> load = new CompletableFuture<>();
+        CompletableFuture<Set<String>> inFlight = loads.putIfAbsent(username, load);
+
+        if (inFlight != null) {
+            LOGGER.debug("Cache missed for uid={}. Waiting for lookup in progress.", username);
+            return await(username, inFlight);
+        }
+
+        LOGGER.debug("Cache missed for uid={}. Calling ldap.", username);
+
+        return load(username, load);
+    }
+
+    /**
+     * Like {@link #getUserRoles(String)}, but gives up on a cache miss once the deadline has
+     * passed and returns fallback roles instead (or throws {@link TimeoutException} if there
+     * are none). The deadline is passed on to the roles provider (see
+     * {@link RolesProvider#getUserRoles(String, Instant)}), so a lookup started here is cut
+     * short by it. A lookup of the same user already in progress is only waited for until the
+     * deadline: it runs on with its own caller's limits, and still fills the cache when it
+     * completes.
+     */
+    @Override
+    public Set<String> getUserRoles(String username, Instant deadline) throws Exception {
+        Set<String> roles = rolesCache.get(username);
+
+        if (roles != null) {
+            LOGGER.debug("Found roles in cache for uid={}", username);
+            refreshIfNeeded(username, roles);
+            return roles;
+        }
+
+        CompletableFuture<Set<String>> load = new CompletableFuture<>();
+        CompletableFuture<Set<String>> inFlight = loads.putIfAbsent(username, load);
+
+        if (inFlight == null) {
+            LOGGER.debug("Cache missed for uid={}. Calling ldap until {}.", username, deadline);
+            return load(username, load, deadline);
+        }
+
+        LOGGER.debug("Cache missed for uid={}. Waiting for lookup in progress until {}.", username, deadline);
+        long remainingMS = Math.max(0, deadline.toEpochMilli() - System.currentTimeMillis());
 
         try {
-            Set<String> roles = rolesCache.get(username);
+            return inFlight.get(remainingMS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (TimeoutException e) {
+            LOGGER.debug("Deadline passed while waiting for roles of uid={}, lookup continues in the background.", username);
+            return fallbackOrThrow(username,
+                    new TimeoutException("Deadline passed while looking up roles for " + username));
+        }
+    }
 
+    private Set<String> load(String username, CompletableFuture<Set<String>> load) throws Exception {
+        return load(username, load, null);
+    }
+
+    /**
+     * @param deadline passed on to the roles provider, null for none
+     */
+    private Set<String> load(String username, CompletableFuture<Set<String>> load, Instant deadline) throws Exception {
+        try {
+            Set<String> roles;
+            try {
+                roles = fetch(username, deadline);
+            } catch (Exception e) {
+                roles = fallbackOrThrow(username, e);
+            }
+
+            load.complete(roles);
+            return roles;
+        } catch (Exception e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(username, load);
+        }
+    }
+
+    /**
+     * Reloads roles on the refresh executor if they are due for refresh, unless they are being
+     * looked up already. Callers don't wait for it.
+     */
+    private void refreshIfNeeded(String username, Set<String> cachedRoles) {
+        if (refreshExecutor == null || !rolesCache.needsRefresh(username)) {
+            return;
+        }
+
+        CompletableFuture<Set<String>> load = new CompletableFuture<>();
+        if (loads.putIfAbsent(username, load) != null) {
+            return;
+        }
+
+        LOGGER.debug("Refreshing roles for uid={} in the background.", username);
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    load(username, load);
+                } catch (Exception e) {
+                    LOGGER.warn("Failed to refresh roles for uid={}", username, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Refresh of roles for uid={} skipped, refresh executor is busy.", username);
+            loads.remove(username, load);
+            // anyone who joined in the meantime gets the roles which were just served from cache
+            load.complete(cachedRoles);
+        }
+    }
+
+    /**
+     * Returns cached roles where available and fetches the rest with a single bulk call to the
+     * underlying {@link RolesProvider}, filling the cache in one pass. If the bulk call fails,
+     * roles are taken from the fallback cache; if any of the missed users has no fallback, the
+     * error is rethrown.
+     */
+    @Override
+    public Map<String, Set<String>> getUserRoles(Collection<String> usernames) throws Exception {
+        Map<String, Set<String>> rolesByUser = new HashMap<>();
+        Set<String> missed = new LinkedHashSet<>();
+
+        for (String username : usernames) {
+            Set<String> roles = rolesCache.get(username);
             if (roles != null) {
-                LOGGER.debug("Found roles in cache for uid={}", username);
-                return roles;
+                rolesByUser.put(username, roles);
+            } else {
+                missed.add(username);
+            }
+        }
+
+        if (missed.isEmpty()) {
+            return rolesByUser;
+        }
+
+        LOGGER.debug("Cache missed for {} of {} users. Calling ldap.", missed.size(), usernames.size());
+
+        try {
+            Map<String, Set<String>> fetched = callRolesProvider(() -> rolesProvider.getUserRoles(missed));
+            rolesCache.putAll(fetched);
+            rolesByUser.putAll(fetched);
+
+            return rolesByUser;
+        } catch (Exception e) {
+            for (String username : missed) {
+                Set<String> roles = rolesCache.getFromFallback(username);
+
+                if (roles == null) {
+                    // no fallback, nothing we can do
+                    throw e;
+                }
+
+                rolesByUser.put(username, roles);
             }
 
-            LOGGER.debug("Cache missed for uid={}. Calling ldap.", username);
+            if (e instanceof CircuitBreakerOpenException) {
+                LOGGER.debug("Circuit breaker is open, taking roles for {} from fallback cache.", missed);
+            } else {
+                LOGGER.error("There was an error getting roles for "+missed+", taking roles from fallback cache.", e);
+            }
+            return rolesByUser;
+        }
+    }
+
+    /**
+     * Cache hits complete immediately. On a miss, the roles are fetched using
+     * {@link RolesProvider#getUserRolesAsync(String)} and the fallback cache is consulted if
+     * that fails, like in {@link #getUserRoles(String)}. Lookups of the same user share a single
+     * search, also with concurrent synchronous lookups.
+     */
+    @Override
+    public CompletableFuture<Set<String>> getUserRolesAsync(String username) {
+        Set<String> cached = rolesCache.get(username);
+
+        if (cached != null) {
+            LOGGER.debug("Found roles in cache for uid={}", username);
+            refreshIfNeeded(username, cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<Set<String>> load = new CompletableFuture<>();
+        CompletableFuture<Set<String>> inFlight = loads.putIfAbsent(username, load);
+
+        if (inFlight != null) {
+            LOGGER.debug("Cache missed for uid={}. Waiting for lookup in progress.", username);
+            // don't hand out the shared future itself, so callers can't complete or cancel it for others
+            return inFlight.thenApply(Function.identity());
+        }
+
+        LOGGER.debug("Cache missed for uid={}. Calling ldap asynchronously.", username);
+
+        fetchAsync(username).whenComplete((roles, error) -> {
+            try {
+                if (error == null) {
+                    load.complete(roles);
+                    return;
+                }
+
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+
+                if (cause instanceof Exception) {
+                    load.complete(fallbackOrThrow(username, (Exception) cause));
+                } else {
+                    load.completeExceptionally(cause);
+                }
+            } catch (Exception e) {
+                load.completeExceptionally(e);
+            } finally {
+                loads.remove(username, load);
+            }
+        });
+
+        return load.thenApply(Function.identity());
+    }
+
+    private void checkCircuitBreaker() throws CircuitBreakerOpenException {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            throw new CircuitBreakerOpenException("Circuit breaker is open, not calling roles provider");
+        }
+    }
+
+    private void recordOutcome(long start, Throwable error) {
+        if (circuitBreaker == null) {
+            return;
+        }
+
+        long duration = System.nanoTime() - start;
 
-            roles = rolesProvider.getUserRoles(username);
+        if (error == null) {
+            circuitBreaker.onSuccess(duration);
+        } else {
+            circuitBreaker.onFailure(duration);
+        }
+    }
+
+    /**
+     * Looks up roles for a cache miss and caches them. If rolesCache is revalidating and the
+     * change marker of the user's fallback roles is known, the current marker is looked up
+     * first, and if it did not change, the fallback roles are cached again instead.
+     */
+    private Set<String> fetch(String username, Instant deadline) throws Exception {
+        if (!rolesCache.isRevalidating()) {
+            Set<String> roles = callRolesProvider(() -> lookUp(username, deadline));
             rolesCache.put(username, roles);
+            return roles;
+        }
+
+        return callRolesProvider(() -> {
+            // read before the roles, so a change in between shows as a different marker next time
+            String changeMarker = rolesProvider.getChangeMarker(username);
+            Set<String> revalidated = revalidate(username, changeMarker);
+            if (revalidated != null) {
+                return revalidated;
+            }
 
+            Set<String> roles = lookUp(username, deadline);
+            rolesCache.put(username, roles, changeMarker);
             return roles;
+        });
+    }
+
+    /**
+     * @param deadline passed on to the roles provider, null for none
+     */
+    private Set<String> lookUp(String username, Instant deadline) throws Exception {
+        return deadline == null ? rolesProvider.getUserRoles(username) : rolesProvider.getUserRoles(username, deadline);
+    }
+
+    /**
+     * Same as {@link #fetch(String, Instant)} without a deadline, using the asynchronous lookups of rolesProvider.
+     */
+    private CompletableFuture<Set<String>> fetchAsync(String username) {
+        if (!rolesCache.isRevalidating()) {
+            return callRolesProviderAsync(() -> rolesProvider.getUserRolesAsync(username)).thenApply(roles -> {
+                rolesCache.put(username, roles);
+                return roles;
+            });
+        }
+
+        return callRolesProviderAsync(() -> rolesProvider.getChangeMarkerAsync(username).thenCompose(changeMarker -> {
+            Set<String> revalidated = revalidate(username, changeMarker);
+            if (revalidated != null) {
+                return CompletableFuture.completedFuture(revalidated);
+            }
+
+            return rolesProvider.getUserRolesAsync(username).thenApply(roles -> {
+                rolesCache.put(username, roles, changeMarker);
+                return roles;
+            });
+        }));
+    }
+
+    /**
+     * @return the fallback roles, cached again, if they were looked up at the given marker.
+     * Otherwise null.
+     */
+    private Set<String> revalidate(String username, String changeMarker) {
+        Set<String> fallbackRoles = rolesCache.getFromFallback(username);
+
+        if (changeMarker == null || fallbackRoles == null || !changeMarker.equals(rolesCache.getChangeMarker(username))) {
+            return null;
+        }
+
+        LOGGER.debug("Roles for uid={} unchanged since {}, revalidated.", username, changeMarker);
+        rolesCache.put(username, fallbackRoles, changeMarker);
+        return fallbackRoles;
+    }
+
+    private <T> T callRolesProvider(Callable<T> call) throws Exception {
+        checkCircuitBreaker();
+
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            recordOutcome(start, null);
+            return result;
         } catch (Exception e) {
-            Set<String> roles = rolesCache.getFromFallback(username);
+            recordOutcome(start, e);
+            throw e;
+        }
+    }
 
-            if (roles != null) {
+    private <T> CompletableFuture<T> callRolesProviderAsync(Supplier<CompletableFuture<T>> call) {
+        try {
+            checkCircuitBreaker();
+        } catch (CircuitBreakerOpenException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+
+        long start = System.nanoTime();
+        return call.get().whenComplete((result, error) -> recordOutcome(start, error));
+    }
+
+    private Set<String> fallbackOrThrow(String username, Exception e) throws Exception {
+        Set<String> roles = rolesCache.getFromFallback(username);
+
+        if (roles != null) {
+            if (e instanceof CircuitBreakerOpenException) {
+                LOGGER.debug("Circuit breaker is open, taking roles for {} from fallback cache.", username);
+            } else {
                 LOGGER.error("There was an error getting roles for "+username+", taking roles from fallback cache.", e);
-                return roles;
             }
+            return roles;
+        }
+
+        // no fallback, nothing we can do
+        throw e;
+    }
 
-            // no fallback, nothing we can do
+    /**
+     * Waits at most maxWaitMS for a lookup in progress. If it takes longer, it is assumed to be
+     * stuck: it is dropped so the next caller starts a new lookup, and fallback roles are
+     * returned (or {@link TimeoutException} is thrown if there are none).
+     */
+    private Set<String> await(String username, CompletableFuture<Set<String>> load) throws Exception {
+        try {
+            return load.get(maxWaitMS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
             throw e;
+        } catch (TimeoutException e) {
+            LOGGER.warn("Lookup of roles for uid={} in progress for over {}ms, not waiting for it anymore.",
+                    username, maxWaitMS);
+            loads.remove(username, load);
+            return fallbackOrThrow(username,
+                    new TimeoutException("Timed out waiting for lookup of roles for " + username));
+        }
+    }
+
+    /**
+     * @param maxWaitMS how long to wait for a lookup of the same user which is already in
+     * progress, see {@link #DEFAULT_MAX_WAIT_MS}. Should be longer than the roles provider's own
+     * timeouts.
+     */
+    public void setMaxWaitMS(long maxWaitMS) {
+        if (maxWaitMS <= 0) {
+            throw new IllegalArgumentException("maxWaitMS must be positive: " + maxWaitMS);
         }
+        this.maxWaitMS = maxWaitMS;
     }
 
     protected Set<String> getFallback(String username) {
@@ -0,0 +1,225 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Count based circuit breaker guarding calls to a {@link RolesProvider}.
+ *
+ * <p>While closed, the outcome of the last windowSize calls is recorded. Once at least
+ * minimumCalls were recorded and either the share of failed calls reaches failureRateThreshold
+ * or the share of calls slower than slowCallDurationMS reaches slowCallRateThreshold, the
+ * breaker opens. An open breaker rejects all calls for openDurationMS and then half-opens,
+ * letting halfOpenTrialCalls calls through. If all of them succeed in time the breaker closes,
+ * otherwise it opens again. Trial calls which are not reported within openDurationMS are
+ * given up on, and new trial calls are let through instead, so a lost report can't keep the
+ * breaker half-open for good.
+ *
+ * <p>Callers ask {@link #tryAcquire()} before each call and report every permitted call with
+ * {@link #onSuccess(long)} or {@link #onFailure(long)}.
+ *
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    public static final long DEFAULT_SLOW_CALL_DURATION_MS = 1000;
+    public static final double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 0.5;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30000;
+    public static final int DEFAULT_HALF_OPEN_TRIAL_CALLS = 3;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallDurationNanos;
+    private final double slowCallRateThreshold;
+    private final long openDurationMS;
+    private final int halfOpenTrialCalls;
+
+    // all guarded by this
+    private State state = State.CLOSED;
+    private final byte[] outcomes;
+    private int recordedCalls = 0;
+    private int nextOutcome = 0;
+    private int failedCalls = 0;
+    private int slowCalls = 0;
+    private long openedAt;
+    private long trialsStartedAt;
+    private int trialCallsPermitted = 0;
+    private int trialCallsSucceeded = 0;
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_SLOW_CALL_DURATION_MS, DEFAULT_OPEN_DURATION_MS);
+    }
+
+    public CircuitBreaker(double failureRateThreshold, long slowCallDurationMS, long openDurationMS) {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_CALLS, failureRateThreshold, slowCallDurationMS,
+                DEFAULT_SLOW_CALL_RATE_THRESHOLD, openDurationMS, DEFAULT_HALF_OPEN_TRIAL_CALLS);
+    }
+
+    /**
+     * @param windowSize number of most recent calls the rates are computed over
+     * @param minimumCalls calls needed in the window before the breaker can open
+     * @param failureRateThreshold share of failed calls (0-1) which opens the breaker
+     * @param slowCallDurationMS calls taking at least this long count as slow
+     * @param slowCallRateThreshold share of slow calls (0-1) which opens the breaker
+     * @param openDurationMS how long calls are rejected before trial calls are let through
+     * @param halfOpenTrialCalls calls let through to probe for recovery
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallDurationMS,
+            double slowCallRateThreshold, long openDurationMS, int halfOpenTrialCalls) {
+        if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("Expected 0 < minimumCalls <= windowSize, was minimumCalls="
+                    + minimumCalls + ", windowSize=" + windowSize);
+        }
+        if (halfOpenTrialCalls < 1) {
+            throw new IllegalArgumentException("halfOpenTrialCalls must be positive: " + halfOpenTrialCalls);
+        }
+
+        this.outcomes = new byte[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallDurationNanos = slowCallDurationMS * 1000000;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openDurationMS = openDurationMS;
+        this.halfOpenTrialCalls = halfOpenTrialCalls;
+
+        LOGGER.info("CircuitBreaker initialized with windowSize={}, minimumCalls={}, failureRateThreshold={}, slowCallDurationMS={}, slowCallRateThreshold={}, openDurationMS={}, halfOpenTrialCalls={}",
+                windowSize, minimumCalls, failureRateThreshold, slowCallDurationMS, slowCallRateThreshold, openDurationMS, halfOpenTrialCalls);
+    }
+
+    /**
+     * @return true if the call may go ahead. It must then be reported with
+     * {@link #onSuccess(long)} or {@link #onFailure(long)}.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openDurationMS) {
+                    return false;
+                }
+                LOGGER.info("Circuit breaker half-open, letting {} trial calls through", halfOpenTrialCalls);
+                state = State.HALF_OPEN;
+                startTrials();
+                // fall through
+            case HALF_OPEN:
+            default:
+                if (trialCallsPermitted >= halfOpenTrialCalls
+                        && System.currentTimeMillis() - trialsStartedAt >= openDurationMS) {
+                    LOGGER.warn("Circuit breaker trial calls not reported within {}ms, letting {} new trial calls through",
+                            openDurationMS, halfOpenTrialCalls);
+                    startTrials();
+                }
+                if (trialCallsPermitted < halfOpenTrialCalls) {
+                    trialCallsPermitted++;
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    /**
+     * @param durationNanos how long the call took, slow calls count against the breaker
+     */
+    public synchronized void onSuccess(long durationNanos) {
+        record(durationNanos >= slowCallDurationNanos ? SLOW : 0);
+    }
+
+    public synchronized void onFailure(long durationNanos) {
+        record((byte) (FAILED | (durationNanos >= slowCallDurationNanos ? SLOW : 0)));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(byte outcome) {
+        switch (state) {
+            case OPEN:
+                // a call permitted before the breaker opened, nothing to learn from it
+                return;
+            case HALF_OPEN:
+                if (outcome != 0) {
+                    open("trial call failed or was slow");
+                } else if (++trialCallsSucceeded >= halfOpenTrialCalls) {
+                    LOGGER.info("Circuit breaker closed, trial calls succeeded");
+                    state = State.CLOSED;
+                    resetWindow();
+                }
+                return;
+            case CLOSED:
+            default:
+                if (recordedCalls == outcomes.length) {
+                    forget(outcomes[nextOutcome]);
+                } else {
+                    recordedCalls++;
+                }
+                outcomes[nextOutcome] = outcome;
+                nextOutcome = (nextOutcome + 1) % outcomes.length;
+                failedCalls += (outcome & FAILED) != 0 ? 1 : 0;
+                slowCalls += (outcome & SLOW) != 0 ? 1 : 0;
+
+                if (recordedCalls >= minimumCalls) {
+                    if (failedCalls >= failureRateThreshold * recordedCalls) {
+                        open(failedCalls + " of the last " + recordedCalls + " calls failed");
+                    } else if (slowCalls >= slowCallRateThreshold * recordedCalls) {
+                        open(slowCalls + " of the last " + recordedCalls + " calls were slow");
+                    }
+                }
+        }
+    }
+
+    private void startTrials() {
+        trialsStartedAt = System.currentTimeMillis();
+        trialCallsPermitted = 0;
+        trialCallsSucceeded = 0;
+    }
+
+    private void forget(byte outcome) {
+        failedCalls -= (outcome & FAILED) != 0 ? 1 : 0;
+        slowCalls -= (outcome & SLOW) != 0 ? 1 : 0;
+    }
+
+    private void open(String reason) {
+        LOGGER.warn("Circuit breaker open for {}ms: {}", openDurationMS, reason);
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        recordedCalls = 0;
+        nextOutcome = 0;
+        failedCalls = 0;
+        slowCalls = 0;
+    }
+}
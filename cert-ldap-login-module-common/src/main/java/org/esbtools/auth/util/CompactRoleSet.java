@@ -0,0 +1,105 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of roles stored as bits indexed by {@link RoleDictionary} id. Membership is a
+ * dictionary lookup and a bit test, and the set takes a few words per 64 distinct roles
+ * known to the dictionary instead of an entry per role.
+ *
+ * Created by {@link RoleSetInterner}, which only builds it if all roles have an id.
+ *
+ */
+public final class CompactRoleSet extends AbstractSet<String> {
+
+    private final RoleDictionary dictionary;
+    private final BitSet ids;
+    private final int size;
+    private final int hashCode;
+
+    CompactRoleSet(RoleDictionary dictionary, BitSet ids) {
+        this.dictionary = dictionary;
+        this.ids = ids;
+        this.size = ids.cardinality();
+
+        int hash = 0;
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            hash += dictionary.getRole(id).hashCode();
+        }
+        this.hashCode = hash;
+    }
+
+    @Override
+    public boolean contains(Object role) {
+        int id = dictionary.getId(role);
+        return id >= 0 && ids.get(id);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = ids.nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public String next() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                String role = dictionary.getRole(next);
+                next = ids.nextSetBit(next + 1);
+                return role;
+            }
+        };
+    }
+
+    RoleDictionary getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof CompactRoleSet && ((CompactRoleSet) o).dictionary == dictionary) {
+            return ((CompactRoleSet) o).ids.equals(ids);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
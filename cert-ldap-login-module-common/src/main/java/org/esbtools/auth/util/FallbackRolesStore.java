@@ -0,0 +1,553 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps fallback roles in a memory-mapped file, so they survive restarts: a node restarted
+ * during an ldap outage can still let in users it saw before. See
+ * {@link RolesCache#RolesCache(int, int, boolean, FallbackRolesStore)}.
+ *
+ * The file is an append-only log of uid to roles records, behind a header with the end of
+ * the last complete record. Puts append a record, removals append a tombstone. Changes are
+ * forced to disk in batches, every syncIntervalMS. Once the file is full, it is compacted to
+ * the latest record of each uid. If that leaves no room, the store stays full and puts are
+ * rejected, until enough was appended since for another compaction to be worth it. A
+ * rejected put still removes the roles stored before, so outdated roles are never kept.
+ *
+ * Writes are applied by a single writer thread, so callers (logins, mostly) never wait for
+ * file I/O or compaction. Puts are queued up to {@link #MAX_PENDING_WRITES}, and beyond that
+ * dropped, again removing the roles stored before. Removals and clears are never dropped,
+ * and are seen by {@link #get(String)} at once; puts still queued are not, see
+ * {@link #flush()}.
+ *
+ * Opening the store only maps the file. The index of the records is built on the first
+ * lookup, so startup does not depend on the size of the file; fallback roles are only needed
+ * once ldap fails anyway.
+ *
+ */
+public class FallbackRolesStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FallbackRolesStore.class);
+
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+    public static final int MAX_PENDING_WRITES = 10000;
+
+    private static final int MAGIC = 0x65726F6C;
+    private static final int VERSION = 1;
+    // magic, version, end of records
+    private static final int HEADER_SIZE = 16;
+    private static final int END_OFFSET = 8;
+    private static final int TOMBSTONE = -1;
+    // share of the file which must have been appended since the last compaction for the next
+    // one to be tried, as only that much can be freed
+    private static final int MIN_COMPACTION_GAIN_DIVISOR = 10;
+
+    private final Path file;
+    private final int maxSize;
+    private final long syncIntervalMS;
+    /**
+     * Applies all writes, and syncs.
+     */
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-store-writer-%d").build());
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final AtomicBoolean droppedWritesLogged = new AtomicBoolean();
+    private final AtomicInteger pendingClears = new AtomicInteger();
+    /**
+     * Orders puts and removals of a uid, which may reach the writer out of order.
+     */
+    private final AtomicLong writeSequence = new AtomicLong();
+    /**
+     * Uids removed, or whose put was dropped, to the sequence number of the latest such write,
+     * until a later put of theirs is applied. Their stored roles are not returned, and older
+     * puts still queued are skipped, so removed roles never come back. At most one entry per
+     * uid.
+     */
+    private final ConcurrentMap<String, Long> removed = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private FileChannel channel;
+    // guarded by this
+    private MappedByteBuffer buffer;
+    // guarded by this, offset of the latest record of each uid, null until first lookup
+    private Map<String, Integer> index;
+    // guarded by this
+    private boolean dirty;
+    // guarded by this, end of the records after the last compaction
+    private int compactedEnd = HEADER_SIZE;
+    // guarded by this, whether puts are being rejected for lack of room
+    private boolean full;
+
+    public FallbackRolesStore(Path file) throws IOException {
+        this(file, DEFAULT_MAX_SIZE, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * @param maxSize size the file is mapped with, in bytes. Puts which don't fit after
+     * compaction are rejected.
+     * @param syncIntervalMS how often changes are forced to disk, 0 to force every change
+     */
+    public FallbackRolesStore(Path file, int maxSize, long syncIntervalMS) throws IOException {
+        if (maxSize < HEADER_SIZE) {
+            throw new IllegalArgumentException("maxSize must be at least " + HEADER_SIZE + ": " + maxSize);
+        }
+        if (syncIntervalMS < 0) {
+            throw new IllegalArgumentException("syncIntervalMS must not be negative: " + syncIntervalMS);
+        }
+
+        this.file = file;
+        this.maxSize = maxSize;
+        this.syncIntervalMS = syncIntervalMS;
+
+        map();
+
+        if (syncIntervalMS > 0) {
+            writer.scheduleWithFixedDelay(this::sync, syncIntervalMS, syncIntervalMS, TimeUnit.MILLISECONDS);
+        }
+
+        LOGGER.info("FallbackRolesStore initialized with file={}, maxSize={}, syncIntervalMS={}", file, maxSize, syncIntervalMS);
+    }
+
+    private synchronized void map() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxSize);
+
+        int end = buffer.getInt(END_OFFSET);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || end < HEADER_SIZE || end > maxSize) {
+            LOGGER.info("No fallback roles in {}, starting empty.", file);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            setEnd(HEADER_SIZE);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Stores roles of uid, replacing any stored before. Doesn't wait for it. If the roles can't
+     * be stored, those stored before are removed.
+     */
+    public void put(String uid, Set<String> roles) {
+        long sequence = writeSequence.incrementAndGet();
+        byte[] record = encode(uid, roles);
+        if (record == null) {
+            LOGGER.warn("Roles of uid={} too large to store.", uid);
+            remove(uid, sequence);
+            return;
+        }
+
+        if (pendingWrites.incrementAndGet() > MAX_PENDING_WRITES) {
+            pendingWrites.decrementAndGet();
+            if (droppedWritesLogged.compareAndSet(false, true)) {
+                LOGGER.warn("Fallback roles store {} is {} writes behind, dropping roles. Logged once.",
+                        file, MAX_PENDING_WRITES);
+            }
+            remove(uid, sequence);
+            return;
+        }
+
+        write(() -> {
+            pendingWrites.decrementAndGet();
+            applyPut(uid, record, sequence);
+        });
+    }
+
+    /**
+     * Removes the roles of uid. Not returned by {@link #get(String)} anymore right away,
+     * removed from the file without waiting for it.
+     */
+    public void remove(String uid) {
+        remove(uid, writeSequence.incrementAndGet());
+    }
+
+    private void remove(String uid, long sequence) {
+        boolean[] added = new boolean[1];
+        removed.compute(uid, (key, latest) -> {
+            added[0] = latest == null;
+            return latest == null ? sequence : Math.max(latest, sequence);
+        });
+        // otherwise a tombstone is queued, or was appended after all older puts
+        if (added[0]) {
+            write(() -> applyRemove(uid));
+        }
+    }
+
+    /**
+     * Removes all roles. Not returned by {@link #get(String)} anymore right away, removed from
+     * the file without waiting for it.
+     */
+    public void clear() {
+        pendingClears.incrementAndGet();
+        write(() -> {
+            truncate();
+            pendingClears.decrementAndGet();
+        });
+    }
+
+    /**
+     * Waits for the writes queued so far to be applied, and forces them to disk.
+     */
+    public void flush() throws IOException {
+        try {
+            writer.submit(this::sync).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing fallback roles store " + file);
+        } catch (ExecutionException | RejectedExecutionException e) {
+            throw new IOException("Failed to flush fallback roles store " + file, e);
+        }
+    }
+
+    private void write(Runnable write) {
+        try {
+            writer.execute(() -> {
+                synchronized (this) {
+                    write.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Fallback roles store {} closed, write dropped.", file);
+        }
+    }
+
+    /**
+     * @return the stored roles of uid, null if none. Puts still queued are not seen.
+     */
+    public synchronized Set<String> get(String uid) {
+        if (pendingClears.get() > 0 || removed.containsKey(uid)) {
+            return null;
+        }
+
+        loadIndex();
+
+        Integer offset = index.get(uid);
+        if (offset == null) {
+            return null;
+        }
+
+        ByteBuffer record = record(offset);
+        readString(record); // uid
+        int roleCount = record.getInt();
+        Set<String> roles = new HashSet<>(roleCount * 2);
+        for (int i = 0; i < roleCount; i++) {
+            roles.add(readString(record));
+        }
+        return roles;
+    }
+
+    /**
+     * Forces changes made since the last sync to disk.
+     */
+    public synchronized void sync() {
+        if (dirty) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Applies the writes queued so far, then closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.warn("Fallback roles store {} closed with writes still queued.", file);
+                writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.shutdownNow();
+        }
+
+        synchronized (this) {
+            sync();
+            channel.close();
+        }
+    }
+
+    private void truncate() {
+        setEnd(HEADER_SIZE);
+        compactedEnd = HEADER_SIZE;
+        full = false;
+        if (index != null) {
+            index.clear();
+        }
+        changed();
+    }
+
+    private void applyPut(String uid, byte[] record, long sequence) {
+        boolean[] outdated = new boolean[1];
+        removed.computeIfPresent(uid, (key, latest) -> {
+            outdated[0] = latest > sequence;
+            return outdated[0] ? latest : null;
+        });
+        if (outdated[0]) {
+            return;
+        }
+
+        if (append(uid, record)) {
+            full = false;
+        } else {
+            if (!full) {
+                full = true;
+                LOGGER.warn("Fallback roles store {} is full, rejecting roles (first of uid={}) until there is room again. Consider a larger maxSize.",
+                        file, uid);
+            }
+            // the roles stored before are outdated
+            loadIndex();
+            appendTombstone(uid);
+        }
+    }
+
+    private void applyRemove(String uid) {
+        // unless a later put was applied since
+        if (removed.containsKey(uid)) {
+            appendTombstone(uid);
+        }
+    }
+
+    private void appendTombstone(String uid) {
+        if (index != null && !index.containsKey(uid)) {
+            return;
+        }
+
+        if (!append(uid, encode(uid, null))) {
+            // no room left even for a tombstone, the record is left out of a compaction instead
+            loadIndex();
+            if (index.remove(uid) != null) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * @return false if there is no room for record, even after compaction
+     */
+    private boolean append(String uid, byte[] record) {
+        if (getEnd() + record.length > maxSize) {
+            // only as much as was appended since the last compaction can be freed
+            if (getEnd() - compactedEnd >= (maxSize - HEADER_SIZE) / MIN_COMPACTION_GAIN_DIVISOR) {
+                compact();
+            }
+            if (getEnd() + record.length > maxSize) {
+                return false;
+            }
+        }
+
+        int offset = getEnd();
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(record);
+        // the record only counts once the header points past it
+        setEnd(offset + record.length);
+
+        if (index != null) {
+            if (isTombstone(offset)) {
+                index.remove(uid);
+            } else {
+                index.put(uid, offset);
+            }
+        }
+        changed();
+        return true;
+    }
+
+    private void changed() {
+        dirty = true;
+        if (syncIntervalMS == 0) {
+            sync();
+        }
+    }
+
+    /**
+     * Rewrites the file with only the latest record of each uid, replacing it atomically.
+     */
+    private void compact() {
+        loadIndex();
+
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            int end = HEADER_SIZE;
+            Map<String, Integer> newIndex = new HashMap<>();
+
+            try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                target.position(HEADER_SIZE);
+                for (Map.Entry<String, Integer> entry : index.entrySet()) {
+                    ByteBuffer record = buffer.duplicate();
+                    record.position(entry.getValue());
+                    record.limit(entry.getValue() + 4 + buffer.getInt(entry.getValue()));
+                    newIndex.put(entry.getKey(), end);
+                    end += record.remaining();
+                    while (record.hasRemaining()) {
+                        target.write(record);
+                    }
+                }
+
+                header.putInt(MAGIC).putInt(VERSION).putInt(end).putInt(0).flip();
+                target.write(header, 0);
+                target.force(true);
+            }
+
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            map();
+            index = newIndex;
+            compactedEnd = end;
+            LOGGER.debug("Compacted fallback roles store {} to {} bytes.", file, end);
+        } catch (IOException e) {
+            LOGGER.error("Failed to compact fallback roles store " + file, e);
+            // not retried before as much is appended again
+            compactedEnd = getEnd();
+        }
+    }
+
+    private void loadIndex() {
+        if (index != null) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        index = new HashMap<>();
+        int end = getEnd();
+        int offset = HEADER_SIZE;
+
+        while (offset < end) {
+            int length = offset + 4 <= end ? buffer.getInt(offset) : -1;
+            String uid = null;
+            boolean tombstone = false;
+            if (length >= 0 && offset + 4 + length <= end) {
+                try {
+                    uid = readString(record(offset));
+                    tombstone = isTombstone(offset);
+                } catch (RuntimeException e) {
+                    uid = null;
+                }
+            }
+
+            if (uid == null) {
+                LOGGER.warn("Fallback roles store {} is corrupt at {}, dropping the rest.", file, offset);
+                setEnd(offset);
+                changed();
+                break;
+            }
+
+            if (tombstone) {
+                index.remove(uid);
+            } else {
+                index.put(uid, offset);
+            }
+            offset += 4 + length;
+        }
+
+        LOGGER.info("Loaded {} fallback roles from {} in {}ms", index.size(), file, System.currentTimeMillis() - start);
+    }
+
+    private ByteBuffer record(int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + 4);
+        record.limit(offset + 4 + buffer.getInt(offset));
+        return record;
+    }
+
+    private boolean isTombstone(int offset) {
+        ByteBuffer record = record(offset);
+        readString(record);
+        return record.getInt() == TOMBSTONE;
+    }
+
+    private int getEnd() {
+        return buffer.getInt(END_OFFSET);
+    }
+
+    private void setEnd(int end) {
+        buffer.putInt(END_OFFSET, end);
+    }
+
+    /**
+     * @return length prefixed record, with a tombstone if roles is null. Null if a name is too
+     * long to store.
+     */
+    private static byte[] encode(String uid, Set<String> roles) {
+        byte[][] names = new byte[roles == null ? 1 : roles.size() + 1][];
+        int length = 4;
+
+        names[0] = uid.getBytes(StandardCharsets.UTF_8);
+        if (roles != null) {
+            int i = 1;
+            for (String role : roles) {
+                names[i++] = role.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        for (byte[] name : names) {
+            if (name.length > 0xFFFF) {
+                return null;
+            }
+            length += 2 + name.length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        record.putShort((short) names[0].length).put(names[0]);
+        record.putInt(roles == null ? TOMBSTONE : roles.size());
+        for (int i = 1; i < names.length; i++) {
+            record.putShort((short) names[i].length).put(names[i]);
+        }
+        return record.array();
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
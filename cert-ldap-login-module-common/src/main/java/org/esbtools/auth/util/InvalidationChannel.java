@@ -0,0 +1,286 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invalidates roles in the {@link RolesCache} of every node of a cluster, so that revoked
+ * access does not linger until expiry. {@link #invalidate(String)} and
+ * {@link #invalidateAll()} take effect locally at once, and are sent to the other nodes over
+ * an {@link InvalidationTransport}, which apply them to their own cache.
+ *
+ * Invalidations are coalesced and sent in batches, at most once every batchWindowMS, with at
+ * most maxBatchSize logins, and about {@link #MAX_MESSAGE_SIZE} bytes, per message: revoking the
+ * access of thousands of users is a handful of messages, not thousands.
+ *
+ * If the nodes share a second level cache (see {@link SharedCacheRolesProvider}), the node
+ * invalidating roles invalidates them there too, before its own cache and before telling the
+ * other nodes, so none of them gets the invalidated roles back from it.
+ *
+ */
+public class InvalidationChannel implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvalidationChannel.class);
+
+    public static final long DEFAULT_BATCH_WINDOW_MS = 100;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x52434956;
+
+    private final RolesCache rolesCache;
+    private final SharedCacheRolesProvider sharedCache; // optional
+    private final InvalidationTransport transport;
+    private final long batchWindowMS;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService executor;
+    // tells own messages apart when the transport sends them back
+    private final UUID nodeId = UUID.randomUUID();
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private Set<String> pending = new LinkedHashSet<>();
+    // guarded by lock
+    private boolean pendingAll;
+    // guarded by lock
+    private boolean flushScheduled;
+
+    public InvalidationChannel(RolesCache rolesCache, InvalidationTransport transport) throws IOException {
+        this(rolesCache, transport, DEFAULT_BATCH_WINDOW_MS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public InvalidationChannel(RolesCache rolesCache, InvalidationTransport transport, long batchWindowMS,
+            int maxBatchSize) throws IOException {
+        this(rolesCache, null, transport, batchWindowMS, maxBatchSize);
+    }
+
+    /**
+     * @param sharedCache the second level cache of the nodes, null if none
+     */
+    public InvalidationChannel(RolesCache rolesCache, SharedCacheRolesProvider sharedCache,
+            InvalidationTransport transport, long batchWindowMS, int maxBatchSize) throws IOException {
+        if (batchWindowMS < 0) {
+            throw new IllegalArgumentException("batchWindowMS must not be negative: " + batchWindowMS);
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+
+        this.rolesCache = Objects.requireNonNull(rolesCache);
+        this.sharedCache = sharedCache;
+        this.transport = Objects.requireNonNull(transport);
+        this.batchWindowMS = batchWindowMS;
+        this.maxBatchSize = maxBatchSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-invalidation-%d").build());
+
+        try {
+            transport.start(this::receive);
+        } catch (IOException | RuntimeException e) {
+            // the caller never gets a channel to close
+            executor.shutdownNow();
+            try {
+                transport.close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+
+        LOGGER.info("InvalidationChannel initialized with batchWindowMS={}, maxBatchSize={}", batchWindowMS, maxBatchSize);
+    }
+
+    /**
+     * Invalidates roles of login on all nodes.
+     */
+    public void invalidate(String login) {
+        invalidate(Collections.singleton(login));
+    }
+
+    /**
+     * Invalidates roles of logins on all nodes.
+     */
+    public void invalidate(Collection<String> logins) {
+        for (String login : logins) {
+            if (sharedCache != null) {
+                sharedCache.invalidate(login);
+            }
+            rolesCache.invalidate(login);
+        }
+
+        synchronized (lock) {
+            if (!pendingAll) {
+                pending.addAll(logins);
+            }
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Invalidates all roles on all nodes.
+     */
+    public void invalidateAll() {
+        if (sharedCache != null) {
+            sharedCache.invalidateAll();
+        }
+        rolesCache.invalidateAll();
+
+        synchronized (lock) {
+            // supersedes any logins pending
+            pendingAll = true;
+            pending.clear();
+            scheduleFlush();
+        }
+    }
+
+    // guarded by lock
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            executor.schedule(this::flush, batchWindowMS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        Set<String> logins;
+        boolean all;
+        synchronized (lock) {
+            logins = pending;
+            all = pendingAll;
+            pending = new LinkedHashSet<>();
+            pendingAll = false;
+            flushScheduled = false;
+        }
+
+        if (!all && logins.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (all) {
+                transport.send(encode(true, Collections.<String>emptyList()));
+                LOGGER.debug("Sent invalidation of all roles");
+                return;
+            }
+
+            List<String> batch = new ArrayList<>(Math.min(logins.size(), maxBatchSize));
+            int batchBytes = 0;
+            for (String login : logins) {
+                // at most 3 bytes per char as modified UTF-8
+                int loginBytes = 2 + 3 * login.length();
+                if (!batch.isEmpty() && batchBytes + loginBytes > MAX_MESSAGE_SIZE) {
+                    transport.send(encode(false, batch));
+                    batch.clear();
+                    batchBytes = 0;
+                }
+                batch.add(login);
+                batchBytes += loginBytes;
+                if (batch.size() == maxBatchSize) {
+                    transport.send(encode(false, batch));
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            }
+            if (!batch.isEmpty()) {
+                transport.send(encode(false, batch));
+            }
+            LOGGER.debug("Sent invalidation of {} logins", logins.size());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to send invalidations, other nodes will only see them on expiry.", e);
+        }
+    }
+
+    private void receive(byte[] message) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+            if (in.readInt() != MAGIC) {
+                LOGGER.warn("Ignoring unknown message of {} bytes", message.length);
+                return;
+            }
+            UUID sender = new UUID(in.readLong(), in.readLong());
+            if (sender.equals(nodeId)) {
+                return;
+            }
+
+            if (in.readBoolean()) {
+                LOGGER.debug("Received invalidation of all roles");
+                rolesCache.invalidateAll();
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                rolesCache.invalidate(in.readUTF());
+            }
+            LOGGER.debug("Received invalidation of {} logins", count);
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring corrupt message of {} bytes", message.length, e);
+        }
+    }
+
+    private byte[] encode(boolean all, Collection<String> logins) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(nodeId.getMostSignificantBits());
+        out.writeLong(nodeId.getLeastSignificantBits());
+        out.writeBoolean(all);
+        out.writeInt(logins.size());
+        for (String login : logins) {
+            out.writeUTF(login);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sends pending invalidations and stops.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(batchWindowMS + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        transport.close();
+    }
+}
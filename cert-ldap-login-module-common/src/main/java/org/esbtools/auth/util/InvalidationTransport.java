@@ -0,0 +1,46 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries messages of an {@link InvalidationChannel} between the nodes of a cluster. Delivery
+ * is best effort: roles which miss an invalidation still expire.
+ *
+ * See {@link TcpInvalidationTransport} for the reference implementation.
+ *
+ */
+public interface InvalidationTransport extends Closeable {
+
+    /**
+     * Starts receiving messages from other nodes. Called once, before any message is sent.
+     */
+    public void start(Consumer<byte[]> receiver) throws IOException;
+
+    /**
+     * Sends message to all other nodes. Messages may come back to the sending node.
+     *
+     * @throws IOException if the message could not be sent to any node
+     */
+    public void send(byte[] message) throws IOException;
+
+}
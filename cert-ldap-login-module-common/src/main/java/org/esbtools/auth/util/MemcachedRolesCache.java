@@ -0,0 +1,454 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * {@link SharedRolesCache} kept in memcached, using its text protocol. Roles expire after
+ * expirySeconds, counted by memcached, so all nodes see them expire at the same moment.
+ *
+ * Connections are opened on demand and up to poolSize of them are kept open for reuse. A
+ * connection which fails is closed, and the error is reported to the caller; there is no
+ * retry, since {@link SharedCacheRolesProvider} falls back to ldap anyway.
+ *
+ * Logins are lower-cased, like in {@link RolesCache}. Every value is stamped with the current
+ * generation of the cache, kept under its own key and read along with each get. Values of
+ * other generations are ignored, so {@link #invalidateAll()} only has to set a new
+ * generation, and doesn't touch what else the memcached holds. Generations are random, so if
+ * memcached evicts the generation key, earlier values are just missed.
+ *
+ * Since roles grant access, with a shared secret every value is signed with an HMAC-SHA256
+ * of the value and its key, and values which don't verify are ignored: whoever can write to
+ * the memcached, but doesn't have the secret, can't grant roles, nor copy the roles of one
+ * login to another. Without a secret, values are trusted as they are, so the memcached must
+ * then only be reachable by the nodes.
+ *
+ */
+public class MemcachedRolesCache implements SharedRolesCache, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemcachedRolesCache.class);
+
+    public static final int DEFAULT_POOL_SIZE = 4;
+    public static final int DEFAULT_TIMEOUT_MS = 500;
+    public static final String DEFAULT_KEY_PREFIX = "esbtools-roles:";
+
+    // memcached limit on key length
+    private static final int MAX_KEY_LENGTH = 250;
+    private static final byte[] CRLF = {'\r', '\n'};
+    // can't collide with keys of logins, which are URL encoded or hex after a '#'
+    private static final String GENERATION_KEY = "#generation";
+    private static final String NO_GENERATION = "";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_SIZE = 32;
+
+    private final InetSocketAddress address;
+    private final int expirySeconds;
+    private final int timeoutMS;
+    private final String keyPrefix;
+    private final String generationKey;
+    private final SecretKeySpec secret; // optional
+    private final BlockingQueue<Connection> idle;
+
+    /**
+     * Without a shared secret, values are not authenticated.
+     */
+    public MemcachedRolesCache(String host, int port, int expirySeconds) {
+        this(host, port, expirySeconds, null);
+    }
+
+    /**
+     * @param secret shared by all nodes to sign values, null for none
+     */
+    public MemcachedRolesCache(String host, int port, int expirySeconds, byte[] secret) {
+        this(host, port, expirySeconds, DEFAULT_POOL_SIZE, DEFAULT_TIMEOUT_MS, DEFAULT_KEY_PREFIX, secret);
+    }
+
+    /**
+     * Without a shared secret, values are not authenticated.
+     */
+    public MemcachedRolesCache(String host, int port, int expirySeconds, int poolSize, int timeoutMS, String keyPrefix) {
+        this(host, port, expirySeconds, poolSize, timeoutMS, keyPrefix, null);
+    }
+
+    /**
+     * @param expirySeconds how long roles are kept, up to 30 days
+     * @param timeoutMS connect and read timeout
+     * @param keyPrefix prepended to logins to make keys, to share a memcached with other uses
+     * @param secret shared by all nodes to sign values, null for none
+     */
+    public MemcachedRolesCache(String host, int port, int expirySeconds, int poolSize, int timeoutMS, String keyPrefix,
+            byte[] secret) {
+        if (expirySeconds < 1 || expirySeconds > 30 * 24 * 60 * 60) {
+            throw new IllegalArgumentException("expirySeconds must be between 1 and 30 days: " + expirySeconds);
+        }
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+        }
+        if (secret != null && secret.length == 0) {
+            throw new IllegalArgumentException("secret must not be empty");
+        }
+
+        this.address = new InetSocketAddress(host, port);
+        this.expirySeconds = expirySeconds;
+        this.timeoutMS = timeoutMS;
+        this.keyPrefix = keyPrefix;
+        this.generationKey = keyPrefix + GENERATION_KEY;
+        this.secret = secret != null ? new SecretKeySpec(secret, MAC_ALGORITHM) : null;
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+
+        LOGGER.info("MemcachedRolesCache initialized with address={}, expirySeconds={}, poolSize={}, signed={}", address,
+                expirySeconds, poolSize, secret != null);
+    }
+
+    @Override
+    public Set<String> get(String login) throws IOException {
+        return get(Collections.singleton(login)).get(login);
+    }
+
+    /**
+     * A single multi-key get, of the generation too.
+     */
+    @Override
+    public Map<String, Set<String>> get(Collection<String> logins) throws IOException {
+        Map<String, String> loginsByKey = new HashMap<>();
+        StringBuilder command = new StringBuilder("get ").append(generationKey);
+        for (String login : logins) {
+            String key = key(login);
+            if (loginsByKey.put(key, login) == null) {
+                command.append(' ').append(key);
+            }
+        }
+
+        Map<String, Set<String>> rolesByLogin = new HashMap<>();
+        if (loginsByKey.isEmpty()) {
+            return rolesByLogin;
+        }
+
+        Map<String, byte[]> values = multiGet(command.toString());
+        String generation = generation(values);
+        for (Map.Entry<String, String> login : loginsByKey.entrySet()) {
+            byte[] data = verify(login.getKey(), values.get(login.getKey()));
+            if (data != null) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                // roles put before the last invalidateAll are ignored
+                if (generation.equals(in.readUTF())) {
+                    rolesByLogin.put(login.getValue(), decode(in, data.length));
+                }
+            }
+        }
+        return rolesByLogin;
+    }
+
+    /**
+     * Reads the generation to stamp the roles with first.
+     */
+    @Override
+    public void put(String login, Set<String> roles) throws IOException {
+        String key = key(login);
+        byte[] data = sign(key, encode(generation(multiGet("get " + generationKey)), roles));
+        call("set " + key + " 0 " + expirySeconds + " " + data.length, data, "STORED");
+    }
+
+    @Override
+    public void invalidate(String login) throws IOException {
+        call("delete " + key(login), null, "DELETED", "NOT_FOUND");
+    }
+
+    /**
+     * Starts a new generation. Doesn't expire, so it outlives any roles.
+     */
+    @Override
+    public void invalidateAll() throws IOException {
+        byte[] data = UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII);
+        call("set " + generationKey + " 0 0 " + data.length, data, "STORED");
+    }
+
+    /**
+     * @return data with its signature appended, if signing
+     */
+    private byte[] sign(String key, byte[] data) throws IOException {
+        if (secret == null) {
+            return data;
+        }
+        byte[] signed = Arrays.copyOf(data, data.length + MAC_SIZE);
+        System.arraycopy(mac(key, data, data.length), 0, signed, data.length, MAC_SIZE);
+        return signed;
+    }
+
+    /**
+     * @return data without its signature, null if none or it doesn't verify
+     */
+    private byte[] verify(String key, byte[] signed) throws IOException {
+        if (secret == null || signed == null) {
+            return signed;
+        }
+        int length = signed.length - MAC_SIZE;
+        if (length < 0 || !MessageDigest.isEqual(mac(key, signed, length),
+                Arrays.copyOfRange(signed, length, signed.length))) {
+            LOGGER.warn("Ignoring roles under {} in memcached, not signed with the shared secret", key);
+            return null;
+        }
+        return Arrays.copyOf(signed, length);
+    }
+
+    private byte[] mac(String key, byte[] data, int length) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+            // the key is signed too, so values can't be moved to other logins
+            mac.update(new byte[]{(byte) (keyBytes.length >>> 8), (byte) keyBytes.length});
+            mac.update(keyBytes);
+            mac.update(data, 0, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to sign roles", e);
+        }
+    }
+
+    private String generation(Map<String, byte[]> values) {
+        byte[] generation = values.get(generationKey);
+        return generation != null ? new String(generation, StandardCharsets.US_ASCII) : NO_GENERATION;
+    }
+
+    @Override
+    public void close() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private Map<String, byte[]> multiGet(String command) throws IOException {
+        Connection connection = borrow();
+        try {
+            Map<String, byte[]> values = connection.get(command);
+            release(connection);
+            return values;
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private void call(String command, byte[] data, String... expected) throws IOException {
+        Connection connection = borrow();
+        try {
+            connection.writeLine(command);
+            if (data != null) {
+                connection.writeData(data);
+            }
+            connection.flush();
+
+            String response = connection.readLine();
+            for (String ok : expected) {
+                if (ok.equals(response)) {
+                    release(connection);
+                    return;
+                }
+            }
+            throw new IOException("Unexpected response from memcached to " + command + ": " + response);
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private Connection borrow() throws IOException {
+        Connection connection = idle.poll();
+        return connection != null ? connection : new Connection();
+    }
+
+    private void release(Connection connection) {
+        if (!idle.offer(connection)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Keys can't contain spaces or control characters, so logins are URL encoded, and hashed if
+     * still too long.
+     */
+    private String key(String login) {
+        login = login.toLowerCase(Locale.ROOT);
+        try {
+            String key = keyPrefix + URLEncoder.encode(login, "UTF-8");
+            if (key.length() <= MAX_KEY_LENGTH) {
+                return key;
+            }
+
+            StringBuilder hash = new StringBuilder(keyPrefix).append('#');
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(login.getBytes(StandardCharsets.UTF_8))) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (UnsupportedEncodingException | NoSuchAlgorithmException e) {
+            // both are required of every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encode(String generation, Set<String> roles) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(generation);
+        out.writeInt(roles.size());
+        for (String role : roles) {
+            out.writeUTF(role);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Set<String> decode(DataInputStream in, int length) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > length) {
+            throw new IOException("Corrupt roles in memcached");
+        }
+        Set<String> roles = new HashSet<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            roles.add(in.readUTF());
+        }
+        return roles;
+    }
+
+    private class Connection {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, timeoutMS);
+                socket.setSoTimeout(timeoutMS);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the data of each key found, by key
+         */
+        Map<String, byte[]> get(String command) throws IOException {
+            writeLine(command);
+            flush();
+
+            Map<String, byte[]> values = new HashMap<>();
+            String line;
+            while (!"END".equals(line = readLine())) {
+                // VALUE <key> <flags> <bytes>
+                String[] value = line.split(" ");
+                if (value.length < 4 || !"VALUE".equals(value[0])) {
+                    throw new IOException("Unexpected response from memcached: " + line);
+                }
+                values.put(value[1], readData(Integer.parseInt(value[3])));
+            }
+            return values;
+        }
+
+        void writeLine(String line) throws IOException {
+            out.write(line.getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+        }
+
+        void writeData(byte[] data) throws IOException {
+            out.write(data);
+            out.write(CRLF);
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("Connection to memcached closed");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        byte[] readData(int length) throws IOException {
+            byte[] data = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(data, read, length - read);
+                if (n < 0) {
+                    throw new IOException("Connection to memcached closed");
+                }
+                read += n;
+            }
+            readLine(); // CRLF after the data
+            return data;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to close connection to memcached", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps each distinct role name to a small integer id, so role sets can be stored as bits (see
+ * {@link CompactRoleSet}). Ids are assigned in the order roles are first seen and never
+ * reused, so the dictionary is bounded: once full, new roles get no id.
+ *
+ */
+public class RoleDictionary {
+
+    private final int maxSize;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    // guarded by lock for writes, grown by copying so readers never see a partial array
+    private volatile String[] names = new String[16];
+    // guarded by lock
+    private int size;
+
+    public RoleDictionary(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the id of role, or -1 if it has none
+     */
+    public int getId(Object role) {
+        if (role == null) {
+            return -1;
+        }
+        Integer id = ids.get(role);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return the id of role, assigning the next one if it has none yet. -1 if the dictionary
+     * is full.
+     */
+    public int getOrAssignId(String role) {
+        Integer id = ids.get(role);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (lock) {
+            id = ids.get(role);
+            if (id != null) {
+                return id;
+            }
+            if (size >= maxSize) {
+                return -1;
+            }
+
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, Math.min(maxSize, current.length * 2));
+            }
+            current[size] = role;
+            names = current;
+            ids.put(role, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @return the role with given id, which must have been assigned by this dictionary
+     */
+    public String getRole(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
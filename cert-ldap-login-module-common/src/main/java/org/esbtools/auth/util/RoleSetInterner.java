@@ -0,0 +1,83 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.BitSet;
+import java.util.Set;
+
+/**
+ * Canonicalizes role sets, so that users with the same roles share a single immutable set
+ * instead of each holding their own copy. Most users share one of a few role sets, which
+ * makes the cached roles a fraction of their size.
+ *
+ * Role names are kept in a bounded {@link RoleDictionary}, and sets of roles which all have
+ * an id are stored as a {@link CompactRoleSet}, with constant time membership checks. Once
+ * the dictionary is full, sets with new roles are stored as plain immutable sets instead.
+ * Canonical sets are only held weakly: they are dropped once no cache entry refers to them
+ * anymore.
+ *
+ */
+public class RoleSetInterner {
+
+    public static final int DEFAULT_MAX_ROLE_NAMES = 10000;
+
+    private final RoleDictionary dictionary;
+    private final Interner<Set<String>> roleSets = Interners.newWeakInterner();
+
+    public RoleSetInterner() {
+        this(DEFAULT_MAX_ROLE_NAMES);
+    }
+
+    /**
+     * @param maxRoleNames how many distinct role names to keep in the dictionary
+     */
+    public RoleSetInterner(int maxRoleNames) {
+        dictionary = new RoleDictionary(maxRoleNames);
+    }
+
+    /**
+     * @return the canonical, immutable, instance of roles. Null if roles is null.
+     */
+    public Set<String> intern(Set<String> roles) {
+        if (roles == null) {
+            return null;
+        }
+        if (roles instanceof CompactRoleSet && ((CompactRoleSet) roles).getDictionary() == dictionary) {
+            return roleSets.intern(roles);
+        }
+
+        BitSet ids = new BitSet();
+        for (String role : roles) {
+            int id = dictionary.getOrAssignId(role);
+            if (id < 0) {
+                return roleSets.intern(ImmutableSet.copyOf(roles));
+            }
+            ids.set(id);
+        }
+        return roleSets.intern(new CompactRoleSet(dictionary, ids));
+    }
+
+    public RoleDictionary getDictionary() {
+        return dictionary;
+    }
+}
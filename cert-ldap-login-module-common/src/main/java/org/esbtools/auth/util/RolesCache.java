@@ -18,21 +18,74 @@
  */
 package org.esbtools.auth.util;
 
+import com.google.common.cache.AbstractCache;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * RolesCache contains 2 caches: rolesCache and fallbackRolesCache. Roles put in
- * the former are evicted after few minutes, so that role membership changes in
- * ldap are reflected reasonably quickly. Roles put in the latter are never evicted.
- * FallbackRolesCache is read only when ldap failure is identified.
+ * RolesCache keeps roles for 2 purposes: fresh roles and fallback roles. Fresh roles
+ * are those put less than expiryMS ago, so that role membership changes in
+ * ldap are reflected reasonably quickly. Fallback roles are all roles put, never expired.
+ * Fallback roles are read only when ldap failure is identified.
+ *
+ * Both are views over a single store: each entry carries its write time, and a fresh read
+ * only returns entries younger than expiryMS, so the two share one map and one eviction
+ * policy. {@link #expireAll()} ends the freshness of all entries at once by starting a new
+ * generation, without touching the entries themselves.
+ *
+ * Optionally, roles can be refreshed ahead of expiry: once an entry is older than
+ * refreshAfterMS, {@link #needsRefresh(String)} tells {@link CachedRolesProvider} to
+ * reload it in the background while still serving the cached roles. The entry is
+ * expired after expiryMS regardless, so stale roles never outlive the expiry.
+ *
+ * Optionally, expired roles can be revalidated instead of being looked up again: the change
+ * marker of each user (see {@link RolesProvider#getChangeMarker(String)}) is kept along with
+ * the fallback roles, and on expiry {@link CachedRolesProvider} only looks up the current
+ * marker. If it did not change, the fallback roles are cached again.
+ *
+ * Optionally, fallback roles are also kept in a {@link FallbackRolesStore}, so that they
+ * survive restarts.
+ *
+ * Capacity is a budget of either entries, or of approximate memory, with each entry weighed
+ * by the size of its role set (see {@link EvictionPolicy}). Once over budget, the least
+ * recently used roles are evicted, fresh or fallback alike. {@link #getStats()} tells how
+ * well the budget fits.
+ *
+ * The contents can be written to a snapshot and read into another cache (see
+ * {@link #writeSnapshot(OutputStream)}), to warm up a new node, or the same node on restart.
+ *
+ * Roles are interned (see {@link RoleSetInterner}) as they are put, so all users with the
+ * same roles share a single immutable set.
+ *
+ * Logins are case-insensitive, like uids in ldap: they are lower-cased before use, so roles
+ * put for a login as presented by a certificate are found under the uid as stored in the
+ * directory, and the other way round.
  *
  * @author mpatercz
  *
@@ -40,78 +93,686 @@ import java.util.concurrent.TimeUnit;
 public class RolesCache {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RolesCache.class);
-    private Cache<String, Set<String>> rolesCache; // non-persisted cache
-    private Cache<String, Set<String>> fallbackRolesCache; // non-persisted cache
+    private final Cache<String, Entry> entries; // non-persisted cache
+    private final int expiryMS;
+    private final int refreshAfterMS;
+    private final boolean revalidate;
+    private final AtomicInteger generation = new AtomicInteger(); // entries of earlier generations are expired
+    private final RoleSetInterner roleSetInterner = new RoleSetInterner();
+    private final FallbackRolesStore fallbackStore; // optional
 
-    public static final int maximumSize = 500;
-    public static final int concurrencyLevel = 10;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder fallbackHitCount = new LongAdder();
+    private final LongAdder fallbackMissCount = new LongAdder();
+
+    public static final int maximumSize = 500; // default entry budget
+    public static final long maximumWeight = 1024 * 1024; // default approximate bytes budget, for EvictionPolicy.WEIGHT
+    public static final int concurrencyLevel = 10; // default number of segments
+
+    // approximate heap taken by an entry besides its login and roles: cache entry, Entry and key objects
+    static final int ENTRY_WEIGHT = 128;
+    // charged per role of an entry. Role sets are interned, so most entries share theirs with
+    // other users and hold only a reference to it: this is what makes users with more roles
+    // weigh more, not heap they own. The budget counts a shared set once per user holding it.
+    static final int ROLE_WEIGHT = 8;
+
+    public enum EvictionPolicy {
+        /**
+         * The budget is a number of entries, regardless of their size.
+         */
+        ENTRIES,
+        /**
+         * The budget is an approximate number of bytes of heap, entries weigh more the more
+         * roles they have. Being shared, role sets are over-counted, so the budget errs on the
+         * side of keeping fewer entries. Defaults to {@link RolesCache#maximumWeight}.
+         */
+        WEIGHT
+    }
 
     public RolesCache(int expiryMS) {
-        rolesCache = CacheBuilder.newBuilder()
+        this(expiryMS, 0);
+    }
+
+    /**
+     * @param expiryMS roles older than that are not returned from {@link #get(String)}
+     * @param refreshAfterMS roles older than that are refreshed in the background while still
+     * being served. Disabled if 0 or not lower than expiryMS.
+     */
+    public RolesCache(int expiryMS, int refreshAfterMS) {
+        this(expiryMS, refreshAfterMS, false);
+    }
+
+    /**
+     * @param revalidate whether expired roles are revalidated by their change marker instead of
+     * being looked up again
+     */
+    public RolesCache(int expiryMS, int refreshAfterMS, boolean revalidate) {
+        this(expiryMS, refreshAfterMS, revalidate, null);
+    }
+
+    /**
+     * @param fallbackStore if not null, fallback roles are also kept there, and looked up there
+     * if not in memory, so they survive restarts
+     */
+    public RolesCache(int expiryMS, int refreshAfterMS, boolean revalidate, FallbackRolesStore fallbackStore) {
+        this(expiryMS, refreshAfterMS, revalidate, fallbackStore, EvictionPolicy.ENTRIES, maximumSize, concurrencyLevel);
+    }
+
+    /**
+     * @param evictionPolicy what budget is counted in
+     * @param budget number of entries or approximate bytes kept, depending on evictionPolicy. A
+     * bytes budget must fit at least one entry in each segment.
+     * @param concurrencyLevel number of segments the cache is split in, which bounds how many
+     * threads update it at once. The budget is split evenly between them.
+     */
+    public RolesCache(int expiryMS, int refreshAfterMS, boolean revalidate, FallbackRolesStore fallbackStore,
+            EvictionPolicy evictionPolicy, long budget, int concurrencyLevel) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget must not be negative: " + budget);
+        }
+        if (evictionPolicy == EvictionPolicy.WEIGHT) {
+            // split evenly between segments, rounded up to a power of two, an entry larger than
+            // its segment's share is never kept
+            int segments = 1;
+            while (segments < concurrencyLevel) {
+                segments <<= 1;
+            }
+            if (budget < (long) segments * ENTRY_WEIGHT) {
+                throw new IllegalArgumentException("budget must be at least " + (long) segments * ENTRY_WEIGHT
+                        + " bytes for concurrencyLevel " + concurrencyLevel + ": " + budget);
+            }
+        }
+
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
                 .concurrencyLevel(concurrencyLevel)
-                .maximumSize(maximumSize)
-                .expireAfterWrite(expiryMS, TimeUnit.MILLISECONDS)
+                .recordStats();
+        if (evictionPolicy == EvictionPolicy.WEIGHT) {
+            builder.maximumWeight(budget).weigher(new Weigher<String, Entry>() {
+                @Override
+                public int weigh(String login, Entry entry) {
+                    return RolesCache.weigh(login, entry.roles);
+                }
+            });
+        } else {
+            builder.maximumSize(budget);
+        }
+
+        entries = builder
                 .removalListener(
-                        new RemovalListener<String, Set<String>>() {
+                        new RemovalListener<String, Entry>() {
                     {
                         LOGGER.debug("Removal Listener created");
                     }
 
                     @Override
-                    public void onRemoval(RemovalNotification<String, Set<String>> notification) {
+                    public void onRemoval(RemovalNotification<String, Entry> notification) {
                         LOGGER.debug("This data from " + notification.getKey() + " evacuated due:" + notification.getCause());
                     }
                 }
                 ).build();
 
-        fallbackRolesCache = CacheBuilder.newBuilder()
-                .concurrencyLevel(concurrencyLevel) // handle 10 concurrent request without a problem
-                .maximumSize(maximumSize) // Hold 500 sessions before remove them
-                .build();
+        this.expiryMS = expiryMS;
+        this.refreshAfterMS = refreshAfterMS > 0 && refreshAfterMS < expiryMS ? refreshAfterMS : 0;
+        this.revalidate = revalidate;
+        this.fallbackStore = fallbackStore;
+
+        LOGGER.info("RolesCache initialized with expiry={}, refreshAfter={}, revalidate={}, persistent fallback={}, "
+                + "evictionPolicy={}, budget={}, concurrencyLevel={}", expiryMS, this.refreshAfterMS, revalidate,
+                fallbackStore != null, evictionPolicy, budget, concurrencyLevel);
+    }
 
-        LOGGER.info("RolesCache initialized with expiry={}", expiryMS);
+    /**
+     * @return approximate bytes of heap taken by an entry of login with roles
+     */
+    static int weigh(String login, Set<String> roles) {
+        return ENTRY_WEIGHT + 2 * login.length() + (roles == null ? 0 : ROLE_WEIGHT * roles.size());
     }
 
     public void put(String login, Set<String> roles) {
+        put(login, roles, null);
+    }
+
+    /**
+     * Like {@link #put(String, Set)}, also keeping the change marker the roles were looked up
+     * at, if revalidating. A null marker forgets the previous one.
+     */
+    public void put(String login, Set<String> roles, String changeMarker) {
         LOGGER.debug("RolesCache#put was invoked");
-        rolesCache.put(login, roles);
-        fallbackRolesCache.put(login, roles);
+        login = key(login);
+        Entry entry = newEntry(roles, System.currentTimeMillis(), changeMarker);
+        store(login, entry, entries.asMap().put(login, entry));
+    }
+
+    public void putAll(Map<String, Set<String>> rolesByLogin) {
+        LOGGER.debug("RolesCache#putAll was invoked");
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Set<String>> roles : rolesByLogin.entrySet()) {
+            String login = key(roles.getKey());
+            Entry entry = newEntry(roles.getValue(), now, null);
+            store(login, entry, entries.asMap().put(login, entry));
+        }
+    }
+
+    /**
+     * Writes the roles just put through to the fallback store, unless they did not change.
+     */
+    private void store(String login, Entry entry, Entry previous) {
+        if (fallbackStore != null && (previous == null || previous.roles != entry.roles)) {
+            fallbackStore.put(login, entry.roles);
+        }
+    }
+
+    private Entry newEntry(Set<String> roles, long writeTime, String changeMarker) {
+        return new Entry(roleSetInterner.intern(roles), writeTime, revalidate ? changeMarker : null, generation.get());
     }
 
     public Set<String> get(String login) {
         LOGGER.debug("RolesCache#get was invoked");
-        return rolesCache.getIfPresent(login);
+        Entry entry = entries.getIfPresent(key(login));
+        if (entry != null && isFresh(entry, System.currentTimeMillis())) {
+            hitCount.increment();
+            return entry.roles;
+        }
+        missCount.increment();
+        return null;
+    }
+
+    /**
+     * @return true if the roles cached for login are due for a background refresh
+     */
+    public boolean needsRefresh(String login) {
+        if (refreshAfterMS == 0) {
+            return false;
+        }
+
+        Entry entry = entries.getIfPresent(key(login));
+        long now = System.currentTimeMillis();
+        return entry != null && isFresh(entry, now) && now - entry.writeTime >= refreshAfterMS;
+    }
+
+    private boolean isFresh(Entry entry, long now) {
+        return entry.generation == generation.get() && now - entry.writeTime < expiryMS;
+    }
+
+    public int getRefreshAfterMS() {
+        return refreshAfterMS;
+    }
+
+    public boolean isRevalidating() {
+        return revalidate;
+    }
+
+    /**
+     * @return the change marker of the fallback roles of login, null if unknown or not
+     * revalidating
+     */
+    public String getChangeMarker(String login) {
+        Entry entry = entries.getIfPresent(key(login));
+        return entry != null ? entry.changeMarker : null;
     }
 
     public Set<String> getFromFallback(String login) {
         LOGGER.debug("RolesCache#getFromFallback was invoked");
-        return fallbackRolesCache.getIfPresent(login);
+        login = key(login);
+        Entry entry = entries.getIfPresent(login);
+        if (entry != null) {
+            fallbackHitCount.increment();
+            return entry.roles;
+        }
+
+        if (fallbackStore != null) {
+            Set<String> roles = roleSetInterner.intern(fallbackStore.get(login));
+            if (roles != null) {
+                LOGGER.debug("Fallback roles for uid={} taken from the fallback store", login);
+                // never fresh, the roles may be from before a restart
+                entries.asMap().putIfAbsent(login, new Entry(roles, 0, null, generation.get()));
+                fallbackHitCount.increment();
+                return roles;
+            }
+        }
+        fallbackMissCount.increment();
+        return null;
+    }
+
+    public RolesCacheStats getStats() {
+        return new RolesCacheStats(hitCount.sum(), missCount.sum(), fallbackHitCount.sum(), fallbackMissCount.sum(),
+                entries.stats().evictionCount(), entries.size());
     }
 
+    /**
+     * Removes the roles of login, fallback roles included.
+     */
     public void invalidate(String login) {
         LOGGER.debug("RolesCache#invalidate was invoked");
-        rolesCache.invalidate(login);
-        fallbackRolesCache.invalidate(login);
+        login = key(login);
+        // the store first, so a concurrent fallback lookup can't load the roles back
+        if (fallbackStore != null) {
+            fallbackStore.remove(login);
+        }
+        entries.invalidate(login);
     }
 
-    public Cache<String, Set<String>> getRolesCache() {
-        return rolesCache;
+    /**
+     * Expires the roles of login, but keeps them as fallback roles, like {@link #expireAll()}
+     * does for all roles. The change marker is forgotten, so the roles are looked up again
+     * instead of being revalidated.
+     */
+    public void expire(String login) {
+        LOGGER.debug("RolesCache#expire was invoked");
+        entries.asMap().computeIfPresent(key(login),
+                (k, entry) -> new Entry(entry.roles, 0, null, entry.generation));
     }
 
-    public Cache<String, Set<String>> getFallbackRolesCache() {
-        return fallbackRolesCache;
+    /**
+     * Expires all roles, but keeps fallback roles. Used when roles may have changed without
+     * notice, so they are looked up again but can still be served if ldap fails.
+     */
+    public void expireAll() {
+        LOGGER.debug("RolesCache#expireAll was invoked");
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Writes all roles, with their write times and change markers, to out in a compact binary
+     * format (see {@link RolesCacheSnapshot}). Expired roles are written as never fresh, so
+     * they only serve as fallback once read.
+     */
+    public void writeSnapshot(OutputStream out) throws IOException {
+        RolesCacheSnapshot.Writer writer = new RolesCacheSnapshot.Writer(out);
+        int currentGeneration = generation.get();
+        int count = 0;
+
+        for (Map.Entry<String, Entry> entry : entries.asMap().entrySet()) {
+            Entry value = entry.getValue();
+            writer.write(entry.getKey(), value.roles, value.generation == currentGeneration ? value.writeTime : 0,
+                    value.changeMarker);
+            count++;
+        }
+
+        writer.finish();
+        LOGGER.info("Wrote snapshot of {} roles", count);
+    }
+
+    /**
+     * Reads roles from a snapshot written by {@link #writeSnapshot(OutputStream)}, record by
+     * record. Roles keep their write time, so they are only fresh for what remains of the
+     * expiry, and they don't replace roles written more recently.
+     *
+     * @return the number of roles taken from the snapshot
+     * @throws IOException if in is not a snapshot or is corrupt. Roles read up to that point
+     * are kept.
+     */
+    public int readSnapshot(InputStream in) throws IOException {
+        RolesCacheSnapshot.Reader reader = new RolesCacheSnapshot.Reader(in, roleSetInterner);
+        Map<String, Entry> map = entries.asMap();
+        int count = 0;
+
+        while (reader.next()) {
+            String login = key(reader.getLogin());
+            Entry entry = new Entry(reader.getRoles(), reader.getWriteTime(),
+                    revalidate ? reader.getChangeMarker() : null, generation.get());
+
+            Entry existing = map.get(login);
+            while (existing == null || existing.writeTime < entry.writeTime) {
+                if (existing == null ? map.putIfAbsent(login, entry) == null : map.replace(login, existing, entry)) {
+                    store(login, entry, existing);
+                    count++;
+                    break;
+                }
+                existing = map.get(login);
+            }
+        }
+
+        LOGGER.info("Read {} roles from snapshot", count);
+        return count;
     }
 
     public void invalidateAll() {
-        rolesCache.invalidateAll();
-        fallbackRolesCache.invalidateAll();
+        if (fallbackStore != null) {
+            fallbackStore.clear();
+        }
+        entries.invalidateAll();
+    }
+
+    /**
+     * @return a view of the fresh roles, as a cache. Invalidating, or removing from its map,
+     * only expires roles.
+     * @deprecated fresh and fallback roles are kept in a single store now, use the methods of
+     * RolesCache instead. To be removed in the next release.
+     */
+    @Deprecated
+    public Cache<String, Set<String>> getRolesCache() {
+        return new View(false);
     }
 
+    /**
+     * @return a view of the fallback roles, as a cache. Roles put are never fresh.
+     * @deprecated fresh and fallback roles are kept in a single store now, use the methods of
+     * RolesCache instead. To be removed in the next release.
+     */
+    @Deprecated
+    public Cache<String, Set<String>> getFallbackRolesCache() {
+        return new View(true);
+    }
+
+    /**
+     * Copies the roles in rolesCache into this cache, as fresh roles. The given cache itself
+     * is not used.
+     * @deprecated fresh and fallback roles are kept in a single store now, with its budget set
+     * by the constructor. To be removed in the next release.
+     */
+    @Deprecated
     public void setRolesCache(Cache<String, Set<String>> rolesCache) {
-        this.rolesCache = rolesCache;
+        putAll(rolesCache.asMap());
     }
 
+    /**
+     * Copies the roles in fallbackRolesCache into this cache, as fallback roles. The given cache
+     * itself is not used.
+     * @deprecated fresh and fallback roles are kept in a single store now, with its budget set
+     * by the constructor. To be removed in the next release.
+     */
+    @Deprecated
     public void setFallbackRolesCache(Cache<String, Set<String>> fallbackRolesCache) {
-        this.fallbackRolesCache = fallbackRolesCache;
+        Cache<String, Set<String>> view = getFallbackRolesCache();
+        fallbackRolesCache.asMap().forEach(view::put);
+    }
+
+    /**
+     * Fresh or fallback roles as a {@link Cache}, for {@link #getRolesCache()} and
+     * {@link #getFallbackRolesCache()}.
+     */
+    private final class View extends AbstractCache<String, Set<String>> {
+        private final boolean fallback;
+        private final ConcurrentMap<String, Set<String>> map = new MapView();
+
+        View(boolean fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public Set<String> getIfPresent(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            Entry entry = entries.getIfPresent(key((String) key));
+            return isVisible(entry, System.currentTimeMillis()) ? entry.roles : null;
+        }
+
+        @Override
+        public Set<String> get(String key, Callable<? extends Set<String>> loader) throws ExecutionException {
+            Set<String> roles = getIfPresent(key);
+            if (roles != null) {
+                return roles;
+            }
+            try {
+                roles = loader.call();
+            } catch (RuntimeException e) {
+                throw new UncheckedExecutionException(e);
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            } catch (Error e) {
+                throw new ExecutionError(e);
+            }
+            if (roles == null) {
+                throw new CacheLoader.InvalidCacheLoadException("loader returned no roles for " + key);
+            }
+            Set<String> existing = map.putIfAbsent(key, roles);
+            return existing != null ? existing : roles;
+        }
+
+        @Override
+        public void put(String key, Set<String> value) {
+            map.put(key, value);
+        }
+
+        @Override
+        public void invalidate(Object key) {
+            if (!(key instanceof String)) {
+                return;
+            }
+            if (fallback) {
+                RolesCache.this.invalidate((String) key);
+            } else {
+                expire((String) key);
+            }
+        }
+
+        @Override
+        public void invalidateAll() {
+            if (fallback) {
+                RolesCache.this.invalidateAll();
+            } else {
+                expireAll();
+            }
+        }
+
+        @Override
+        public long size() {
+            if (fallback) {
+                return entries.size();
+            }
+            long now = System.currentTimeMillis();
+            return entries.asMap().values().stream().filter(entry -> isFresh(entry, now)).count();
+        }
+
+        @Override
+        public CacheStats stats() {
+            return entries.stats();
+        }
+
+        @Override
+        public void cleanUp() {
+            entries.cleanUp();
+        }
+
+        @Override
+        public ConcurrentMap<String, Set<String>> asMap() {
+            return map;
+        }
+
+        private boolean isVisible(Entry entry, long now) {
+            return entry != null && (fallback || isFresh(entry, now));
+        }
+
+        /**
+         * Replaces the entry of login with roles, or takes the roles of login out of this view
+         * if null, unless the entry is no longer current.
+         * @return false if the entry changed meanwhile
+         */
+        private boolean replace(String login, Entry current, Set<String> roles) {
+            ConcurrentMap<String, Entry> map = entries.asMap();
+            if (roles != null) {
+                // roles put in the fallback view are never fresh
+                Entry entry = newEntry(roles, fallback ? 0 : System.currentTimeMillis(), null);
+                if (current == null ? map.putIfAbsent(login, entry) == null : map.replace(login, current, entry)) {
+                    store(login, entry, current);
+                    return true;
+                }
+                return false;
+            }
+
+            if (current == null) {
+                return true;
+            }
+            if (!fallback) {
+                return map.replace(login, current, new Entry(current.roles, 0, null, current.generation));
+            }
+            // out of the store first, so they are not read back from there meanwhile
+            if (fallbackStore != null) {
+                fallbackStore.remove(login);
+            }
+            if (map.remove(login, current)) {
+                return true;
+            }
+            Entry changed = map.get(login);
+            if (changed != null) {
+                store(login, changed, null);
+            }
+            return false;
+        }
+
+        /**
+         * The roles of this view as a map. Updates are atomic with respect to each other and to
+         * the other methods of RolesCache.
+         */
+        private final class MapView extends AbstractMap<String, Set<String>>
+                implements ConcurrentMap<String, Set<String>> {
+
+            @Override
+            public Set<String> get(Object key) {
+                return getIfPresent(key);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return getIfPresent(key) != null;
+            }
+
+            @Override
+            public Set<String> put(String key, Set<String> value) {
+                Objects.requireNonNull(value);
+                String login = key(key);
+                while (true) {
+                    RolesCache.Entry current = entries.getIfPresent(login);
+                    if (View.this.replace(login, current, value)) {
+                        return isVisible(current, System.currentTimeMillis()) ? current.roles : null;
+                    }
+                }
+            }
+
+            @Override
+            public Set<String> putIfAbsent(String key, Set<String> value) {
+                Objects.requireNonNull(value);
+                String login = key(key);
+                while (true) {
+                    RolesCache.Entry current = entries.getIfPresent(login);
+                    if (isVisible(current, System.currentTimeMillis())) {
+                        return current.roles;
+                    }
+                    if (View.this.replace(login, current, value)) {
+                        return null;
+                    }
+                }
+            }
+
+            @Override
+            public Set<String> remove(Object key) {
+                return key instanceof String ? update((String) key, null, null) : null;
+            }
+
+            @Override
+            public boolean remove(Object key, Object value) {
+                return key instanceof String && value != null && update((String) key, value, null) != null;
+            }
+
+            @Override
+            public Set<String> replace(String key, Set<String> value) {
+                return update(key, null, Objects.requireNonNull(value));
+            }
+
+            @Override
+            public boolean replace(String key, Set<String> oldValue, Set<String> newValue) {
+                return update(key, Objects.requireNonNull(oldValue), Objects.requireNonNull(newValue)) != null;
+            }
+
+            /**
+             * Replaces the roles of key with roles, or takes them out of this view if null, if
+             * there are any and they equal expected, unless null.
+             * @return the roles replaced, null if none
+             */
+            private Set<String> update(String key, Object expected, Set<String> roles) {
+                String login = key(key);
+                while (true) {
+                    RolesCache.Entry current = entries.getIfPresent(login);
+                    if (!isVisible(current, System.currentTimeMillis())
+                            || (expected != null && !current.roles.equals(expected))) {
+                        return null;
+                    }
+                    if (View.this.replace(login, current, roles)) {
+                        return current.roles;
+                    }
+                }
+            }
+
+            @Override
+            public int size() {
+                return (int) Math.min(Integer.MAX_VALUE, View.this.size());
+            }
+
+            @Override
+            public void clear() {
+                invalidateAll();
+            }
+
+            @Override
+            public Set<Map.Entry<String, Set<String>>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Set<String>>>() {
+                    @Override
+                    public Iterator<Map.Entry<String, Set<String>>> iterator() {
+                        Iterator<Map.Entry<String, RolesCache.Entry>> all = entries.asMap().entrySet().iterator();
+                        return new Iterator<Map.Entry<String, Set<String>>>() {
+                            private Map.Entry<String, Set<String>> next;
+                            private Map.Entry<String, Set<String>> last;
+
+                            @Override
+                            public boolean hasNext() {
+                                long now = System.currentTimeMillis();
+                                while (next == null && all.hasNext()) {
+                                    Map.Entry<String, RolesCache.Entry> entry = all.next();
+                                    if (isVisible(entry.getValue(), now)) {
+                                        next = new SimpleImmutableEntry<>(entry.getKey(), entry.getValue().roles);
+                                    }
+                                }
+                                return next != null;
+                            }
+
+                            @Override
+                            public Map.Entry<String, Set<String>> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                last = next;
+                                next = null;
+                                return last;
+                            }
+
+                            @Override
+                            public void remove() {
+                                if (last == null) {
+                                    throw new IllegalStateException();
+                                }
+                                MapView.this.remove(last.getKey(), last.getValue());
+                                last = null;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return MapView.this.size();
+                    }
+                };
+            }
+        }
+    }
+
+    private static String key(String login) {
+        return login.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Entry {
+        final Set<String> roles;
+        final long writeTime;
+        final String changeMarker;
+        final int generation;
+
+        Entry(Set<String> roles, long writeTime, String changeMarker, int generation) {
+            this.roles = roles;
+            this.writeTime = writeTime;
+            this.changeMarker = changeMarker;
+            this.generation = generation;
+        }
     }
 }
@@ -0,0 +1,218 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary snapshot format of {@link RolesCache} contents, see
+ * {@link RolesCache#writeSnapshot(OutputStream)}.
+ *
+ * A snapshot is a header (magic, version) followed by one record per user and an end tag.
+ * Role names and role sets are written in full the first time they appear and referred to by
+ * number afterwards, so a snapshot of many users sharing a few role sets is little more than
+ * their uids and write times. Both sides only keep those tables, never the whole snapshot.
+ *
+ */
+final class RolesCacheSnapshot {
+
+    static final int MAGIC = 0x52435348;
+    static final int VERSION = 1;
+
+    private static final int END = 0;
+    private static final int RECORD = 1;
+
+    private RolesCacheSnapshot() {
+    }
+
+    static final class Writer {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> roleNames = new HashMap<>();
+        private final Map<Set<String>, Integer> roleSets = new HashMap<>();
+
+        Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+        }
+
+        void write(String login, Set<String> roles, long writeTime, String changeMarker) throws IOException {
+            out.writeByte(RECORD);
+            out.writeUTF(login);
+            out.writeLong(writeTime);
+            out.writeBoolean(changeMarker != null);
+            if (changeMarker != null) {
+                out.writeUTF(changeMarker);
+            }
+
+            // 0 for a new set, otherwise 1 + the number of a set written before
+            Integer roleSet = roleSets.get(roles);
+            if (roleSet != null) {
+                writeVarInt(roleSet + 1);
+                return;
+            }
+
+            roleSets.put(roles, roleSets.size());
+            writeVarInt(0);
+            writeVarInt(roles.size());
+            for (String role : roles) {
+                // same for names
+                Integer roleName = roleNames.get(role);
+                if (roleName != null) {
+                    writeVarInt(roleName + 1);
+                } else {
+                    roleNames.put(role, roleNames.size());
+                    writeVarInt(0);
+                    out.writeUTF(role);
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            out.writeByte(END);
+            out.flush();
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+    static final class Reader {
+
+        private final DataInputStream in;
+        private final RoleSetInterner roleSetInterner;
+        private final List<String> roleNames = new ArrayList<>();
+        private final List<Set<String>> roleSets = new ArrayList<>();
+
+        private String login;
+        private Set<String> roles;
+        private long writeTime;
+        private String changeMarker;
+
+        /**
+         * @param roleSetInterner interns the role sets read, each only once
+         */
+        Reader(InputStream in, RoleSetInterner roleSetInterner) throws IOException {
+            this.in = new DataInputStream(in);
+            this.roleSetInterner = roleSetInterner;
+
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a roles cache snapshot");
+            }
+            int version = this.in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported roles cache snapshot version " + version);
+            }
+        }
+
+        /**
+         * @return false at the end of the snapshot, otherwise the next record is available from
+         * the getters
+         */
+        boolean next() throws IOException {
+            int tag = in.readByte();
+            if (tag == END) {
+                return false;
+            }
+            if (tag != RECORD) {
+                throw new IOException("Corrupt roles cache snapshot, unknown tag " + tag);
+            }
+
+            login = in.readUTF();
+            writeTime = in.readLong();
+            changeMarker = in.readBoolean() ? in.readUTF() : null;
+
+            int roleSet = readVarInt();
+            if (roleSet > 0) {
+                roles = get(roleSets, roleSet - 1);
+                return true;
+            }
+
+            int size = readVarInt();
+            Set<String> newRoles = new HashSet<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                int roleName = readVarInt();
+                if (roleName > 0) {
+                    newRoles.add(get(roleNames, roleName - 1));
+                } else {
+                    String role = in.readUTF();
+                    roleNames.add(role);
+                    newRoles.add(role);
+                }
+            }
+            roles = roleSetInterner.intern(newRoles);
+            roleSets.add(roles);
+            return true;
+        }
+
+        String getLogin() {
+            return login;
+        }
+
+        Set<String> getRoles() {
+            return roles;
+        }
+
+        long getWriteTime() {
+            return writeTime;
+        }
+
+        String getChangeMarker() {
+            return changeMarker;
+        }
+
+        private static <T> T get(List<T> table, int index) throws IOException {
+            if (index >= table.size()) {
+                throw new IOException("Corrupt roles cache snapshot, unknown reference " + index);
+            }
+            return table.get(index);
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt roles cache snapshot, bad number");
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+/**
+ * Statistics of a {@link RolesCache} since it was created, to tune its budget with. See
+ * {@link RolesCache#getStats()}.
+ *
+ */
+public final class RolesCacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long fallbackHitCount;
+    private final long fallbackMissCount;
+    private final long evictionCount;
+    private final long size;
+
+    RolesCacheStats(long hitCount, long missCount, long fallbackHitCount, long fallbackMissCount, long evictionCount,
+            long size) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.fallbackHitCount = fallbackHitCount;
+        this.fallbackMissCount = fallbackMissCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+    }
+
+    /**
+     * @return reads which found fresh roles
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return reads which found no roles, or only expired ones
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return share of reads which found fresh roles, 1 if there were no reads
+     */
+    public double getHitRate() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * @return fallback reads which found roles
+     */
+    public long getFallbackHitCount() {
+        return fallbackHitCount;
+    }
+
+    /**
+     * @return fallback reads which found no roles: users turned away while ldap failed
+     */
+    public long getFallbackMissCount() {
+        return fallbackMissCount;
+    }
+
+    /**
+     * @return roles evicted to stay within the budget
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return approximate number of users with roles in the cache, fresh or not
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "RolesCacheStats [hitCount=" + hitCount + ", missCount=" + missCount + ", hitRate=" + getHitRate()
+                + ", fallbackHitCount=" + fallbackHitCount + ", fallbackMissCount=" + fallbackMissCount
+                + ", evictionCount=" + evictionCount + ", size=" + size + "]";
+    }
+}
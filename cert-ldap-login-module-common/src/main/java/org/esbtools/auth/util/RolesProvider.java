@@ -18,7 +18,15 @@
  */
 package org.esbtools.auth.util;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Roles provider.
@@ -37,4 +45,125 @@ public interface RolesProvider {
      */
     public Set<String> getUserRoles(String username) throws Exception;
 
+    /**
+     * Get roles for given user, giving up once the deadline has passed.
+     *
+     * <p>The default implementation waits for {@link #getUserRolesAsync(String)} until the
+     * deadline. Implementations backed by a remote service should override it to pass the
+     * remaining time on to the service.
+     *
+     * <p>Whatever the implementation, running out of time is reported with
+     * {@link TimeoutException}, not with a service specific error, so callers can tell it
+     * apart from other failures. The service's own error may be its cause.
+     *
+     * @param username The user name to get roles for
+     * @param deadline The time by which the roles are needed
+     * @return A set of roles. If no roles are found, returns an empty set. Never returns null.
+     * @throws TimeoutException if the deadline passed before the roles were acquired
+     * @throws Exception if any issue is encounter while acquiring the roles
+     */
+    public default Set<String> getUserRoles(String username, Instant deadline) throws Exception {
+        long remainingMS = Math.max(0, deadline.toEpochMilli() - System.currentTimeMillis());
+
+        try {
+            return getUserRolesAsync(username).get(remainingMS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get roles for given user without waiting for the result.
+     *
+     * <p>The default implementation simply calls {@link #getUserRoles(String)} on the calling
+     * thread. Implementations backed by a remote service should override it to avoid blocking.
+     *
+     * @param username The user name to get roles for
+     * @return A future completed with the same set {@link #getUserRoles(String)} would return, or
+     * completed exceptionally with the issue encountered while acquiring the roles.
+     */
+    public default CompletableFuture<Set<String>> getUserRolesAsync(String username) {
+        CompletableFuture<Set<String>> future = new CompletableFuture<>();
+        try {
+            future.complete(getUserRoles(username));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Get roles for many users at once.
+     *
+     * <p>The default implementation calls {@link #getUserRoles(String)} for each user.
+     * Implementations backed by a remote service should override it to fetch roles in bulk.
+     *
+     * @param usernames The user names to get roles for
+     * @return Roles for each of the distinct user names, as {@link #getUserRoles(String)} would
+     * return them. Never returns null.
+     * @throws Exception if any issue is encounter while acquiring the roles
+     */
+    public default Map<String, Set<String>> getUserRoles(Collection<String> usernames) throws Exception {
+        Map<String, Set<String>> rolesByUser = new HashMap<>();
+        for (String username : usernames) {
+            if (!rolesByUser.containsKey(username)) {
+                rolesByUser.put(username, getUserRoles(username));
+            }
+        }
+        return rolesByUser;
+    }
+
+    /**
+     * Check whether given user has given role.
+     *
+     * <p>The default implementation looks the role up in {@link #getUserRoles(String)}, which
+     * takes constant time for roles served from {@link RolesCache} (see {@link CompactRoleSet}).
+     *
+     * @param username The user name to check
+     * @param role The role to look for
+     * @return true if the user has the role
+     * @throws Exception if any issue is encounter while acquiring the roles
+     */
+    public default boolean hasRole(String username, String role) throws Exception {
+        return getUserRoles(username).contains(role);
+    }
+
+    /**
+     * Get a marker which changes whenever the roles of given user may have changed, such as
+     * the modification time of the user's entry. Used to revalidate cached roles with a cheap
+     * lookup instead of acquiring them again, see {@link RolesCache#isRevalidating()}.
+     *
+     * <p>The default implementation returns null, so roles are always acquired again.
+     *
+     * @param username The user name to get the marker for
+     * @return The marker, or null if unknown
+     * @throws Exception if any issue is encounter while acquiring the marker
+     */
+    public default String getChangeMarker(String username) throws Exception {
+        return null;
+    }
+
+    /**
+     * Get the change marker for given user without waiting for the result.
+     *
+     * <p>The default implementation simply calls {@link #getChangeMarker(String)} on the calling
+     * thread.
+     *
+     * @param username The user name to get the marker for
+     * @return A future completed with the marker {@link #getChangeMarker(String)} would return,
+     * or completed exceptionally with the issue encountered while acquiring it.
+     */
+    public default CompletableFuture<String> getChangeMarkerAsync(String username) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            future.complete(getChangeMarker(username));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
 }
@@ -0,0 +1,229 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves roles from a {@link SharedRolesCache} before asking the underlying roles provider,
+ * and shares what that provider returns with the other nodes. Meant to sit between
+ * {@link CachedRolesProvider} and the ldap roles provider, so that a user's roles are looked
+ * up in ldap once per cluster rather than once per node:
+ *
+ * <pre>
+ * new CachedRolesProvider(new SharedCacheRolesProvider(ldapRolesProvider, sharedRolesCache), rolesCache);
+ * </pre>
+ *
+ * The shared cache is an optimization only: if it fails, roles are looked up as if it did
+ * not exist. Asynchronous lookups ask it on a small pool of its own, so they never wait for
+ * it on the caller's thread; if the pool is busy, they go to the underlying roles provider
+ * straight away.
+ *
+ * Roles invalidated in the node-local cache must be invalidated here too, or nodes would
+ * get them straight back from the shared cache: {@link InvalidationChannel} and the directory
+ * change listeners take this provider for that.
+ *
+ */
+public class SharedCacheRolesProvider implements RolesProvider, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedCacheRolesProvider.class);
+
+    public static final int POOL_SIZE = 4;
+    public static final int MAX_QUEUED_CALLS = 1000;
+
+    private final RolesProvider rolesProvider;
+    private final SharedRolesCache sharedRolesCache;
+    /**
+     * Calls the shared cache for asynchronous lookups.
+     */
+    private final ThreadPoolExecutor executor;
+
+    public SharedCacheRolesProvider(RolesProvider rolesProvider, SharedRolesCache sharedRolesCache) {
+        this.rolesProvider = Objects.requireNonNull(rolesProvider);
+        this.sharedRolesCache = Objects.requireNonNull(sharedRolesCache);
+        this.executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CALLS),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-shared-cache-%d").build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public Set<String> getUserRoles(String username) throws Exception {
+        Set<String> roles = getShared(username);
+        if (roles != null) {
+            return roles;
+        }
+
+        roles = rolesProvider.getUserRoles(username);
+        share(username, roles);
+        return roles;
+    }
+
+    /**
+     * Passes the deadline on to the underlying roles provider. The shared cache is asked
+     * within its own timeout, expected to be much shorter.
+     */
+    @Override
+    public Set<String> getUserRoles(String username, Instant deadline) throws Exception {
+        Set<String> roles = getShared(username);
+        if (roles != null) {
+            return roles;
+        }
+
+        roles = rolesProvider.getUserRoles(username, deadline);
+        share(username, roles);
+        return roles;
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> getUserRolesAsync(String username) {
+        CompletableFuture<Set<String>> shared;
+        try {
+            shared = CompletableFuture.supplyAsync(() -> getShared(username), executor);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Shared cache busy, not asking it for roles of uid={}", username);
+            shared = CompletableFuture.completedFuture(null);
+        }
+
+        return shared.thenCompose(roles -> {
+            if (roles != null) {
+                return CompletableFuture.completedFuture(roles);
+            }
+            return rolesProvider.getUserRolesAsync(username).thenCompose(fetched -> shareAsync(username, fetched));
+        });
+    }
+
+    @Override
+    public Map<String, Set<String>> getUserRoles(Collection<String> usernames) throws Exception {
+        Map<String, Set<String>> rolesByUser = new HashMap<>();
+        try {
+            rolesByUser.putAll(sharedRolesCache.get(usernames));
+        } catch (Exception e) {
+            LOGGER.warn("Failed to get roles of {} users from the shared cache.", usernames.size(), e);
+        }
+
+        Set<String> missed = new LinkedHashSet<>(usernames);
+        missed.removeAll(rolesByUser.keySet());
+        if (missed.isEmpty()) {
+            return rolesByUser;
+        }
+
+        Map<String, Set<String>> fetched = rolesProvider.getUserRoles(missed);
+        for (Map.Entry<String, Set<String>> entry : fetched.entrySet()) {
+            share(entry.getKey(), entry.getValue());
+        }
+        rolesByUser.putAll(fetched);
+        return rolesByUser;
+    }
+
+    @Override
+    public String getChangeMarker(String username) throws Exception {
+        return rolesProvider.getChangeMarker(username);
+    }
+
+    @Override
+    public CompletableFuture<String> getChangeMarkerAsync(String username) {
+        return rolesProvider.getChangeMarkerAsync(username);
+    }
+
+    /**
+     * Drops the shared roles of username, so the next lookup on any node goes to the
+     * underlying roles provider.
+     */
+    public void invalidate(String username) {
+        try {
+            sharedRolesCache.invalidate(username);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to invalidate roles of uid={} in the shared cache.", username, e);
+        }
+    }
+
+    /**
+     * Drops all shared roles, so the next lookup of any user on any node goes to the
+     * underlying roles provider.
+     */
+    public void invalidateAll() {
+        try {
+            sharedRolesCache.invalidateAll();
+        } catch (Exception e) {
+            LOGGER.warn("Failed to invalidate all roles in the shared cache.", e);
+        }
+    }
+
+    private Set<String> getShared(String username) {
+        try {
+            Set<String> roles = sharedRolesCache.get(username);
+            if (roles != null) {
+                LOGGER.debug("Found roles in shared cache for uid={}", username);
+            }
+            return roles;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to get roles of uid={} from the shared cache.", username, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return roles, once shared, so other nodes can get them as soon as this one has them
+     */
+    private CompletableFuture<Set<String>> shareAsync(String username, Set<String> roles) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                share(username, roles);
+                return roles;
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Shared cache busy, not sharing roles of uid={}", username);
+            return CompletableFuture.completedFuture(roles);
+        }
+    }
+
+    private void share(String username, Set<String> roles) {
+        try {
+            sharedRolesCache.put(username, roles);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to put roles of uid={} in the shared cache.", username, e);
+        }
+    }
+
+    /**
+     * Stops asking the shared cache for asynchronous lookups. The shared cache itself is left
+     * open.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Second level roles cache, shared by all nodes of a cluster, so that roles looked up by one
+ * node serve the others. Plugged in under the node-local {@link RolesCache} with
+ * {@link SharedCacheRolesProvider}.
+ *
+ * Implementations are expected to expire roles on their own, after the same time on all
+ * nodes. See {@link MemcachedRolesCache} for the reference implementation.
+ *
+ */
+public interface SharedRolesCache {
+
+    /**
+     * @return cached roles of login, or null if none
+     * @throws Exception if the cache could not be reached
+     */
+    public Set<String> get(String login) throws Exception;
+
+    /**
+     * Get cached roles of many logins at once.
+     *
+     * <p>The default implementation calls {@link #get(String)} for each login.
+     *
+     * @return cached roles of each login found, missing logins are left out
+     * @throws Exception if the cache could not be reached
+     */
+    public default Map<String, Set<String>> get(Collection<String> logins) throws Exception {
+        Map<String, Set<String>> rolesByLogin = new HashMap<>();
+        for (String login : logins) {
+            Set<String> roles = get(login);
+            if (roles != null) {
+                rolesByLogin.put(login, roles);
+            }
+        }
+        return rolesByLogin;
+    }
+
+    public void put(String login, Set<String> roles) throws Exception;
+
+    public void invalidate(String login) throws Exception;
+
+    /**
+     * Drops the roles of all logins, for all nodes.
+     */
+    public void invalidateAll() throws Exception;
+
+}
@@ -0,0 +1,449 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * {@link InvalidationTransport} over TCP to a fixed list of peers. Every node listens on a
+ * port of a given interface, and keeps a connection open to each peer, sending length
+ * prefixed messages. The peer list may include the node itself.
+ *
+ * Since an invalidation of all roles also wipes the fallback roles, only peers are listened
+ * to. Connections from any other address are closed right away, and each connection starts
+ * with a hello giving the listen port of the sending node, which must be one of the peers
+ * too. Each peer has a single connection: a newer one replaces the older. With a shared
+ * secret, every message, hello included, also carries an HMAC-SHA256 of its content, send
+ * time and a random nonce. Messages which don't verify, were sent more than
+ * {@link #MAX_CLOCK_SKEW_MS} ago, or repeat a nonce seen before, are dropped along with their
+ * connection. Messages are at most {@link #MAX_MESSAGE_SIZE} bytes, and must arrive within
+ * timeoutMS once started, so a connection which is not from a live peer holds one of the
+ * few receiving threads only that long.
+ *
+ * A peer which can't be reached, or doesn't take a message within timeoutMS, is skipped and
+ * connected to again on the next message, so a node which is down or stalled misses the
+ * invalidations sent meanwhile; its roles still expire. Connections idle for
+ * {@link #IDLE_TIMEOUT_MS} are closed by the receiving end, and reopened by the sending end
+ * before that.
+ *
+ */
+public class TcpInvalidationTransport implements InvalidationTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TcpInvalidationTransport.class);
+
+    public static final int DEFAULT_TIMEOUT_MS = 1000;
+    public static final int MAX_MESSAGE_SIZE = 256 * 1024;
+    public static final long MAX_CLOCK_SKEW_MS = 10 * 1000;
+    public static final int IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_SIZE = 32;
+    private static final int MAX_SEEN_NONCES = 100000;
+
+    private final InetSocketAddress listenAddress;
+    private final List<InetSocketAddress> peers;
+    private final Set<InetAddress> peerAddresses = new HashSet<>();
+    private final Set<InetSocketAddress> resolvedPeers = new HashSet<>();
+    private final SecretKeySpec secret; // optional
+    private final int timeoutMS;
+    private final SecureRandom random = new SecureRandom();
+    /**
+     * Nonces of the messages received lately, to drop replayed ones. Older messages are
+     * dropped anyway.
+     */
+    private final Cache<Long, Boolean> seenNonces = CacheBuilder.newBuilder()
+            .expireAfterWrite(2 * MAX_CLOCK_SKEW_MS, TimeUnit.MILLISECONDS)
+            .maximumSize(MAX_SEEN_NONCES)
+            .build();
+    private final ExecutorService acceptor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-invalidation-acceptor-%d").build());
+    private final ThreadPoolExecutor receivers;
+    /**
+     * Closes connections which don't take a message in time, failing the write.
+     */
+    private final ScheduledExecutorService sendTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-invalidation-timer-%d").build());
+
+    private volatile ServerSocket serverSocket;
+    /**
+     * The connection each peer sends over.
+     */
+    private final ConcurrentMap<InetSocketAddress, Socket> receiving = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Map<InetSocketAddress, DataOutputStream> connections = new HashMap<>();
+    // guarded by this
+    private final Map<InetSocketAddress, Socket> sockets = new HashMap<>();
+    // guarded by this
+    private final Map<InetSocketAddress, Long> lastSent = new HashMap<>();
+
+    /**
+     * Without a shared secret, peers are only told apart by their address.
+     */
+    public TcpInvalidationTransport(InetSocketAddress listenAddress, List<InetSocketAddress> peers, int timeoutMS) {
+        this(listenAddress, peers, null, timeoutMS);
+    }
+
+    /**
+     * @param listenAddress where invalidations from peers are received: an address of a
+     * specific interface, not the wildcard address. Port 0 for any free port, which peers
+     * then can't be configured with.
+     * @param peers nodes to send invalidations to, and the only ones they are received from
+     * @param secret shared by all nodes to authenticate messages, null for none
+     * @param timeoutMS connect and write timeout for each peer, and read timeout for each
+     * message
+     */
+    public TcpInvalidationTransport(InetSocketAddress listenAddress, List<InetSocketAddress> peers, byte[] secret,
+            int timeoutMS) {
+        if (listenAddress.getAddress() == null || listenAddress.getAddress().isAnyLocalAddress()) {
+            throw new IllegalArgumentException("listenAddress must be the address of an interface: " + listenAddress);
+        }
+        if (secret != null && secret.length == 0) {
+            throw new IllegalArgumentException("secret must not be empty");
+        }
+
+        this.listenAddress = listenAddress;
+        this.peers = new ArrayList<>(peers);
+        for (InetSocketAddress peer : peers) {
+            if (peer.getAddress() == null) {
+                LOGGER.warn("Peer {} could not be resolved, invalidations from it are ignored.", peer);
+            } else {
+                peerAddresses.add(peer.getAddress());
+                resolvedPeers.add(peer);
+            }
+        }
+        this.secret = secret != null ? new SecretKeySpec(secret, MAC_ALGORITHM) : null;
+        this.timeoutMS = timeoutMS;
+
+        // one for the connection of each peer, as many for connections not known to be from one yet,
+        // which only hold them for timeoutMS
+        int receiverCount = 2 * Math.max(1, peers.size());
+        this.receivers = new ThreadPoolExecutor(receiverCount, receiverCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(receiverCount),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("roles-invalidation-receiver-%d").build());
+        this.receivers.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(listenAddress);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        this.serverSocket = serverSocket;
+
+        acceptor.execute(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    accept(serverSocket.accept(), receiver);
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        LOGGER.warn("Failed to accept connection from peer", e);
+                    }
+                }
+            }
+        });
+
+        LOGGER.info("TcpInvalidationTransport listening on {}, peers={}, authenticated={}",
+                serverSocket.getLocalSocketAddress(), peers, secret != null);
+    }
+
+    /**
+     * @return the port invalidations are received on, once started
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept(Socket socket, Consumer<byte[]> receiver) throws IOException {
+        if (!peerAddresses.contains(socket.getInetAddress())) {
+            LOGGER.warn("Refusing connection from {}, not a peer", socket.getRemoteSocketAddress());
+            socket.close();
+            return;
+        }
+
+        try {
+            receivers.execute(() -> receive(socket, receiver));
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Refusing connection from {}, too many connections from peers", socket.getRemoteSocketAddress());
+            socket.close();
+        }
+    }
+
+    private void receive(Socket socket, Consumer<byte[]> receiver) {
+        InetSocketAddress peer = null;
+
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            Mac mac = secret != null ? newMac() : null;
+
+            byte[] hello = readMessage(s, in, mac, timeoutMS);
+            if (hello == null) {
+                return;
+            }
+            if (hello.length != 4
+                    || !resolvedPeers.contains(new InetSocketAddress(s.getInetAddress(), ByteBuffer.wrap(hello).getInt()))) {
+                LOGGER.warn("Dropping connection from {}, not from a peer's listen port", s.getRemoteSocketAddress());
+                return;
+            }
+            peer = new InetSocketAddress(s.getInetAddress(), ByteBuffer.wrap(hello).getInt());
+
+            // a peer only connects again once it gave up on the older connection
+            Socket previous = receiving.put(peer, s);
+            if (previous != null) {
+                closeQuietly(peer, previous);
+            }
+
+            while (true) {
+                byte[] message = readMessage(s, in, mac, IDLE_TIMEOUT_MS);
+                if (message == null) {
+                    return;
+                }
+                receiver.accept(message);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Connection from peer closed", e);
+        } catch (GeneralSecurityException e) {
+            LOGGER.error("Failed to verify messages from peer", e);
+        } finally {
+            if (peer != null) {
+                receiving.remove(peer, socket);
+            }
+        }
+    }
+
+    /**
+     * @param waitMS how long to wait for the message to start, it must then arrive within
+     * timeoutMS
+     * @return the message, null if the connection was closed or must be, as the message is
+     * invalid
+     */
+    private byte[] readMessage(Socket s, DataInputStream in, Mac mac, int waitMS) throws IOException {
+        s.setSoTimeout(waitMS);
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        s.setSoTimeout(timeoutMS);
+
+        if (length < 0 || length > MAX_MESSAGE_SIZE) {
+            LOGGER.warn("Dropping connection from {}, bad message length {}", s.getRemoteSocketAddress(), length);
+            return null;
+        }
+        long sentAt = in.readLong();
+        long nonce = in.readLong();
+        byte[] message = new byte[length];
+        in.readFully(message);
+
+        if (mac != null) {
+            byte[] expected = new byte[MAC_SIZE];
+            in.readFully(expected);
+            if (!MessageDigest.isEqual(expected, sign(mac, sentAt, nonce, message))) {
+                LOGGER.warn("Dropping connection from {}, message not signed with the shared secret",
+                        s.getRemoteSocketAddress());
+                return null;
+            }
+        }
+        if (Math.abs(System.currentTimeMillis() - sentAt) > MAX_CLOCK_SKEW_MS) {
+            LOGGER.warn("Dropping connection from {}, message sent at {} is too old or from the future",
+                    s.getRemoteSocketAddress(), sentAt);
+            return null;
+        }
+        if (seenNonces.asMap().putIfAbsent(nonce, Boolean.TRUE) != null) {
+            LOGGER.warn("Dropping connection from {}, message was received before", s.getRemoteSocketAddress());
+            return null;
+        }
+        return message;
+    }
+
+    @Override
+    public synchronized void send(byte[] message) throws IOException {
+        if (message.length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message of " + message.length + " bytes exceeds " + MAX_MESSAGE_SIZE);
+        }
+
+        Mac mac;
+        try {
+            mac = secret != null ? newMac() : null;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to sign message", e);
+        }
+
+        IOException lastError = null;
+        int sent = 0;
+
+        for (InetSocketAddress peer : peers) {
+            ScheduledFuture<?> timeout = null;
+            try {
+                long now = System.currentTimeMillis();
+                DataOutputStream out = connect(peer, mac, now);
+                Socket socket = sockets.get(peer);
+                timeout = sendTimer.schedule(() -> closeQuietly(peer, socket), timeoutMS, TimeUnit.MILLISECONDS);
+
+                writeMessage(out, mac, now, message);
+                out.flush();
+                lastSent.put(peer, now);
+                sent++;
+            } catch (IOException e) {
+                LOGGER.debug("Failed to send invalidation to {}", peer, e);
+                disconnect(peer);
+                lastError = e;
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+        }
+
+        if (sent == 0 && lastError != null) {
+            throw lastError;
+        }
+    }
+
+    private void writeMessage(DataOutputStream out, Mac mac, long sentAt, byte[] message) throws IOException {
+        long nonce = random.nextLong();
+        out.writeInt(message.length);
+        out.writeLong(sentAt);
+        out.writeLong(nonce);
+        out.write(message);
+        if (mac != null) {
+            out.write(sign(mac, sentAt, nonce, message));
+        }
+    }
+
+    private Mac newMac() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(secret);
+        return mac;
+    }
+
+    private static byte[] sign(Mac mac, long sentAt, long nonce, byte[] message) {
+        mac.update(ByteBuffer.allocate(20).putInt(message.length).putLong(sentAt).putLong(nonce).array());
+        return mac.doFinal(message);
+    }
+
+    // guarded by this
+    private DataOutputStream connect(InetSocketAddress peer, Mac mac, long now) throws IOException {
+        DataOutputStream out = connections.get(peer);
+        if (out != null) {
+            Long last = lastSent.get(peer);
+            // reopened before the peer closes it as idle, which would lose the next message
+            if (last == null || now - last < IDLE_TIMEOUT_MS / 2) {
+                return out;
+            }
+            disconnect(peer);
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(peer, timeoutMS);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // sent along with the first message
+            ServerSocket serverSocket = this.serverSocket;
+            int port = serverSocket != null ? serverSocket.getLocalPort() : listenAddress.getPort();
+            writeMessage(out, mac, now, ByteBuffer.allocate(4).putInt(port).array());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        sockets.put(peer, socket);
+        connections.put(peer, out);
+        lastSent.put(peer, now);
+        return out;
+    }
+
+    // guarded by this
+    private void disconnect(InetSocketAddress peer) {
+        connections.remove(peer);
+        lastSent.remove(peer);
+        Socket socket = sockets.remove(peer);
+        if (socket != null) {
+            closeQuietly(peer, socket);
+        }
+    }
+
+    private static void closeQuietly(InetSocketAddress peer, Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.debug("Failed to close connection to {}", peer, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (InetSocketAddress peer : new ArrayList<>(sockets.keySet())) {
+            disconnect(peer);
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (Map.Entry<InetSocketAddress, Socket> connection : receiving.entrySet()) {
+            closeQuietly(connection.getKey(), connection.getValue());
+        }
+        acceptor.shutdownNow();
+        receivers.shutdownNow();
+        sendTimer.shutdownNow();
+    }
+}
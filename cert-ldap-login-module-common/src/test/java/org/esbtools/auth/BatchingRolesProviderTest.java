@@ -0,0 +1,179 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth;
+
+import org.esbtools.auth.util.BatchingRolesProvider;
+import org.esbtools.auth.util.RolesProvider;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BatchingRolesProviderTest {
+
+    @Mock
+    RolesProvider rolesProvider;
+
+    final Set<String> roles = new HashSet<String>(Arrays.asList(new String[]{"role1","role2"}));
+
+    @SuppressWarnings("unchecked")
+    private void returnRolesForEveryUser() throws Exception {
+        Mockito.when(rolesProvider.getUserRoles(Mockito.any(Collection.class))).thenAnswer(new Answer<Map<String, Set<String>>>() {
+            @Override
+            public Map<String, Set<String>> answer(InvocationOnMock invocation) throws Throwable {
+                Map<String, Set<String>> rolesByUser = new HashMap<>();
+                for (Object username : (Collection<Object>) invocation.getArguments()[0]) {
+                    if (!"nobody".equals(username)) {
+                        rolesByUser.put((String) username, roles);
+                    }
+                }
+                return rolesByUser;
+            }
+        });
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void testLookupsWithinWindowAreBatched() throws Exception {
+        returnRolesForEveryUser();
+
+        BatchingRolesProvider provider = new BatchingRolesProvider(rolesProvider, 200, 100);
+
+        CompletableFuture<Set<String>> user1 = provider.getUserRolesAsync("user1");
+        CompletableFuture<Set<String>> user2 = provider.getUserRolesAsync("user2");
+        CompletableFuture<Set<String>> user1Again = provider.getUserRolesAsync("user1");
+        CompletableFuture<Set<String>> nobody = provider.getUserRolesAsync("nobody");
+
+        Assert.assertEquals(roles, user1.get());
+        Assert.assertEquals(roles, user2.get());
+        Assert.assertEquals(roles, user1Again.get());
+        Assert.assertTrue(nobody.get().isEmpty());
+
+        ArgumentCaptor<Collection> batch = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles(batch.capture());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("user1", "user2", "nobody")), new HashSet<>(batch.getValue()));
+        Mockito.verify(rolesProvider, Mockito.never()).getUserRoles(Mockito.anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFullBatchIsResolvedWithoutWaitingForWindow() throws Exception {
+        returnRolesForEveryUser();
+
+        BatchingRolesProvider provider = new BatchingRolesProvider(rolesProvider, 60000, 2);
+
+        CompletableFuture<Set<String>> user1 = provider.getUserRolesAsync("user1");
+        Assert.assertEquals(roles, provider.getUserRoles("user2"));
+        Assert.assertEquals(roles, user1.get());
+
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles(Mockito.any(Collection.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchFailureIsSeenByEveryCaller() throws Exception {
+        Mockito.when(rolesProvider.getUserRoles(Mockito.any(Collection.class))).thenThrow(new LDAPException(ResultCode.SERVER_DOWN));
+
+        BatchingRolesProvider provider = new BatchingRolesProvider(rolesProvider, 50, 100);
+
+        CompletableFuture<Set<String>> user1 = provider.getUserRolesAsync("user1");
+
+        try {
+            provider.getUserRoles("user2");
+            Assert.fail("Expected ldap failure to propagate");
+        } catch (LDAPException expected) {
+            // fall through
+        }
+
+        try {
+            user1.get();
+            Assert.fail("Expected ldap failure to propagate");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof LDAPException);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchErrorIsSeenByEveryCaller() throws Exception {
+        Mockito.when(rolesProvider.getUserRoles(Mockito.any(Collection.class))).thenThrow(new AssertionError("broken"));
+
+        BatchingRolesProvider provider = new BatchingRolesProvider(rolesProvider, 50, 100);
+        try {
+            provider.getUserRolesAsync("user1").get(1, TimeUnit.SECONDS);
+            Assert.fail("Expected error to propagate");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AssertionError);
+        } finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWaitForBatchIsBounded() throws Exception {
+        Mockito.when(rolesProvider.getUserRoles(Mockito.any(Collection.class))).thenAnswer(new Answer<Map<String, Set<String>>>() {
+            @Override
+            public Map<String, Set<String>> answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(2000);
+                return new HashMap<>();
+            }
+        });
+
+        BatchingRolesProvider provider = new BatchingRolesProvider(rolesProvider, 0, 100);
+        provider.setMaxWaitMS(100);
+        try {
+            provider.getUserRoles("user1");
+            Assert.fail("Expected timeout");
+        } catch (TimeoutException expected) {
+            // fall through
+        } finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void testCloseFailsWaitingLookups() throws Exception {
+        BatchingRolesProvider provider = new BatchingRolesProvider(rolesProvider, 60000, 100);
+
+        CompletableFuture<Set<String>> user1 = provider.getUserRolesAsync("user1");
+        provider.close();
+        Assert.assertTrue(user1.isCompletedExceptionally());
+        Assert.assertTrue(provider.getUserRolesAsync("user2").isCompletedExceptionally());
+    }
+}
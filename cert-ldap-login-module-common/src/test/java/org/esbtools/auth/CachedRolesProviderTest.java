@@ -19,7 +19,10 @@
 package org.esbtools.auth;
 
 import org.esbtools.auth.util.CachedRolesProvider;
+import org.esbtools.auth.util.CircuitBreaker;
+import org.esbtools.auth.util.CircuitBreakerOpenException;
 import org.esbtools.auth.util.RolesCache;
+import org.esbtools.auth.util.RolesCacheStats;
 import org.esbtools.auth.util.RolesProvider;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.ResultCode;
@@ -27,14 +30,34 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CachedRolesProviderTest {
@@ -95,4 +118,452 @@ public class CachedRolesProviderTest {
         Mockito.verify(rolesCache, Mockito.times(1)).getFromFallback("user");
 
     }
+
+    @Test
+    public void testCircuitBreakerServesFallbackWhileOpen() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(4, 2, 0.5, 1000, 1.0, 200, 1);
+        cachedRolesProvider = new CachedRolesProvider(rolesProvider, rolesCache, circuitBreaker);
+
+        Mockito.when(rolesProvider.getUserRoles("user")).thenThrow(new LDAPException(ResultCode.SERVER_DOWN));
+
+        rolesCache.put("user", roles);
+        Thread.sleep(1000); // wait till it expires
+
+        // failures open the breaker
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRoles("user"));
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRoles("user"));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        // ldap is not called while open
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRoles("user"));
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRolesAsync("user").get());
+        Mockito.verify(rolesProvider, Mockito.times(2)).getUserRoles("user");
+
+        try {
+            cachedRolesProvider.getUserRoles("nofallback");
+            Assert.fail("Expected CircuitBreakerOpenException");
+        } catch (CircuitBreakerOpenException expected) {
+            // fall through
+        }
+        Mockito.verify(rolesProvider, Mockito.never()).getUserRoles("nofallback");
+
+        // a trial call after the open duration closes it again
+        Thread.sleep(300);
+        Mockito.reset(rolesProvider);
+        Mockito.when(rolesProvider.getUserRoles("user")).thenReturn(roles);
+
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRoles("user"));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles("user");
+    }
+
+    @Test
+    public void testDeadlineFallsBackAndLookupRefillsCache() throws Exception {
+        rolesCache.put("user", roles);
+        Thread.sleep(1000); // wait till it expires
+
+        // the deadline is passed on to ldap, which gives up, fallback roles are returned instead
+        Instant deadline = Instant.now().plusMillis(100);
+        Mockito.when(rolesProvider.getUserRoles("user", deadline)).thenThrow(new TimeoutException());
+        Mockito.when(rolesProvider.getUserRoles("nofallback", deadline)).thenThrow(new TimeoutException());
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRoles("user", deadline));
+        Mockito.verify(rolesProvider).getUserRoles("user", deadline);
+
+        try {
+            cachedRolesProvider.getUserRoles("nofallback", deadline);
+            Assert.fail("Expected TimeoutException");
+        } catch (TimeoutException expected) {
+            // fall through
+        }
+
+        // a lookup already in progress is waited for until the deadline only
+        CompletableFuture<Set<String>> lookup = new CompletableFuture<>();
+        Mockito.when(rolesProvider.getUserRolesAsync("user")).thenReturn(lookup);
+        cachedRolesProvider.getUserRolesAsync("user");
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRoles("user", Instant.now().plusMillis(100)));
+
+        // and carries on to fill the cache
+        Set<String> newRoles = Collections.singleton("role3");
+        lookup.complete(newRoles);
+        Assert.assertEquals(newRoles, rolesCache.get("user"));
+        Assert.assertEquals(newRoles, cachedRolesProvider.getUserRoles("user", Instant.now().plusMillis(100)));
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRolesAsync("user");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBulkRolesCache() throws Exception {
+        Map<String, Set<String>> fetched = new HashMap<>();
+        fetched.put("user2", roles);
+        fetched.put("user3", Collections.<String>emptySet());
+        Mockito.when(rolesProvider.getUserRoles(Mockito.any(Collection.class))).thenReturn(fetched);
+
+        rolesCache.put("user1", roles);
+
+        Map<String, Set<String>> rolesByUser = cachedRolesProvider.getUserRoles(Arrays.asList("user1", "user2", "user3"));
+
+        Assert.assertEquals(3, rolesByUser.size());
+        Assert.assertEquals(roles, rolesByUser.get("user1"));
+        Assert.assertEquals(roles, rolesByUser.get("user2"));
+        Assert.assertTrue(rolesByUser.get("user3").isEmpty());
+
+        // only the misses were fetched, in a single call, and cached
+        ArgumentCaptor<Collection> fetchedUsers = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles(fetchedUsers.capture());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("user2", "user3")), new HashSet<>(fetchedUsers.getValue()));
+        Mockito.verify(rolesCache, Mockito.times(1)).putAll(fetched);
+        Assert.assertEquals(roles, rolesCache.get("user2"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBulkFallBackRolesCache() throws Exception {
+        Mockito.when(rolesProvider.getUserRoles(Mockito.any(Collection.class))).thenThrow(new LDAPException(ResultCode.SERVER_DOWN));
+
+        rolesCache.put("user1", roles);
+        rolesCache.put("user2", roles);
+        Thread.sleep(1000); // wait till it expires
+
+        Map<String, Set<String>> rolesByUser = cachedRolesProvider.getUserRoles(Arrays.asList("user1", "user2"));
+        Assert.assertEquals(roles, rolesByUser.get("user1"));
+        Assert.assertEquals(roles, rolesByUser.get("user2"));
+
+        try {
+            cachedRolesProvider.getUserRoles(Arrays.asList("user1", "user3"));
+            Assert.fail("Expected ldap failure to propagate, user3 has no fallback");
+        } catch (LDAPException expected) {
+            // fall through
+        }
+    }
+
+    @Test
+    public void testAsyncRolesCache() throws Exception {
+
+        Mockito.when(rolesProvider.getUserRolesAsync("user")).thenReturn(CompletableFuture.completedFuture(roles));
+
+        // cache miss
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRolesAsync("user").get());
+        // cache hit, completes immediately
+        CompletableFuture<Set<String>> hit = cachedRolesProvider.getUserRolesAsync("user");
+        Assert.assertTrue(hit.isDone());
+        Assert.assertEquals(roles, hit.get());
+
+        Mockito.verify(rolesCache, Mockito.times(1)).put("user", roles);
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRolesAsync("user");
+        Mockito.verify(rolesProvider, Mockito.never()).getUserRoles("user");
+    }
+
+    @Test
+    public void testAsyncFallBackRolesCache() throws Exception {
+
+        CompletableFuture<Set<String>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new LDAPException(ResultCode.SERVER_DOWN));
+        Mockito.when(rolesProvider.getUserRolesAsync("user")).thenReturn(failed);
+
+        rolesCache.put("user", roles);
+        Thread.sleep(1000); // wait till it expires
+
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRolesAsync("user").get());
+        Mockito.verify(rolesCache, Mockito.times(1)).getFromFallback("user");
+
+        // no fallback for this one
+        try {
+            Mockito.when(rolesProvider.getUserRolesAsync("other")).thenReturn(failed);
+            cachedRolesProvider.getUserRolesAsync("other").get();
+            Assert.fail("Expected ldap failure to propagate");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof LDAPException);
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesAreSingleFlight() throws Exception {
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLookup = new CountDownLatch(1);
+
+        Mockito.when(rolesProvider.getUserRoles("user")).thenAnswer(new Answer<Set<String>>() {
+            @Override
+            public Set<String> answer(InvocationOnMock invocation) throws Throwable {
+                lookupStarted.countDown();
+                releaseLookup.await(5, TimeUnit.SECONDS);
+                return roles;
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<Set<String>>> results = new ArrayList<>();
+            results.add(executor.submit(() -> cachedRolesProvider.getUserRoles("user")));
+            Assert.assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> cachedRolesProvider.getUserRoles("user")));
+            }
+            CompletableFuture<Set<String>> asyncResult = cachedRolesProvider.getUserRolesAsync("user");
+
+            Thread.sleep(100); // let the others reach the in-flight lookup
+            releaseLookup.countDown();
+
+            for (Future<Set<String>> result : results) {
+                Assert.assertEquals(roles, result.get(5, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(roles, asyncResult.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles("user");
+        Mockito.verify(rolesProvider, Mockito.never()).getUserRolesAsync("user");
+    }
+
+    @Test
+    public void testWaitForStuckLookupIsBounded() throws Exception {
+        // a lookup which never completes
+        Mockito.when(rolesProvider.getUserRolesAsync("user")).thenReturn(new CompletableFuture<Set<String>>());
+        Mockito.when(rolesProvider.getUserRoles("user")).thenReturn(roles);
+        cachedRolesProvider.setMaxWaitMS(100);
+
+        cachedRolesProvider.getUserRolesAsync("user");
+
+        try {
+            cachedRolesProvider.getUserRoles("user");
+            Assert.fail("Expected TimeoutException");
+        } catch (TimeoutException e) {
+            // no fallback
+        }
+
+        // the stuck lookup was dropped, so this one looks up roles itself
+        Assert.assertEquals(roles, cachedRolesProvider.getUserRoles("user"));
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles("user");
+    }
+
+    @Test
+    public void testConcurrentMissesShareFallback() throws Exception {
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLookup = new CountDownLatch(1);
+
+        Mockito.when(rolesProvider.getUserRoles("user")).thenAnswer(new Answer<Set<String>>() {
+            @Override
+            public Set<String> answer(InvocationOnMock invocation) throws Throwable {
+                lookupStarted.countDown();
+                releaseLookup.await(5, TimeUnit.SECONDS);
+                throw new LDAPException(ResultCode.SERVER_DOWN);
+            }
+        });
+
+        rolesCache.put("user", roles);
+        Thread.sleep(1000); // wait till it expires
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Set<String>>> results = new ArrayList<>();
+            results.add(executor.submit(() -> cachedRolesProvider.getUserRoles("user")));
+            Assert.assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+            results.add(executor.submit(() -> cachedRolesProvider.getUserRoles("user")));
+            results.add(executor.submit(() -> cachedRolesProvider.getUserRoles("user")));
+
+            Thread.sleep(100); // let the others reach the in-flight lookup
+            releaseLookup.countDown();
+
+            for (Future<Set<String>> result : results) {
+                Assert.assertEquals(roles, result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles("user");
+        Mockito.verify(rolesCache, Mockito.times(1)).getFromFallback("user");
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        RolesCache refreshingCache = new RolesCache(1000, 300);
+        CachedRolesProvider refreshingProvider = new CachedRolesProvider(rolesProvider, refreshingCache);
+
+        final Set<String> newRoles = new HashSet<String>(Arrays.asList(new String[]{"role3"}));
+        Mockito.when(rolesProvider.getUserRoles("user")).thenReturn(roles, newRoles);
+
+        // cache miss
+        Assert.assertEquals(roles, refreshingProvider.getUserRoles("user"));
+        Assert.assertFalse(refreshingCache.needsRefresh("user"));
+
+        Thread.sleep(400); // past refresh age, not expired yet
+        Assert.assertTrue(refreshingCache.needsRefresh("user"));
+
+        // cached roles are served right away, refresh happens in the background
+        Assert.assertEquals(roles, refreshingProvider.getUserRoles("user"));
+
+        for (int i = 0; i < 50 && !newRoles.equals(refreshingCache.get("user")); i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(newRoles, refreshingCache.get("user"));
+        Assert.assertFalse(refreshingCache.needsRefresh("user"));
+        Mockito.verify(rolesProvider, Mockito.times(2)).getUserRoles("user");
+
+        Thread.sleep(1000); // hard expiry still applies
+        Assert.assertNull(refreshingCache.get("user"));
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        RolesCache revalidatingCache = new RolesCache(1000, 0, true);
+        CachedRolesProvider revalidatingProvider = new CachedRolesProvider(rolesProvider, revalidatingCache);
+
+        final Set<String> newRoles = new HashSet<String>(Arrays.asList(new String[]{"role3"}));
+        Mockito.when(rolesProvider.getChangeMarker("user")).thenReturn("1", "1", "2");
+        Mockito.when(rolesProvider.getUserRoles("user")).thenReturn(roles, newRoles);
+
+        // cache miss, looks up marker and roles
+        Assert.assertEquals(roles, revalidatingProvider.getUserRoles("user"));
+        Assert.assertEquals("1", revalidatingCache.getChangeMarker("user"));
+
+        // expired, marker unchanged: roles are not looked up again
+        revalidatingCache.expireAll();
+        Assert.assertEquals(roles, revalidatingProvider.getUserRoles("user"));
+        Assert.assertEquals(roles, revalidatingCache.get("user"));
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles("user");
+
+        // expired, marker changed
+        revalidatingCache.expireAll();
+        Assert.assertEquals(newRoles, revalidatingProvider.getUserRoles("user"));
+        Assert.assertEquals("2", revalidatingCache.getChangeMarker("user"));
+        Mockito.verify(rolesProvider, Mockito.times(2)).getUserRoles("user");
+        Mockito.verify(rolesProvider, Mockito.times(3)).getChangeMarker("user");
+    }
+
+    @Test
+    public void testAsyncRevalidation() throws Exception {
+        RolesCache revalidatingCache = new RolesCache(1000, 0, true);
+        CachedRolesProvider revalidatingProvider = new CachedRolesProvider(rolesProvider, revalidatingCache);
+
+        Mockito.when(rolesProvider.getChangeMarkerAsync("user")).thenReturn(CompletableFuture.completedFuture("1"));
+        Mockito.when(rolesProvider.getUserRolesAsync("user")).thenReturn(CompletableFuture.completedFuture(roles));
+
+        Assert.assertEquals(roles, revalidatingProvider.getUserRolesAsync("user").get());
+
+        revalidatingCache.expireAll();
+        Assert.assertEquals(roles, revalidatingProvider.getUserRolesAsync("user").get());
+
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRolesAsync("user");
+        Mockito.verify(rolesProvider, Mockito.times(2)).getChangeMarkerAsync("user");
+    }
+
+    @Test
+    public void testWeightBudget() throws Exception {
+        // a single segment, so the budget applies to all entries at once
+        RolesCache weighedCache = new RolesCache(60000, 0, false, null, RolesCache.EvictionPolicy.WEIGHT, 1000, 1);
+
+        Set<String> manyRoles = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            manyRoles.add("role" + i);
+        }
+
+        weighedCache.put("user1", roles);
+        weighedCache.put("user2", roles);
+        Assert.assertEquals(roles, weighedCache.get("user1"));
+        Assert.assertEquals(roles, weighedCache.get("user2"));
+
+        // outweighs the others
+        weighedCache.put("user3", manyRoles);
+        Assert.assertEquals(manyRoles, weighedCache.get("user3"));
+        Assert.assertNull(weighedCache.getFromFallback("user1"));
+        Assert.assertTrue(weighedCache.getStats().getEvictionCount() >= 1);
+
+        RolesCache countedCache = new RolesCache(60000, 0, false, null, RolesCache.EvictionPolicy.ENTRIES, 2, 1);
+        countedCache.put("user1", manyRoles);
+        countedCache.put("user2", manyRoles);
+        countedCache.put("user3", manyRoles);
+        Assert.assertEquals(2, countedCache.getStats().getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsWeightBudgetSmallerThanAnEntryPerSegment() throws Exception {
+        // an entry count, mistaken for bytes
+        new RolesCache(60000, 0, false, null, RolesCache.EvictionPolicy.WEIGHT, RolesCache.maximumSize,
+                RolesCache.concurrencyLevel);
+    }
+
+    @Test
+    public void testDefaultWeightBudgetKeepsAsManyEntriesAsDefaultEntryBudget() throws Exception {
+        RolesCache weighedCache = new RolesCache(60000, 0, false, null, RolesCache.EvictionPolicy.WEIGHT,
+                RolesCache.maximumWeight, RolesCache.concurrencyLevel);
+        for (int i = 0; i < RolesCache.maximumSize; i++) {
+            weighedCache.put("user" + i, roles);
+        }
+        Assert.assertEquals(RolesCache.maximumSize, weighedCache.getStats().getSize());
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        RolesCache statsCache = new RolesCache(60000);
+        CachedRolesProvider statsProvider = new CachedRolesProvider(rolesProvider, statsCache);
+        Mockito.when(rolesProvider.getUserRoles("user")).thenReturn(roles);
+
+        statsProvider.getUserRoles("user");
+        statsProvider.getUserRoles("user");
+        statsProvider.getUserRoles("user");
+        statsCache.getFromFallback("nobody");
+
+        RolesCacheStats stats = statsCache.getStats();
+        Assert.assertEquals(2, stats.getHitCount());
+        Assert.assertEquals(1, stats.getMissCount());
+        Assert.assertEquals(2.0 / 3, stats.getHitRate(), 0.001);
+        Assert.assertEquals(1, stats.getFallbackMissCount());
+        Assert.assertEquals(1, stats.getSize());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedCacheViews() throws Exception {
+        rolesCache.getRolesCache().put("user", roles);
+        Assert.assertEquals(roles, rolesCache.get("user"));
+
+        rolesCache.getRolesCache().invalidate("user");
+        Assert.assertNull(rolesCache.getRolesCache().getIfPresent("user"));
+        Assert.assertEquals(roles, rolesCache.getFallbackRolesCache().getIfPresent("user"));
+
+        // fallback roles put are never fresh
+        rolesCache.getFallbackRolesCache().put("other", roles);
+        Assert.assertNull(rolesCache.get("other"));
+        Assert.assertEquals(roles, rolesCache.getFromFallback("other"));
+        Assert.assertEquals(0, rolesCache.getRolesCache().size());
+        Assert.assertEquals(2, rolesCache.getFallbackRolesCache().size());
+
+        rolesCache.getFallbackRolesCache().invalidateAll();
+        Assert.assertNull(rolesCache.getFromFallback("user"));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedCacheViewsAsMaps() throws Exception {
+        Set<String> otherRoles = new HashSet<String>(Arrays.asList(new String[]{"role3"}));
+        ConcurrentMap<String, Set<String>> fresh = rolesCache.getRolesCache().asMap();
+        ConcurrentMap<String, Set<String>> fallback = rolesCache.getFallbackRolesCache().asMap();
+
+        Assert.assertNull(fresh.putIfAbsent("user", roles));
+        Assert.assertEquals(roles, fresh.putIfAbsent("user", otherRoles));
+        Assert.assertEquals(roles, rolesCache.get("user"));
+        Assert.assertFalse(fresh.replace("user", otherRoles, otherRoles));
+        Assert.assertTrue(fresh.replace("user", roles, otherRoles));
+        Assert.assertEquals(otherRoles, rolesCache.get("user"));
+        Assert.assertEquals(Collections.singletonMap("user", otherRoles), new HashMap<>(fresh));
+
+        // removing from the fresh roles only expires them
+        Assert.assertEquals(otherRoles, fresh.remove("user"));
+        Assert.assertNull(rolesCache.get("user"));
+        Assert.assertTrue(fresh.isEmpty());
+        Assert.assertEquals(otherRoles, fallback.get("user"));
+        Assert.assertFalse(fallback.remove("user", roles));
+
+        Iterator<Map.Entry<String, Set<String>>> entries = fallback.entrySet().iterator();
+        Assert.assertEquals("user", entries.next().getKey());
+        entries.remove();
+        Assert.assertFalse(entries.hasNext());
+        Assert.assertNull(rolesCache.getFromFallback("user"));
+
+        Assert.assertEquals(roles, rolesCache.getRolesCache().get("user", () -> roles));
+        Assert.assertEquals(roles, rolesCache.getRolesCache().get("user", () -> otherRoles));
+        Assert.assertEquals(roles, rolesCache.get("user"));
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth;
+
+import org.esbtools.auth.util.CircuitBreaker;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreakerTest {
+
+    static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test
+    public void testOpensOnFailureRate() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(4, 4, 0.5, 100, 1.0, 60000, 1);
+
+        circuitBreaker.onSuccess(FAST);
+        circuitBreaker.onFailure(FAST);
+        circuitBreaker.onSuccess(FAST);
+        // not enough calls yet
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        circuitBreaker.onFailure(FAST);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        Assert.assertFalse(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void testOldCallsLeaveTheWindow() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(4, 4, 0.75, 100, 1.0, 60000, 1);
+
+        circuitBreaker.onFailure(FAST);
+        circuitBreaker.onFailure(FAST);
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.onSuccess(FAST);
+        }
+        circuitBreaker.onFailure(FAST);
+        circuitBreaker.onFailure(FAST);
+
+        // 2 of the last 4 failed
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void testOpensOnSlowCallRate() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 2, 1.0, 100, 1.0, 60000, 1);
+
+        circuitBreaker.onSuccess(SLOW);
+        circuitBreaker.onSuccess(SLOW);
+
+        Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenTrialCalls() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, 1.0, 100, 1.0, 100, 2);
+
+        circuitBreaker.onFailure(FAST);
+        Assert.assertFalse(circuitBreaker.tryAcquire());
+
+        Thread.sleep(200);
+
+        // only the trial calls are let through
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        Assert.assertFalse(circuitBreaker.tryAcquire());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+        // a failed trial opens it again
+        circuitBreaker.onSuccess(FAST);
+        circuitBreaker.onFailure(FAST);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        Thread.sleep(200);
+
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess(FAST);
+        circuitBreaker.onSuccess(FAST);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testUnreportedTrialCallIsGivenUp() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, 1.0, 100, 1.0, 100, 1);
+
+        circuitBreaker.onFailure(FAST);
+        Thread.sleep(200);
+
+        // the trial call is never reported
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        Assert.assertFalse(circuitBreaker.tryAcquire());
+
+        Thread.sleep(200);
+
+        // so another one is let through
+        Assert.assertTrue(circuitBreaker.tryAcquire());
+        Assert.assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess(FAST);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth;
+
+import org.esbtools.auth.util.FallbackRolesStore;
+import org.esbtools.auth.util.RolesCache;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class FallbackRolesStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Set<String> roles = new HashSet<>(Arrays.asList("admin", "caf\u00e9"));
+    private final Set<String> otherRoles = new HashSet<>(Arrays.asList("developer"));
+
+    @Test
+    public void testSurvivesReopening() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("roles");
+
+        FallbackRolesStore store = new FallbackRolesStore(file, 4096, 0);
+        store.put("derek63", otherRoles);
+        store.put("derek63", roles);
+        store.put("lcestari", otherRoles);
+        store.put("mpatercz", otherRoles);
+        store.remove("mpatercz");
+        store.close();
+
+        store = new FallbackRolesStore(file, 4096, 0);
+        Assert.assertEquals(roles, store.get("derek63"));
+        Assert.assertEquals(otherRoles, store.get("lcestari"));
+        Assert.assertNull(store.get("mpatercz"));
+        Assert.assertNull(store.get("unknown"));
+
+        store.clear();
+        store.flush();
+        Assert.assertNull(store.get("derek63"));
+        store.close();
+    }
+
+    @Test
+    public void testCompactsWhenFull() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("roles");
+
+        FallbackRolesStore store = new FallbackRolesStore(file, 256, 1000);
+        for (int i = 0; i < 100; i++) {
+            store.put("derek63", new HashSet<>(Arrays.asList("role" + i)));
+            store.put("lcestari", otherRoles);
+        }
+        store.flush();
+        Assert.assertEquals(new HashSet<>(Arrays.asList("role99")), store.get("derek63"));
+        Assert.assertEquals(otherRoles, store.get("lcestari"));
+        store.close();
+
+        store = new FallbackRolesStore(file, 256, 1000);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("role99")), store.get("derek63"));
+        store.close();
+    }
+
+    @Test
+    public void testDropsWritesOnceFull() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("roles");
+
+        FallbackRolesStore store = new FallbackRolesStore(file, 256, 1000);
+        for (int i = 0; i < 100; i++) {
+            store.put("user" + i, otherRoles);
+        }
+        store.flush();
+        Assert.assertEquals(otherRoles, store.get("user0"));
+        Assert.assertNull(store.get("user99"));
+
+        store.clear();
+        store.put("user99", otherRoles);
+        store.flush();
+        Assert.assertNull(store.get("user0"));
+        Assert.assertEquals(otherRoles, store.get("user99"));
+        store.close();
+    }
+
+    @Test
+    public void testRejectedPutRemovesStoredRoles() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("roles");
+
+        FallbackRolesStore store = new FallbackRolesStore(file, 256, 1000);
+        store.put("derek63", otherRoles);
+        store.put("lcestari", otherRoles);
+        Set<String> manyRoles = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            manyRoles.add("role" + i);
+        }
+        store.put("derek63", manyRoles);
+        store.flush();
+        Assert.assertNull(store.get("derek63"));
+        Assert.assertEquals(otherRoles, store.get("lcestari"));
+        store.close();
+
+        store = new FallbackRolesStore(file, 256, 1000);
+        Assert.assertNull(store.get("derek63"));
+        store.close();
+    }
+
+    @Test
+    public void testRemovalsAreSeenBeforeTheyAreWritten() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("roles");
+
+        FallbackRolesStore store = new FallbackRolesStore(file, 4096, 1000);
+        RolesCache rolesCache = new RolesCache(60000, 0, false, store);
+        rolesCache.put("derek63", roles);
+        rolesCache.put("lcestari", otherRoles);
+        store.flush();
+
+        rolesCache.invalidate("derek63");
+        Assert.assertNull(rolesCache.getFromFallback("derek63"));
+        Assert.assertNull(rolesCache.getFromFallback("derek63"));
+        store.clear();
+        Assert.assertNull(store.get("lcestari"));
+
+        store.put("derek63", otherRoles);
+        store.flush();
+        Assert.assertEquals(otherRoles, store.get("derek63"));
+        store.close();
+    }
+
+    @Test
+    public void testDropsCorruptRecords() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("roles");
+
+        FallbackRolesStore store = new FallbackRolesStore(file, 4096, 0);
+        store.put("derek63", roles);
+        store.put("lcestari", otherRoles);
+        store.close();
+
+        // garble the length of the second record
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(16);
+            int length = raf.readInt();
+            raf.seek(16 + 4 + length);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        store = new FallbackRolesStore(file, 4096, 0);
+        Assert.assertEquals(roles, store.get("derek63"));
+        Assert.assertNull(store.get("lcestari"));
+
+        store.put("lcestari", otherRoles);
+        store.flush();
+        Assert.assertEquals(otherRoles, store.get("lcestari"));
+        store.close();
+    }
+
+    @Test
+    public void testRolesCacheFallsBackToStoreAfterRestart() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("roles");
+
+        FallbackRolesStore store = new FallbackRolesStore(file, 4096, 0);
+        RolesCache rolesCache = new RolesCache(60000, 0, false, store);
+        rolesCache.put("derek63", roles);
+        rolesCache.put("lcestari", otherRoles);
+        rolesCache.invalidate("lcestari");
+        store.close();
+
+        store = new FallbackRolesStore(file, 4096, 0);
+        rolesCache = new RolesCache(60000, 0, false, store);
+        Assert.assertNull(rolesCache.get("derek63"));
+        Assert.assertEquals(roles, rolesCache.getFromFallback("derek63"));
+        // fallback roles from the store are never fresh
+        Assert.assertNull(rolesCache.get("derek63"));
+        Assert.assertNull(rolesCache.getFromFallback("lcestari"));
+        store.close();
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth;
+
+import org.esbtools.auth.util.CachedRolesProvider;
+import org.esbtools.auth.util.InvalidationChannel;
+import org.esbtools.auth.util.InvalidationTransport;
+import org.esbtools.auth.util.MemcachedRolesCache;
+import org.esbtools.auth.util.RolesCache;
+import org.esbtools.auth.util.RolesProvider;
+import org.esbtools.auth.util.SharedCacheRolesProvider;
+import org.esbtools.auth.util.TcpInvalidationTransport;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+public class InvalidationChannelTest {
+
+    final Set<String> roles = new HashSet<String>(Arrays.asList(new String[]{"role1", "role2"}));
+
+    final List<InvalidationChannel> channels = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (InvalidationChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testInvalidatesOnAllNodes() throws Exception {
+        List<InetSocketAddress> peers = Arrays.asList(freeAddress(), freeAddress(), freeAddress());
+        List<RolesCache> rolesCaches = new ArrayList<>();
+        for (InetSocketAddress address : peers) {
+            RolesCache rolesCache = new RolesCache(60000);
+            rolesCache.put("user1", roles);
+            rolesCache.put("user2", roles);
+            rolesCaches.add(rolesCache);
+            channels.add(new InvalidationChannel(rolesCache, new TcpInvalidationTransport(address, peers, 1000), 10, 100));
+        }
+
+        channels.get(0).invalidate("user1");
+        // immediately on the node itself
+        Assert.assertNull(rolesCaches.get(0).getFromFallback("user1"));
+
+        for (RolesCache rolesCache : rolesCaches) {
+            awaitInvalidation(rolesCache, "user1");
+            Assert.assertEquals(roles, rolesCache.get("user2"));
+        }
+
+        channels.get(1).invalidateAll();
+        for (RolesCache rolesCache : rolesCaches) {
+            awaitInvalidation(rolesCache, "user2");
+        }
+    }
+
+    @Test
+    public void testRevokedRolesAreNotServedFromSharedCache() throws Exception {
+        RolesProvider ldap = Mockito.mock(RolesProvider.class);
+        Mockito.when(ldap.getUserRoles("user")).thenReturn(roles, Collections.<String>emptySet());
+
+        try (SharedCacheRolesProviderTest.MemcachedStandIn memcached = new SharedCacheRolesProviderTest.MemcachedStandIn()) {
+            List<InetSocketAddress> peers = Arrays.asList(freeAddress(), freeAddress());
+            List<RolesCache> rolesCaches = new ArrayList<>();
+            List<CachedRolesProvider> nodes = new ArrayList<>();
+            for (InetSocketAddress address : peers) {
+                RolesCache rolesCache = new RolesCache(60000);
+                SharedCacheRolesProvider sharedCache = new SharedCacheRolesProvider(ldap,
+                        new MemcachedRolesCache("localhost", memcached.getPort(), 60));
+                rolesCaches.add(rolesCache);
+                nodes.add(new CachedRolesProvider(sharedCache, rolesCache));
+                channels.add(new InvalidationChannel(rolesCache, sharedCache,
+                        new TcpInvalidationTransport(address, peers, 1000), 10, 100));
+            }
+
+            // looked up in ldap by the first node, shared with the second
+            Assert.assertEquals(roles, nodes.get(0).getUserRoles("user"));
+            Assert.assertEquals(roles, nodes.get(1).getUserRoles("user"));
+            Mockito.verify(ldap, Mockito.times(1)).getUserRoles("user");
+
+            // access revoked, the second node goes to ldap instead of the shared cache
+            channels.get(0).invalidate("user");
+            awaitInvalidation(rolesCaches.get(1), "user");
+            Assert.assertEquals(Collections.emptySet(), nodes.get(1).getUserRoles("user"));
+            Mockito.verify(ldap, Mockito.times(2)).getUserRoles("user");
+
+            channels.get(1).invalidateAll();
+            awaitInvalidation(rolesCaches.get(0), "user");
+            Assert.assertEquals(Collections.emptySet(), nodes.get(0).getUserRoles("user"));
+            Mockito.verify(ldap, Mockito.times(3)).getUserRoles("user");
+        }
+    }
+
+    @Test
+    public void testSkipsPeersWhichAreDown() throws Exception {
+        InetSocketAddress address = freeAddress();
+        InetSocketAddress senderAddress = freeAddress();
+        List<InetSocketAddress> peers = Arrays.asList(freeAddress(), address, senderAddress);
+
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("user1", roles);
+        channels.add(new InvalidationChannel(rolesCache, new TcpInvalidationTransport(address, peers, 1000), 10, 100));
+        InvalidationChannel sender = new InvalidationChannel(new RolesCache(60000),
+                new TcpInvalidationTransport(senderAddress, peers, 1000), 10, 100);
+        channels.add(sender);
+
+        sender.invalidate("user1");
+        awaitInvalidation(rolesCache, "user1");
+    }
+
+    @Test
+    public void testIgnoresMessagesNotSignedWithSecret() throws Exception {
+        List<InetSocketAddress> peers = Arrays.asList(freeAddress(), freeAddress(), freeAddress(), freeAddress());
+
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("user1", roles);
+        rolesCache.put("user2", roles);
+        channels.add(new InvalidationChannel(rolesCache,
+                new TcpInvalidationTransport(peers.get(0), peers, "secret".getBytes("UTF-8"), 1000), 10, 100));
+
+        InvalidationChannel forger = new InvalidationChannel(new RolesCache(60000),
+                new TcpInvalidationTransport(peers.get(1), peers, "guess".getBytes("UTF-8"), 1000), 10, 100);
+        channels.add(forger);
+        forger.invalidate("user1");
+        InvalidationChannel unsigned = new InvalidationChannel(new RolesCache(60000),
+                new TcpInvalidationTransport(peers.get(2), peers, 1000), 10, 100);
+        channels.add(unsigned);
+        unsigned.invalidateAll();
+
+        InvalidationChannel sender = new InvalidationChannel(new RolesCache(60000),
+                new TcpInvalidationTransport(peers.get(3), peers, "secret".getBytes("UTF-8"), 1000), 10, 100);
+        channels.add(sender);
+        sender.invalidate("user2");
+
+        awaitInvalidation(rolesCache, "user2");
+        Assert.assertEquals(roles, rolesCache.get("user1"));
+    }
+
+    @Test
+    public void testRefusesConnectionsFromNonPeers() throws Exception {
+        InetSocketAddress address = freeAddress();
+
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("user1", roles);
+        // only listens to a peer which isn't this host
+        channels.add(new InvalidationChannel(rolesCache, new TcpInvalidationTransport(address,
+                Collections.singletonList(new InetSocketAddress("192.0.2.1", address.getPort())), 1000), 10, 100));
+
+        InvalidationChannel sender = new InvalidationChannel(new RolesCache(60000),
+                new TcpInvalidationTransport(freeAddress(), Collections.singletonList(address), 1000), 10, 100);
+        channels.add(sender);
+        sender.invalidate("user1");
+        Thread.sleep(500);
+        Assert.assertEquals(roles, rolesCache.get("user1"));
+    }
+
+    @Test
+    public void testRefusesConnectionsFromOtherPortsOfPeers() throws Exception {
+        InetSocketAddress address = freeAddress();
+
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("user1", roles);
+        channels.add(new InvalidationChannel(rolesCache,
+                new TcpInvalidationTransport(address, Collections.singletonList(address), 1000), 10, 100));
+
+        // same host, but not listening on a peer's port
+        InvalidationChannel sender = new InvalidationChannel(new RolesCache(60000),
+                new TcpInvalidationTransport(freeAddress(), Collections.singletonList(address), 1000), 10, 100);
+        channels.add(sender);
+        sender.invalidate("user1");
+        Thread.sleep(500);
+        Assert.assertEquals(roles, rolesCache.get("user1"));
+    }
+
+    @Test
+    public void testIdleConnectionsDoNotLockOutPeers() throws Exception {
+        List<InetSocketAddress> peers = Arrays.asList(freeAddress(), freeAddress());
+
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("user1", roles);
+        channels.add(new InvalidationChannel(rolesCache,
+                new TcpInvalidationTransport(peers.get(0), peers, "secret".getBytes("UTF-8"), 200), 10, 100));
+
+        // connected, never saying which peer they are from
+        List<Socket> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                idle.add(new Socket(peers.get(0).getAddress(), peers.get(0).getPort()));
+            }
+
+            InvalidationChannel sender = new InvalidationChannel(new RolesCache(60000),
+                    new TcpInvalidationTransport(peers.get(1), peers, "secret".getBytes("UTF-8"), 200), 10, 100);
+            channels.add(sender);
+            Thread.sleep(1000);
+            sender.invalidate("user1");
+            awaitInvalidation(rolesCache, "user1");
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testDropsReplayedMessages() throws Exception {
+        List<InetSocketAddress> peers = Arrays.asList(freeAddress(), freeAddress());
+
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("user1", roles);
+        channels.add(new InvalidationChannel(rolesCache,
+                new TcpInvalidationTransport(peers.get(0), peers, "secret".getBytes("UTF-8"), 1000), 10, 100));
+
+        // what the sender sends through the proxy is recorded
+        ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+        try (ServerSocket proxy = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread forwarder = new Thread(() -> {
+                try (Socket from = proxy.accept(); Socket to = new Socket(peers.get(0).getAddress(), peers.get(0).getPort())) {
+                    byte[] buffer = new byte[4096];
+                    for (int read; (read = from.getInputStream().read(buffer)) > 0; ) {
+                        to.getOutputStream().write(buffer, 0, read);
+                        synchronized (recorded) {
+                            recorded.write(buffer, 0, read);
+                        }
+                    }
+                } catch (IOException e) {
+                    // sender closed
+                }
+            });
+            forwarder.setDaemon(true);
+            forwarder.start();
+
+            InvalidationChannel sender = new InvalidationChannel(new RolesCache(60000),
+                    new TcpInvalidationTransport(peers.get(1),
+                            Collections.singletonList((InetSocketAddress) proxy.getLocalSocketAddress()),
+                            "secret".getBytes("UTF-8"), 1000), 10, 100);
+            channels.add(sender);
+            sender.invalidate("user1");
+            awaitInvalidation(rolesCache, "user1");
+        }
+
+        rolesCache.put("user1", roles);
+        try (Socket replay = new Socket(peers.get(0).getAddress(), peers.get(0).getPort())) {
+            synchronized (recorded) {
+                recorded.writeTo(replay.getOutputStream());
+            }
+            Thread.sleep(500);
+        }
+        Assert.assertEquals(roles, rolesCache.get("user1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRefusesToListenOnAllInterfaces() throws Exception {
+        new TcpInvalidationTransport(new InetSocketAddress(0), Collections.<InetSocketAddress>emptyList(), 1000);
+    }
+
+    @Test
+    public void testClosesTransportWhichFailsToStart() throws Exception {
+        InvalidationTransport transport = Mockito.mock(InvalidationTransport.class);
+        Mockito.doThrow(new IOException("in use")).when(transport).start(Mockito.<Consumer<byte[]>>any());
+        try {
+            new InvalidationChannel(new RolesCache(60000), transport, 10, 100);
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            Mockito.verify(transport).close();
+        }
+    }
+
+    @Test
+    public void testStalledPeerDoesNotBlockSend() throws Exception {
+        try (ServerSocket stalled = new ServerSocket()) {
+            // accepts connections, never reads from them
+            stalled.setReceiveBufferSize(1024);
+            stalled.bind(freeAddress());
+            try (TcpInvalidationTransport transport = new TcpInvalidationTransport(freeAddress(),
+                    Collections.singletonList((InetSocketAddress) stalled.getLocalSocketAddress()), 200)) {
+                byte[] message = new byte[TcpInvalidationTransport.MAX_MESSAGE_SIZE];
+                for (int i = 0; i < 100; i++) {
+                    long start = System.currentTimeMillis();
+                    try {
+                        transport.send(message);
+                    } catch (IOException e) {
+                        // timed out, connected again on the next one
+                    }
+                    Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSplitsBatchesOfLongLogins() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        InvalidationChannel channel = new InvalidationChannel(new RolesCache(60000), transport, 200, 1000);
+        channels.add(channel);
+
+        char[] login = new char[1000];
+        Arrays.fill(login, 'u');
+        for (int i = 0; i < 100; i++) {
+            channel.invalidate(new String(login) + i);
+        }
+        Thread.sleep(500);
+        Assert.assertTrue(transport.sent.size() > 1);
+        for (byte[] message : transport.sent) {
+            Assert.assertTrue(message.length <= InvalidationChannel.MAX_MESSAGE_SIZE);
+        }
+    }
+
+    @Test
+    public void testCoalescesAndBatches() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        InvalidationChannel channel = new InvalidationChannel(new RolesCache(60000), transport, 200, 1000);
+        channels.add(channel);
+
+        for (int i = 0; i < 2500; i++) {
+            channel.invalidate("user" + i);
+            channel.invalidate("user" + i);
+        }
+        Thread.sleep(500);
+        Assert.assertEquals(3, transport.sent.size());
+
+        // invalidating all supersedes pending logins
+        channel.invalidate("user1");
+        channel.invalidateAll();
+        Thread.sleep(500);
+        Assert.assertEquals(4, transport.sent.size());
+        Assert.assertTrue(transport.sent.get(3).length < 64);
+    }
+
+    @Test
+    public void testIgnoresOwnMessages() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        RolesCache rolesCache = new RolesCache(60000);
+        InvalidationChannel channel = new InvalidationChannel(rolesCache, transport, 0, 1000);
+        channels.add(channel);
+
+        channel.invalidate("user1");
+        Thread.sleep(100);
+        rolesCache.put("user1", roles);
+        transport.receiver.accept(transport.sent.get(0));
+        Assert.assertEquals(roles, rolesCache.get("user1"));
+
+        transport.receiver.accept("garbage".getBytes("UTF-8"));
+        Assert.assertEquals(roles, rolesCache.get("user1"));
+    }
+
+    private static void awaitInvalidation(RolesCache rolesCache, String login) throws InterruptedException {
+        for (int i = 0; i < 100 && rolesCache.getFromFallback(login) != null; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertNull(rolesCache.getFromFallback(login));
+    }
+
+    private static InetSocketAddress freeAddress() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        }
+    }
+
+    static class RecordingTransport implements InvalidationTransport {
+
+        final List<byte[]> sent = new CopyOnWriteArrayList<>();
+        volatile Consumer<byte[]> receiver;
+
+        @Override
+        public void start(Consumer<byte[]> receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void send(byte[] message) {
+            sent.add(message);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
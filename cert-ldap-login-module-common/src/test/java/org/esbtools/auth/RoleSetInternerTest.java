@@ -0,0 +1,130 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth;
+
+import org.esbtools.auth.util.CachedRolesProvider;
+import org.esbtools.auth.util.CompactRoleSet;
+import org.esbtools.auth.util.RoleSetInterner;
+import org.esbtools.auth.util.RolesCache;
+import org.esbtools.auth.util.RolesProvider;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class RoleSetInternerTest {
+
+    @Test
+    public void testSharesEqualRoleSets() {
+        RoleSetInterner interner = new RoleSetInterner();
+
+        Set<String> roles = interner.intern(new HashSet<>(Arrays.asList("admin", "developer")));
+        Set<String> sameRoles = interner.intern(new HashSet<>(Arrays.asList(new String("developer"), new String("admin"))));
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("admin", "developer")), roles);
+        Assert.assertSame(roles, sameRoles);
+        Assert.assertNull(interner.intern(null));
+    }
+
+    @Test
+    public void testSharesRoleNames() {
+        RoleSetInterner interner = new RoleSetInterner();
+
+        Set<String> roles = interner.intern(new HashSet<>(Arrays.asList("admin", "developer")));
+        Set<String> otherRoles = interner.intern(new HashSet<>(Arrays.asList(new String("admin"))));
+
+        Assert.assertSame(find(roles, "admin"), otherRoles.iterator().next());
+    }
+
+    @Test
+    public void testCompactRoleSets() {
+        RoleSetInterner interner = new RoleSetInterner();
+
+        Set<String> roles = interner.intern(new HashSet<>(Arrays.asList("admin", "developer")));
+        Set<String> otherRoles = interner.intern(new HashSet<>(Arrays.asList("developer", "tester")));
+
+        Assert.assertTrue(roles instanceof CompactRoleSet);
+        Assert.assertTrue(roles.contains("admin"));
+        Assert.assertFalse(roles.contains("tester"));
+        Assert.assertFalse(roles.contains("unknown"));
+        Assert.assertFalse(roles.contains(null));
+        Assert.assertEquals(2, roles.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("developer", "tester")), otherRoles);
+        Assert.assertEquals(otherRoles.hashCode(), new HashSet<>(Arrays.asList("developer", "tester")).hashCode());
+        Assert.assertEquals(3, interner.getDictionary().size());
+        Assert.assertTrue(interner.intern(new HashSet<String>()).isEmpty());
+    }
+
+    @Test
+    public void testFullDictionary() {
+        RoleSetInterner interner = new RoleSetInterner(2);
+
+        Set<String> roles = interner.intern(new HashSet<>(Arrays.asList("admin", "developer")));
+        Set<String> otherRoles = interner.intern(new HashSet<>(Arrays.asList("developer", "tester")));
+
+        Assert.assertTrue(roles instanceof CompactRoleSet);
+        Assert.assertFalse(otherRoles instanceof CompactRoleSet);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("developer", "tester")), otherRoles);
+        Assert.assertSame(otherRoles, interner.intern(new HashSet<>(Arrays.asList("tester", "developer"))));
+    }
+
+    @Test
+    public void testHasRole() throws Exception {
+        RolesProvider rolesProvider = Mockito.mock(RolesProvider.class);
+        Mockito.when(rolesProvider.getUserRoles("derek63")).thenReturn(new HashSet<>(Arrays.asList("admin")));
+
+        CachedRolesProvider cachedRolesProvider = new CachedRolesProvider(rolesProvider, new RolesCache(60000));
+
+        Assert.assertTrue(cachedRolesProvider.hasRole("derek63", "admin"));
+        Assert.assertFalse(cachedRolesProvider.hasRole("derek63", "developer"));
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles("derek63");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRoleSetsAreImmutable() {
+        new RoleSetInterner().intern(new HashSet<>(Arrays.asList("admin"))).add("developer");
+    }
+
+    @Test
+    public void testCacheSharesRoleSets() {
+        RolesCache rolesCache = new RolesCache(60000);
+
+        rolesCache.put("derek63", new HashSet<>(Arrays.asList("admin", "developer")));
+        Map<String, Set<String>> rolesByLogin = new HashMap<>();
+        rolesByLogin.put("lcestari", new HashSet<>(Arrays.asList("developer", "admin")));
+        rolesCache.putAll(rolesByLogin);
+
+        Assert.assertSame(rolesCache.get("derek63"), rolesCache.get("lcestari"));
+        Assert.assertSame(rolesCache.get("derek63"), rolesCache.getFromFallback("lcestari"));
+    }
+
+    private static String find(Set<String> roles, String role) {
+        for (String r : roles) {
+            if (r.equals(role)) {
+                return r;
+            }
+        }
+        throw new AssertionError(role + " not in " + roles);
+    }
+}
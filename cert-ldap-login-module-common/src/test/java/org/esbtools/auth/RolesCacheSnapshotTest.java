@@ -0,0 +1,129 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth;
+
+import org.esbtools.auth.util.RolesCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class RolesCacheSnapshotTest {
+
+    private final Set<String> roles = new HashSet<>(Arrays.asList("admin", "developer"));
+    private final Set<String> otherRoles = new HashSet<>(Arrays.asList("developer", "caf\u00e9"));
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        RolesCache rolesCache = new RolesCache(60000, 0, true);
+        for (int i = 0; i < 1000; i++) {
+            rolesCache.put("user" + i, i % 2 == 0 ? roles : otherRoles, i % 3 == 0 ? "marker" + i : null);
+        }
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        rolesCache.writeSnapshot(snapshot);
+
+        RolesCache newCache = new RolesCache(60000, 0, true);
+        Assert.assertEquals(RolesCache.maximumSize, newCache.readSnapshot(new ByteArrayInputStream(snapshot.toByteArray())));
+
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            Set<String> cached = newCache.get("user" + i);
+            if (cached != null) {
+                found++;
+                Assert.assertEquals(i % 2 == 0 ? roles : otherRoles, cached);
+                Assert.assertEquals(i % 3 == 0 ? "marker" + i : null, newCache.getChangeMarker("user" + i));
+            }
+        }
+        Assert.assertEquals(RolesCache.maximumSize, found);
+        // shared role sets are written once
+        Assert.assertTrue(snapshot.size() < RolesCache.maximumSize * 32);
+    }
+
+    @Test
+    public void testHonoursRemainingExpiry() throws Exception {
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("derek63", roles);
+        rolesCache.put("lcestari", otherRoles);
+        rolesCache.expireAll();
+        rolesCache.put("mpatercz", roles);
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        rolesCache.writeSnapshot(snapshot);
+        Thread.sleep(200);
+
+        RolesCache newCache = new RolesCache(1000);
+        newCache.readSnapshot(new ByteArrayInputStream(snapshot.toByteArray()));
+
+        // expired before the snapshot: fallback only
+        Assert.assertNull(newCache.get("derek63"));
+        Assert.assertEquals(roles, newCache.getFromFallback("derek63"));
+        Assert.assertEquals(roles, newCache.get("mpatercz"));
+
+        Thread.sleep(1000);
+        Assert.assertNull(newCache.get("mpatercz"));
+        Assert.assertEquals(roles, newCache.getFromFallback("mpatercz"));
+    }
+
+    @Test
+    public void testKeepsNewerRoles() throws Exception {
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("derek63", roles);
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        rolesCache.writeSnapshot(snapshot);
+        Thread.sleep(10);
+
+        RolesCache newCache = new RolesCache(60000);
+        newCache.put("derek63", otherRoles);
+        Assert.assertEquals(0, newCache.readSnapshot(new ByteArrayInputStream(snapshot.toByteArray())));
+        Assert.assertEquals(otherRoles, newCache.get("derek63"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherData() throws Exception {
+        new RolesCache(60000).readSnapshot(new ByteArrayInputStream("not a snapshot".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testKeepsRolesReadBeforeTruncation() throws Exception {
+        RolesCache rolesCache = new RolesCache(60000);
+        rolesCache.put("derek63", roles);
+        rolesCache.put("lcestari", otherRoles);
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        rolesCache.writeSnapshot(snapshot);
+        byte[] truncated = Arrays.copyOf(snapshot.toByteArray(), snapshot.size() - 4);
+
+        RolesCache newCache = new RolesCache(60000);
+        try {
+            newCache.readSnapshot(new ByteArrayInputStream(truncated));
+            Assert.fail("Read truncated snapshot");
+        } catch (EOFException e) {
+            // expected
+        }
+        Assert.assertTrue(newCache.getFromFallback("derek63") != null || newCache.getFromFallback("lcestari") != null);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth;
+
+import org.esbtools.auth.util.MemcachedRolesCache;
+import org.esbtools.auth.util.RolesProvider;
+import org.esbtools.auth.util.SharedCacheRolesProvider;
+import org.esbtools.auth.util.SharedRolesCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SharedCacheRolesProviderTest {
+
+    @Mock
+    RolesProvider rolesProvider;
+
+    final Set<String> roles = new HashSet<String>(Arrays.asList(new String[]{"role1", "caf\u00e9"}));
+
+    MemcachedStandIn memcached;
+    MemcachedRolesCache sharedRolesCache;
+
+    @Before
+    public void setUp() throws Exception {
+        memcached = new MemcachedStandIn();
+        sharedRolesCache = new MemcachedRolesCache("localhost", memcached.getPort(), 60);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sharedRolesCache.close();
+        memcached.close();
+    }
+
+    @Test
+    public void testPassesDeadlineOnAndSharesRoles() throws Exception {
+        Instant deadline = Instant.now().plusSeconds(5);
+        Mockito.when(rolesProvider.getUserRoles("user", deadline)).thenReturn(roles);
+
+        SharedCacheRolesProvider provider = new SharedCacheRolesProvider(rolesProvider, sharedRolesCache);
+
+        Assert.assertEquals(roles, provider.getUserRoles("user", deadline));
+        Assert.assertEquals(roles, provider.getUserRoles("user", Instant.now().plusSeconds(5)));
+        Assert.assertEquals(roles, sharedRolesCache.get("user"));
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles(Mockito.eq("user"), Mockito.any(Instant.class));
+        Mockito.verify(rolesProvider, Mockito.never()).getUserRoles("user");
+        provider.close();
+    }
+
+    @Test
+    public void testOtherNodesUseSharedRoles() throws Exception {
+        Mockito.when(rolesProvider.getUserRoles("user")).thenReturn(roles);
+
+        SharedCacheRolesProvider node1 = new SharedCacheRolesProvider(rolesProvider, sharedRolesCache);
+        SharedCacheRolesProvider node2 = new SharedCacheRolesProvider(rolesProvider,
+                new MemcachedRolesCache("localhost", memcached.getPort(), 60));
+
+        Assert.assertEquals(roles, node1.getUserRoles("user"));
+        Assert.assertEquals(roles, node2.getUserRoles("user"));
+        Assert.assertEquals(roles, node2.getUserRolesAsync("user").get());
+        Mockito.verify(rolesProvider, Mockito.times(1)).getUserRoles("user");
+
+        node2.invalidate("user");
+        Assert.assertEquals(roles, node1.getUserRoles("user"));
+        Mockito.verify(rolesProvider, Mockito.times(2)).getUserRoles("user");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBulkLookupsOnlyFetchMissedUsers() throws Exception {
+        Map<String, Set<String>> fetched = new HashMap<>();
+        fetched.put("user2", roles);
+        Mockito.when(rolesProvider.getUserRoles(Mockito.any(Collection.class))).thenReturn(fetched);
+
+        sharedRolesCache.put("user1", Collections.singleton("role3"));
+        SharedCacheRolesProvider provider = new SharedCacheRolesProvider(rolesProvider, sharedRolesCache);
+
+        Map<String, Set<String>> rolesByUser = provider.getUserRoles(Arrays.asList("user1", "user2"));
+        Assert.assertEquals(Collections.singleton("role3"), rolesByUser.get("user1"));
+        Assert.assertEquals(roles, rolesByUser.get("user2"));
+        Mockito.verify(rolesProvider).getUserRoles(Collections.singleton("user2"));
+        Assert.assertEquals(roles, sharedRolesCache.get("user2"));
+    }
+
+    @Test
+    public void testFallsThroughWhenSharedCacheIsDown() throws Exception {
+        Mockito.when(rolesProvider.getUserRoles("user")).thenReturn(roles);
+        memcached.close();
+
+        SharedCacheRolesProvider provider = new SharedCacheRolesProvider(rolesProvider, sharedRolesCache);
+        Assert.assertEquals(roles, provider.getUserRoles("user"));
+    }
+
+    @Test
+    public void testKeysOfUnusualLogins() throws Exception {
+        char[] longLogin = new char[300];
+        Arrays.fill(longLogin, 'x');
+
+        for (String login : Arrays.asList("with space", "line\r\nbreak", new String(longLogin))) {
+            sharedRolesCache.put(login, roles);
+            Assert.assertEquals(roles, sharedRolesCache.get(login));
+        }
+        Assert.assertNull(sharedRolesCache.get("with"));
+    }
+
+    @Test
+    public void testAsyncLookupsDontWaitForSharedCache() throws Exception {
+        CountDownLatch sharedCacheReplies = new CountDownLatch(1);
+        SharedRolesCache slowSharedCache = Mockito.mock(SharedRolesCache.class);
+        Mockito.when(slowSharedCache.get("user")).thenAnswer(invocation -> {
+            sharedCacheReplies.await();
+            return null;
+        });
+        Mockito.when(rolesProvider.getUserRolesAsync("user")).thenReturn(CompletableFuture.completedFuture(roles));
+
+        SharedCacheRolesProvider provider = new SharedCacheRolesProvider(rolesProvider, slowSharedCache);
+        try {
+            CompletableFuture<Set<String>> lookup = provider.getUserRolesAsync("user");
+            Assert.assertFalse(lookup.isDone());
+
+            sharedCacheReplies.countDown();
+            Assert.assertEquals(roles, lookup.get(1, TimeUnit.SECONDS));
+            Mockito.verify(slowSharedCache).put("user", roles);
+        } finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void testIgnoresRolesNotSignedWithSecret() throws Exception {
+        MemcachedRolesCache signed = new MemcachedRolesCache("localhost", memcached.getPort(), 60,
+                "secret".getBytes(StandardCharsets.UTF_8));
+        MemcachedRolesCache unsigned = new MemcachedRolesCache("localhost", memcached.getPort(), 60);
+        MemcachedRolesCache forged = new MemcachedRolesCache("localhost", memcached.getPort(), 60,
+                "guess".getBytes(StandardCharsets.UTF_8));
+        try {
+            signed.put("user", roles);
+            Assert.assertEquals(roles, signed.get("user"));
+
+            unsigned.put("admin", Collections.singleton("admin"));
+            Assert.assertNull(signed.get("admin"));
+            forged.put("admin", Collections.singleton("admin"));
+            Assert.assertNull(signed.get("admin"));
+
+            // signed roles of another login
+            memcached.data.put(MemcachedRolesCache.DEFAULT_KEY_PREFIX + "admin",
+                    memcached.data.get(MemcachedRolesCache.DEFAULT_KEY_PREFIX + "user"));
+            Assert.assertNull(signed.get("admin"));
+        } finally {
+            signed.close();
+            unsigned.close();
+            forged.close();
+        }
+    }
+
+    /**
+     * Just enough of memcached's text protocol for the cache: get, set and delete.
+     */
+    static class MemcachedStandIn implements AutoCloseable {
+
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final Map<String, byte[]> data = new ConcurrentHashMap<>();
+
+        MemcachedStandIn() throws IOException {
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        Thread connection = new Thread(() -> serve(socket));
+                        connection.setDaemon(true);
+                        connection.start();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                String line;
+                while ((line = readLine(in)) != null) {
+                    String[] command = line.split(" ");
+                    StringBuilder response = new StringBuilder();
+                    byte[] value = null;
+
+                    if ("get".equals(command[0])) {
+                        for (int i = 1; i < command.length; i++) {
+                            byte[] found = data.get(command[i]);
+                            if (found != null) {
+                                out.write(("VALUE " + command[i] + " 0 " + found.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                                out.write(found);
+                                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                            }
+                        }
+                        response.append("END");
+                    } else if ("set".equals(command[0])) {
+                        value = new byte[Integer.parseInt(command[4])];
+                        for (int read = 0; read < value.length; ) {
+                            read += in.read(value, read, value.length - read);
+                        }
+                        readLine(in);
+                        data.put(command[1], value);
+                        response.append("STORED");
+                    } else if ("delete".equals(command[0])) {
+                        response.append(data.remove(command[1]) != null ? "DELETED" : "NOT_FOUND");
+                    } else {
+                        response.append("ERROR");
+                    }
+
+                    out.write((response + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // client went away
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    return null;
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.esbtools.auth.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Differential test of the DN scan against the full {@link DN} parse.
+ */
+public class CommonNameExtractorTest {
+
+  private static final List<String> DNS = Arrays.asList(
+      "cn=esbtools-developers,ou=Groups,dc=com",
+      "CN=Developers,OU=Groups,DC=example,DC=com",
+      "ou=Groups,cn=second,dc=com",
+      "uid=derek63,ou=People,dc=com",
+      "cn=one,cn=two,dc=com",
+      "cn=",
+      "cn=,dc=com",
+      "",
+      "cn=a\\,b,dc=com",
+      "cn=a\\+b\\;c\\\"d\\\\e\\<f\\>g\\=h,dc=com",
+      "cn=\\#hash,dc=com",
+      "cn=\\ leading and trailing\\ ,dc=com",
+      "cn=  padded  ,  dc=com",
+      "cn = spaced , dc = com",
+      "cn=inner  spaces,dc=com",
+      "cn=hex space\\20,dc=com",
+      "cn=caf\\C3\\A9,dc=com",
+      "cn=\\E6\\97\\A5\\E6\\9C\\AC,dc=com",
+      "cn=\\41\\42c,dc=com",
+      "cn=caf\u00e9,dc=com",
+      "cn=semi;dc=com",
+      "cn=a+ou=b,dc=com",
+      "ou=b+cn=a,dc=com",
+      "cn=\"quoted, value\",dc=com",
+      "cn=#04024869,dc=com",
+      "2.5.4.3=oid,dc=com",
+      "cn=a,",
+      "cn=a,,dc=com",
+      "cn=a,dc",
+      "=a,dc=com",
+      "cn=a\\",
+      "cn=a\\zz,dc=com",
+      "cn=a\\4,dc=com",
+      "cn=\\FF,dc=com",
+      "cn=a=b,dc=com",
+      "cn=a<b,dc=com",
+      "cn=a,dc=com,bad",
+      "cn=a,dc=com ",
+      " cn=a,dc=com");
+
+  @Test
+  public void matchesDNParsing() {
+    for (String dn : DNS) {
+      assertSameAsDN(dn);
+    }
+  }
+
+  @Test
+  public void matchesDNParsingOfRandomDNs() {
+    Random random = new Random(42);
+    String[] parts = {"cn", "CN", "ou", "dc", "=", ",", ";", "+", " ", "\\", "\\,", "\\2C", "\\C3\\A9",
+        "\\20", "a", "Z", "1", "-", "#", "\"", "<", "=", "\u00e9"};
+
+    for (int n = 0; n < 20000; n++) {
+      StringBuilder dn = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int i = 0; i < length; i++) {
+        dn.append(parts[random.nextInt(parts.length)]);
+      }
+      assertSameAsDN(dn.toString());
+    }
+  }
+
+  @Test
+  public void scansCommonForms() {
+    // the scan is not just falling back to DN
+    for (String dn : Arrays.asList("cn=esbtools-developers,ou=Groups,dc=com", "ou=Groups,cn=second,dc=com",
+        "cn=a\\,b,dc=com", "cn=caf\\C3\\A9,dc=com", "cn=  padded  ,  dc=com", "uid=derek63,dc=com")) {
+      assertTrue(dn, CommonNameExtractor.tryAddCommonName(dn, new ArrayList<String>()));
+    }
+  }
+
+  private static void assertSameAsDN(String dn) {
+    List<String> expected = new ArrayList<>();
+    LDAPException expectedError = null;
+    try {
+      CommonNameExtractor.addCommonNameFromDN(new DN(dn), expected);
+    } catch (LDAPException e) {
+      expectedError = e;
+    }
+
+    List<String> scanned = new ArrayList<>();
+    if (CommonNameExtractor.tryAddCommonName(dn, scanned)) {
+      if (expectedError != null) {
+        fail("Scanned invalid DN [" + dn + "] as " + scanned + ": " + expectedError.getMessage());
+      }
+      assertEquals("Roles of [" + dn + "]", expected, scanned);
+    } else {
+      assertTrue("Nothing added for [" + dn + "] when falling back", scanned.isEmpty());
+    }
+
+    List<String> extracted = new ArrayList<>();
+    try {
+      CommonNameExtractor.addCommonName(dn, extracted);
+      assertEquals("Roles of [" + dn + "]", expected, extracted);
+    } catch (LDAPException e) {
+      if (expectedError == null) {
+        fail("Failed on valid DN [" + dn + "]: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package org.esbtools.auth.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.esbtools.auth.util.RolesCache;
+import org.esbtools.auth.util.SharedCacheRolesProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class DirectoryChangeListenerTest {
+  private static final String USER = "uid=derek63,dc=com";
+  private static final String CONTRIBUTORS = "cn=esbtools-contributors,ou=Groups,dc=com";
+  private static final String DEVELOPERS = "cn=esbtools-developers,ou=Groups,dc=com";
+  private static final int RESPONSE_TIMEOUT_MS = 500;
+
+  private InMemoryDirectoryServer ldapServer;
+  private PersistentSearchInterceptor persistentSearch;
+  private LdapRolesProvider provider;
+  private DirectoryChangeListener listener;
+
+  private final RolesCache rolesCache = new RolesCache(60000);
+
+  @Before
+  public void startLdapServer() throws Exception {
+    InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=com");
+    config.addAdditionalBindCredentials("uid=admin,dc=com", "password");
+    config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("test", 0));
+    config.setSchema(null);
+
+    // the in-memory server has no persistent search, so it is simulated
+    persistentSearch = new PersistentSearchInterceptor();
+    config.addInMemoryOperationInterceptor(persistentSearch);
+
+    ldapServer = new InMemoryDirectoryServer(config);
+    persistentSearch.server = ldapServer;
+
+    ldapServer.add("dc=com", new Attribute("objectClass", "top"),
+        new Attribute("objectClass", "domain"),
+        new Attribute("dc", "com"));
+    ldapServer.add(USER, new Attribute("objectClass", "person"),
+        new Attribute("uid", "derek63"),
+        new Attribute("memberOf", CONTRIBUTORS));
+    ldapServer.startListening();
+
+    provider = new LdapRolesProvider("dc=com", new LdapConfiguration()
+        .bindDn("uid=admin,dc=com")
+        .bindDNPwd("password")
+        .server("localhost")
+        .port(ldapServer.getListenPort())
+        .responseTimeoutMS(RESPONSE_TIMEOUT_MS));
+  }
+
+  @After
+  public void stopLdapServer() {
+    if (listener != null) {
+      listener.close();
+    }
+    provider.close();
+    persistentSearch.stopped = true;
+    ldapServer.shutDown(true);
+  }
+
+  private void subscribe(boolean updateInPlace) throws Exception {
+    subscribe(updateInPlace, null);
+  }
+
+  private void subscribe(boolean updateInPlace, SharedCacheRolesProvider sharedCache) throws Exception {
+    // expired once subscribed
+    rolesCache.put("subscribed", Collections.<String>emptySet());
+
+    listener = new DirectoryChangeListener(provider, rolesCache, sharedCache, updateInPlace, 100);
+
+    for (int i = 0; i < 50 && (persistentSearch.subscribers.isEmpty()
+        || rolesCache.get("subscribed") != null); i++) {
+      Thread.sleep(100);
+    }
+    assertTrue(listener.isSubscribed());
+    assertNull(rolesCache.get("subscribed"));
+  }
+
+  private void addDevelopers() throws LDAPException {
+    // over the wire, interceptors don't see changes made through the server object
+    LDAPConnection connection = new LDAPConnection("localhost", ldapServer.getListenPort(),
+        "uid=admin,dc=com", "password");
+    try {
+      connection.modify(USER, new Modification(ModificationType.ADD, "memberOf", DEVELOPERS));
+    } finally {
+      connection.close();
+    }
+  }
+
+  private Set<String> awaitCachedRoles(Set<String> previous) throws InterruptedException {
+    for (int i = 0; i < 50; i++) {
+      Set<String> roles = rolesCache.get("derek63");
+      if (roles == null || !roles.equals(previous)) {
+        return roles;
+      }
+      Thread.sleep(100);
+    }
+    return previous;
+  }
+
+  @Test
+  public void invalidatesChangedUsers() throws Exception {
+    subscribe(false);
+
+    Set<String> roles = Collections.singleton("esbtools-contributors");
+    // cached under the login as presented, matched case-insensitively
+    rolesCache.put("DEREK63", roles);
+    rolesCache.put("lcestari", roles);
+
+    addDevelopers();
+
+    assertNull(awaitCachedRoles(roles));
+    // only expired, still there as fallback
+    assertEquals(roles, rolesCache.getFromFallback("derek63"));
+    // others are untouched
+    assertEquals(roles, rolesCache.get("lcestari"));
+  }
+
+  @Test
+  public void updatesChangedUsersInPlace() throws Exception {
+    subscribe(true);
+
+    Set<String> roles = Collections.singleton("esbtools-contributors");
+    rolesCache.put("derek63", roles);
+
+    addDevelopers();
+
+    assertEquals(new HashSet<>(Arrays.asList("esbtools-contributors", "esbtools-developers")),
+        awaitCachedRoles(roles));
+  }
+
+  @Test
+  public void expiresCacheWhenSubscribing() throws Exception {
+    Set<String> roles = Collections.singleton("esbtools-contributors");
+    rolesCache.put("derek63", roles);
+
+    subscribe(false);
+
+    assertNull(rolesCache.get("derek63"));
+    assertEquals(roles, rolesCache.getFromFallback("derek63"));
+  }
+
+  @Test
+  public void invalidatesOnlyChangedUsersInSharedCache() throws Exception {
+    SharedCacheRolesProvider sharedCache = Mockito.mock(SharedCacheRolesProvider.class);
+    subscribe(false, sharedCache);
+
+    rolesCache.put("derek63", Collections.singleton("esbtools-contributors"));
+    addDevelopers();
+
+    assertNull(awaitCachedRoles(Collections.singleton("esbtools-contributors")));
+    Mockito.verify(sharedCache).invalidate("derek63");
+    // resubscribing only expires the local cache
+    Mockito.verify(sharedCache, Mockito.never()).invalidateAll();
+  }
+
+  @Test
+  public void staysSubscribedBeyondResponseTimeout() throws Exception {
+    subscribe(false);
+
+    Set<String> roles = Collections.singleton("esbtools-contributors");
+    rolesCache.put("derek63", roles);
+
+    Thread.sleep(4 * RESPONSE_TIMEOUT_MS);
+
+    assertTrue(listener.isSubscribed());
+    assertEquals(1, persistentSearch.subscribers.size());
+    // not expired by a resubscription
+    assertEquals(roles, rolesCache.get("derek63"));
+  }
+
+  /**
+   * Holds persistent searches open and sends them the entries of successful modifications.
+   */
+  static class PersistentSearchInterceptor extends InMemoryOperationInterceptor {
+    final List<BlockingQueue<String>> subscribers = new CopyOnWriteArrayList<>();
+    volatile InMemoryDirectoryServer server;
+    volatile boolean stopped = false;
+
+    @Override
+    public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+      if (!request.getRequest().hasControl(PersistentSearchRequestControl.PERSISTENT_SEARCH_REQUEST_OID)) {
+        return;
+      }
+
+      BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+      subscribers.add(changes);
+
+      try {
+        while (!stopped) {
+          String dn = changes.poll(100, TimeUnit.MILLISECONDS);
+          if (dn != null) {
+            Entry entry = server.getEntry(dn);
+            if (entry != null) {
+              request.sendSearchEntry(entry);
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        subscribers.remove(changes);
+      }
+
+      throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM, "Server stopped");
+    }
+
+    @Override
+    public void processModifyResult(InMemoryInterceptedModifyResult result) {
+      if (result.getResult().getResultCode() == ResultCode.SUCCESS) {
+        for (BlockingQueue<String> changes : subscribers) {
+          changes.add(result.getRequest().getDN());
+        }
+      }
+    }
+  }
+}
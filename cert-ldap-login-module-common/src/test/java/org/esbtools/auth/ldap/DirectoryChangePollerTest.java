@@ -0,0 +1,128 @@
+package org.esbtools.auth.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.esbtools.auth.util.RolesCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryChangePollerTest {
+  private static final long POLL_INTERVAL_MS = 200;
+
+  private static final String CONTRIBUTORS = "cn=esbtools-contributors,ou=Groups,dc=com";
+  private static final String DEVELOPERS = "cn=esbtools-developers,ou=Groups,dc=com";
+  private static final Set<String> CONTRIBUTOR_ROLES = Collections.singleton("esbtools-contributors");
+
+  private InMemoryDirectoryServer ldapServer;
+  private LdapRolesProvider provider;
+  private DirectoryChangePoller poller;
+
+  private final RolesCache rolesCache = new RolesCache(60000);
+
+  @Before
+  public void startLdapServer() throws Exception {
+    InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=com");
+    config.addAdditionalBindCredentials("uid=admin,dc=com", "password");
+    config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("test", 0));
+    config.setSchema(null);
+
+    ldapServer = new InMemoryDirectoryServer(config);
+
+    ldapServer.add("dc=com", new Attribute("objectClass", "top"),
+        new Attribute("objectClass", "domain"),
+        new Attribute("dc", "com"));
+    for (String uid : Arrays.asList("derek63", "lcestari")) {
+      ldapServer.add("uid=" + uid + ",dc=com", new Attribute("objectClass", "person"),
+          new Attribute("uid", uid),
+          new Attribute("memberOf", CONTRIBUTORS));
+    }
+    ldapServer.startListening();
+
+    provider = new LdapRolesProvider("dc=com", new LdapConfiguration()
+        .bindDn("uid=admin,dc=com")
+        .bindDNPwd("password")
+        .server("localhost")
+        .port(ldapServer.getListenPort()));
+
+    // so the entries above are older than the first sync point
+    Thread.sleep(2 * POLL_INTERVAL_MS);
+  }
+
+  @After
+  public void stopLdapServer() {
+    if (poller != null) {
+      poller.close();
+    }
+    provider.close();
+    ldapServer.shutDown(true);
+  }
+
+  private void addDevelopers() throws LDAPException {
+    ldapServer.modify("uid=derek63,dc=com",
+        new Modification(ModificationType.ADD, "memberOf", DEVELOPERS));
+  }
+
+  private Set<String> awaitCachedRoles(Set<String> previous) throws InterruptedException {
+    for (int i = 0; i < 50; i++) {
+      Set<String> roles = rolesCache.get("derek63");
+      if (roles == null || !roles.equals(previous)) {
+        return roles;
+      }
+      Thread.sleep(100);
+    }
+    return previous;
+  }
+
+  @Test
+  public void invalidatesChangedUsers() throws Exception {
+    poller = new DirectoryChangePoller(provider, rolesCache, false, POLL_INTERVAL_MS);
+    rolesCache.put("derek63", CONTRIBUTOR_ROLES);
+    rolesCache.put("lcestari", CONTRIBUTOR_ROLES);
+
+    addDevelopers();
+
+    assertNull(awaitCachedRoles(CONTRIBUTOR_ROLES));
+    // others are untouched
+    assertEquals(CONTRIBUTOR_ROLES, rolesCache.get("lcestari"));
+  }
+
+  @Test
+  public void updatesChangedUsersInPlace() throws Exception {
+    poller = new DirectoryChangePoller(provider, rolesCache, true, POLL_INTERVAL_MS);
+    rolesCache.put("derek63", CONTRIBUTOR_ROLES);
+
+    addDevelopers();
+
+    assertEquals(new HashSet<>(Arrays.asList("esbtools-contributors", "esbtools-developers")),
+        awaitCachedRoles(CONTRIBUTOR_ROLES));
+  }
+
+  @Test
+  public void appliesChangesOnce() throws Exception {
+    poller = new DirectoryChangePoller(provider, rolesCache, false, POLL_INTERVAL_MS);
+    rolesCache.put("derek63", CONTRIBUTOR_ROLES);
+
+    addDevelopers();
+    assertNull(awaitCachedRoles(CONTRIBUTOR_ROLES));
+
+    // the change is at the sync point now, and must not be seen as a change again
+    Thread.sleep(2 * POLL_INTERVAL_MS);
+    rolesCache.put("derek63", CONTRIBUTOR_ROLES);
+    Thread.sleep(3 * POLL_INTERVAL_MS);
+
+    assertEquals(CONTRIBUTOR_ROLES, rolesCache.get("derek63"));
+  }
+}
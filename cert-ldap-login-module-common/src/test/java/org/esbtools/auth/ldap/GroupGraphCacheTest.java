@@ -0,0 +1,107 @@
+/*
+ Copyright 2017 esbtools Contributors and/or its affiliates.
+
+ This file is part of esbtools.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.esbtools.auth.ldap;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GroupGraphCacheTest {
+
+    @Mock
+    GroupGraphCache.ParentGroupLoader loader;
+
+    static DN dn(String cn) throws LDAPException {
+        return new DN("cn=" + cn + ",ou=Groups,dc=example,dc=com");
+    }
+
+    static Set<DN> dns(String... cns) throws LDAPException {
+        Set<DN> dns = new HashSet<>();
+        for (String cn : cns) {
+            dns.add(dn(cn));
+        }
+        return dns;
+    }
+
+    @Test
+    public void testExpansionIsMemoized() throws Exception {
+        // a -> b -> c, d -> b
+        Mockito.when(loader.getParentGroups(dn("a"))).thenReturn(dns("b"));
+        Mockito.when(loader.getParentGroups(dn("b"))).thenReturn(dns("c"));
+        Mockito.when(loader.getParentGroups(dn("c"))).thenReturn(dns());
+        Mockito.when(loader.getParentGroups(dn("d"))).thenReturn(dns("b"));
+
+        GroupGraphCache groupGraphCache = new GroupGraphCache(loader, 60000);
+
+        Assert.assertEquals(dns("a", "b", "c"), groupGraphCache.expand(dn("a")));
+        Assert.assertEquals(dns("a", "b", "c", "d"), groupGraphCache.expand(Arrays.asList(dn("a"), dn("d"))));
+        // DNs are compared normalized
+        Assert.assertEquals(dns("a", "b", "c"), groupGraphCache.expand(new DN("CN=A, OU=Groups, DC=example, DC=com")));
+
+        // every group was loaded once
+        Mockito.verify(loader, Mockito.times(1)).getParentGroups(dn("a"));
+        Mockito.verify(loader, Mockito.times(1)).getParentGroups(dn("b"));
+        Mockito.verify(loader, Mockito.times(1)).getParentGroups(dn("c"));
+        Mockito.verify(loader, Mockito.times(1)).getParentGroups(dn("d"));
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        // a -> b -> c -> a
+        Mockito.when(loader.getParentGroups(dn("a"))).thenReturn(dns("b"));
+        Mockito.when(loader.getParentGroups(dn("b"))).thenReturn(dns("c"));
+        Mockito.when(loader.getParentGroups(dn("c"))).thenReturn(dns("a"));
+
+        GroupGraphCache groupGraphCache = new GroupGraphCache(loader, 60000);
+
+        Assert.assertEquals(dns("a", "b", "c"), groupGraphCache.expand(dn("a")));
+        Assert.assertEquals(dns("a", "b", "c"), groupGraphCache.expand(dn("c")));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        Mockito.when(loader.getParentGroups(dn("a"))).thenReturn(dns("b"), dns());
+        Mockito.when(loader.getParentGroups(dn("b"))).thenReturn(Collections.<DN>emptySet());
+
+        GroupGraphCache groupGraphCache = new GroupGraphCache(loader, 100);
+
+        Assert.assertEquals(dns("a", "b"), groupGraphCache.expand(dn("a")));
+        Thread.sleep(200);
+        Assert.assertEquals(dns("a"), groupGraphCache.expand(dn("a")));
+    }
+
+    @Test(expected = LDAPException.class)
+    public void testLoaderFailure() throws Exception {
+        Mockito.when(loader.getParentGroups(dn("a"))).thenThrow(new LDAPException(ResultCode.SERVER_DOWN));
+
+        new GroupGraphCache(loader, 60000).expand(dn("a"));
+    }
+}
@@ -21,18 +21,30 @@ package org.esbtools.auth.ldap;
 import com.redhat.lightblue.ldap.test.LdapServerExternalResource;
 import com.redhat.lightblue.ldap.test.LdapServerExternalResource.InMemoryLdapServer;
 import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchScope;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
+import org.mockito.Mockito;
 
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 @InMemoryLdapServer
@@ -45,7 +57,13 @@ public class LdapRoleProviderIntegrationTest {
     private static final String BASEDB_USERS = "ou=Users,dc=example,dc=com";
     private static final String USER_WITH_ROLES = "uid=derek63,ou=Users,dc=example,dc=com";
     private static final String USER_WITH_NO_ROLES = "uid=lcestari,ou=Users,dc=example,dc=com";
+    private static final String USER_DUPLICATED = "uid=twins,ou=Users,dc=example,dc=com";
+    private static final String USER_DUPLICATED_COPY = "uid=twins,ou=Departments,dc=example,dc=com";
     private static final String BASEDB_GROUPS = "ou=Departments,dc=example,dc=com";
+    private static final String BASEDB_ROLE_GROUPS = "ou=Groups,dc=example,dc=com";
+    private static final String GROUP_DEVELOPERS = "cn=esbtools-developers,ou=Groups,dc=example,dc=com";
+    private static final String GROUP_ENGINEERING = "cn=esbtools-engineering,ou=Groups,dc=example,dc=com";
+    private static final String GROUP_ALL = "cn=esbtools-all,ou=Groups,dc=example,dc=com";
 
     private static LdapRolesProvider provider;
 
@@ -60,6 +78,21 @@ public class LdapRoleProviderIntegrationTest {
         ldapServer.add(USER_WITH_ROLES, new Attribute[]{new Attribute("cn", "derek63"), new Attribute("uid", "derek63"),
             new Attribute("memberOf", "cn=esbtools-contributors,ou=Groups,dc=example,dc=com"),
             new Attribute("memberOf", "cn=esbtools-developers,ou=Groups,dc=example,dc=com"), new Attribute("objectClass", "person")});
+        ldapServer.add(USER_DUPLICATED, new Attribute[]{new Attribute("cn", "twins"), new Attribute("uid", "twins"),
+            new Attribute("memberOf", "cn=esbtools-contributors,ou=Groups,dc=example,dc=com"), new Attribute("objectClass", "person")});
+        ldapServer.add(USER_DUPLICATED_COPY, new Attribute[]{new Attribute("cn", "twins"), new Attribute("uid", "twins"),
+            new Attribute("memberOf", "cn=esbtools-contributors,ou=Groups,dc=example,dc=com"), new Attribute("objectClass", "person")});
+
+        // developers -> engineering -> all, with a cycle back from engineering to developers.
+        // contributors has no entry.
+        ldapServer.add(BASEDB_ROLE_GROUPS, new Attribute[]{new Attribute("objectClass", "top"), new Attribute("objectClass", "organizationalUnit"),
+            new Attribute("ou", "Groups")});
+        ldapServer.add(GROUP_DEVELOPERS, new Attribute[]{new Attribute("cn", "esbtools-developers"), new Attribute("objectClass", "groupOfNames"),
+            new Attribute("member", USER_WITH_ROLES), new Attribute("memberOf", GROUP_ENGINEERING)});
+        ldapServer.add(GROUP_ENGINEERING, new Attribute[]{new Attribute("cn", "esbtools-engineering"), new Attribute("objectClass", "groupOfNames"),
+            new Attribute("member", GROUP_DEVELOPERS), new Attribute("memberOf", GROUP_ALL), new Attribute("memberOf", GROUP_DEVELOPERS)});
+        ldapServer.add(GROUP_ALL, new Attribute[]{new Attribute("cn", "esbtools-all"), new Attribute("objectClass", "groupOfNames"),
+            new Attribute("member", GROUP_ENGINEERING)});
 
         System.setProperty("ldap.host", "localhost");
         System.setProperty("ldap.port", String.valueOf(LdapServerExternalResource.DEFAULT_PORT));
@@ -90,6 +123,289 @@ public class LdapRoleProviderIntegrationTest {
         assertEquals(expectedUserRoles, userRoles);
     }
 
+    @Test
+    public void testChangeMarker() throws Exception {
+        String changeMarker = provider.getChangeMarker("derek63");
+        assertNotNull(changeMarker);
+        assertEquals(changeMarker, provider.getChangeMarkerAsync("derek63").get());
+
+        // no single entry
+        assertNull(provider.getChangeMarker("idontexist"));
+        assertNull(provider.getChangeMarker("twins"));
+    }
+
+    @Test
+    public void testBulkLookup() throws Exception {
+        Set<String> expectedUserRoles = new HashSet<>();
+        expectedUserRoles.add("esbtools-contributors");
+        expectedUserRoles.add("esbtools-developers");
+
+        Map<String, Set<String>> rolesByUser = provider.getUserRoles(
+            Arrays.asList("derek63", "lcestari", "idontexist", "twins", "DEREK63"));
+
+        assertEquals(5, rolesByUser.size());
+        assertEquals(expectedUserRoles, rolesByUser.get("derek63"));
+        assertEquals(expectedUserRoles, rolesByUser.get("DEREK63"));
+        assertTrue(rolesByUser.get("lcestari").isEmpty());
+        assertTrue(rolesByUser.get("idontexist").isEmpty());
+        // same as single user lookup: duplicate entries yield no roles
+        assertTrue(rolesByUser.get("twins").isEmpty());
+        assertEquals(provider.getUserRoles("twins"), rolesByUser.get("twins"));
+    }
+
+    @Test
+    public void testBulkLookupInSeveralBatches() throws Exception {
+        LdapConfiguration ldapConfig = new LdapConfiguration()
+                .bindDn(LdapServerExternalResource.DEFAULT_BINDABLE_DN)
+                .bindDNPwd(LdapServerExternalResource.DEFAULT_PASSWORD)
+                .server("localhost")
+                .port(LdapServerExternalResource.DEFAULT_PORT)
+                .searchBatchSize(1);
+
+        LdapRolesProvider batchingProvider = new LdapRolesProvider(
+                LdapServerExternalResource.DEFAULT_BASE_DN,
+                ldapConfig);
+
+        Map<String, Set<String>> rolesByUser = batchingProvider.getUserRoles(
+            Arrays.asList("derek63", "lcestari", "idontexist"));
+
+        assertEquals(3, rolesByUser.size());
+        assertEquals(provider.getUserRoles("derek63"), rolesByUser.get("derek63"));
+        assertTrue(rolesByUser.get("lcestari").isEmpty());
+    }
+
+    @Test
+    public void testConfiguredSearchShape() throws Exception {
+        LdapConfiguration ldapConfig = new LdapConfiguration()
+                .bindDn(LdapServerExternalResource.DEFAULT_BINDABLE_DN)
+                .bindDNPwd(LdapServerExternalResource.DEFAULT_PASSWORD)
+                .server("localhost")
+                .port(LdapServerExternalResource.DEFAULT_PORT)
+                .userFilter("(&(objectClass=*)(uid={0}))")
+                .returnedAttributes(Arrays.asList("memberOf"))
+                .searchScope(SearchScope.SUB)
+                .searchSizeLimit(2)
+                .searchTimeLimitSeconds(5);
+
+        LdapRolesProvider shapedProvider = new LdapRolesProvider(
+                LdapServerExternalResource.DEFAULT_BASE_DN,
+                ldapConfig);
+
+        try {
+            assertEquals(provider.getUserRoles("derek63"), shapedProvider.getUserRoles("derek63"));
+            assertEquals(provider.getUserRoles("derek63"),
+                shapedProvider.getUserRoles(Arrays.asList("derek63")).get("derek63"));
+            assertTrue(shapedProvider.getUserRoles("twins").isEmpty());
+
+            // user names are escaped, not taken as filter syntax
+            assertTrue(shapedProvider.getUserRoles("derek6*").isEmpty());
+            assertTrue(shapedProvider.getUserRoles("derek63)(uid=*").isEmpty());
+        } finally {
+            shapedProvider.close();
+        }
+    }
+
+    @Test
+    public void testBulkLookupWithFilterNotOnUserAttribute() throws Exception {
+        LdapConfiguration ldapConfig = new LdapConfiguration()
+                .bindDn(LdapServerExternalResource.DEFAULT_BINDABLE_DN)
+                .bindDNPwd(LdapServerExternalResource.DEFAULT_PASSWORD)
+                .server("localhost")
+                .port(LdapServerExternalResource.DEFAULT_PORT)
+                .userFilter("(uid={0}63)");
+
+        LdapRolesProvider shapedProvider = new LdapRolesProvider(
+                LdapServerExternalResource.DEFAULT_BASE_DN,
+                ldapConfig);
+
+        try {
+            Map<String, Set<String>> rolesByUser = shapedProvider.getUserRoles(Arrays.asList("derek", "lcestari"));
+
+            assertEquals(2, rolesByUser.size());
+            assertEquals(provider.getUserRoles("derek63"), rolesByUser.get("derek"));
+            assertTrue(rolesByUser.get("lcestari").isEmpty());
+        } finally {
+            shapedProvider.close();
+        }
+    }
+
+    @Test
+    public void testMultipleServers() throws Exception {
+        for (ServerSelectionStrategy strategy : ServerSelectionStrategy.values()) {
+            LdapConfiguration ldapConfig = new LdapConfiguration()
+                    .bindDn(LdapServerExternalResource.DEFAULT_BINDABLE_DN)
+                    .bindDNPwd(LdapServerExternalResource.DEFAULT_PASSWORD)
+                    // nothing listens on the first one
+                    .servers(Arrays.asList("localhost:1", "localhost"))
+                    .port(LdapServerExternalResource.DEFAULT_PORT)
+                    .serverSelectionStrategy(strategy);
+
+            LdapRolesProvider multiServerProvider = new LdapRolesProvider(
+                    LdapServerExternalResource.DEFAULT_BASE_DN,
+                    ldapConfig);
+
+            try {
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(strategy.name(), provider.getUserRoles("derek63"), multiServerProvider.getUserRoles("derek63"));
+                }
+            } finally {
+                multiServerProvider.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLatencyAwareWithHedging() throws Exception {
+        LdapConfiguration ldapConfig = new LdapConfiguration()
+                .bindDn(LdapServerExternalResource.DEFAULT_BINDABLE_DN)
+                .bindDNPwd(LdapServerExternalResource.DEFAULT_PASSWORD)
+                .servers(Arrays.asList("localhost", "127.0.0.1"))
+                .port(LdapServerExternalResource.DEFAULT_PORT)
+                .serverSelectionStrategy(ServerSelectionStrategy.LATENCY_AWARE)
+                // hedge as soon as possible
+                .hedgeDelayPercentile(0.0);
+
+        LdapRolesProvider latencyAwareProvider = new LdapRolesProvider(
+                LdapServerExternalResource.DEFAULT_BASE_DN,
+                ldapConfig);
+
+        try {
+            // enough lookups to have latency samples, so later ones are hedged
+            for (int i = 0; i < 3 * LatencyAwareSearcher.MIN_SAMPLES_TO_HEDGE; i++) {
+                assertEquals(provider.getUserRoles("derek63"), latencyAwareProvider.getUserRoles("derek63"));
+                assertEquals(provider.getUserRoles("derek63"), latencyAwareProvider.getUserRolesAsync("derek63").get());
+            }
+            assertTrue(latencyAwareProvider.getUserRoles("idontexist").isEmpty());
+        } finally {
+            latencyAwareProvider.close();
+        }
+    }
+
+    @Test
+    public void testUserWithRolesAsync() throws Exception {
+        Set<String> expectedUserRoles = new HashSet<>();
+        expectedUserRoles.add("esbtools-contributors");
+        expectedUserRoles.add("esbtools-developers");
+
+        assertEquals(expectedUserRoles, provider.getUserRolesAsync("derek63").get());
+        assertTrue(provider.getUserRolesAsync("idontexist").get().isEmpty());
+    }
+
+    @Test
+    public void testUserWithRolesWithDeadline() throws Exception {
+        Set<String> expectedUserRoles = new HashSet<>();
+        expectedUserRoles.add("esbtools-contributors");
+        expectedUserRoles.add("esbtools-developers");
+
+        assertEquals(expectedUserRoles, provider.getUserRoles("derek63", Instant.now().plusSeconds(5)));
+
+        try {
+            provider.getUserRoles("derek63", Instant.now().minusMillis(1));
+            fail("Expected a timeout");
+        } catch (TimeoutException e) {
+            // deadline passed
+        }
+    }
+
+    @Test
+    public void testNestedGroups() throws Exception {
+        LdapConfiguration ldapConfig = new LdapConfiguration()
+                .bindDn(LdapServerExternalResource.DEFAULT_BINDABLE_DN)
+                .bindDNPwd(LdapServerExternalResource.DEFAULT_PASSWORD)
+                .server("localhost")
+                .port(LdapServerExternalResource.DEFAULT_PORT)
+                .nestedGroups(true);
+
+        LdapRolesProvider nestedProvider = new LdapRolesProvider(
+                LdapServerExternalResource.DEFAULT_BASE_DN,
+                ldapConfig);
+
+        try {
+            Set<String> expectedUserRoles = new HashSet<>();
+            expectedUserRoles.add("esbtools-contributors");
+            expectedUserRoles.add("esbtools-developers");
+            expectedUserRoles.add("esbtools-engineering");
+            expectedUserRoles.add("esbtools-all");
+
+            assertEquals(expectedUserRoles, nestedProvider.getUserRoles("derek63"));
+            assertEquals(expectedUserRoles, nestedProvider.getUserRolesAsync("derek63").get());
+            assertEquals(expectedUserRoles, nestedProvider.getUserRoles(Arrays.asList("derek63", "lcestari")).get("derek63"));
+            assertTrue(nestedProvider.getUserRoles("lcestari").isEmpty());
+        } finally {
+            nestedProvider.close();
+        }
+    }
+
+    @Test
+    public void testPreloadedRoles() throws Exception {
+        Set<String> expectedUserRoles = new HashSet<>();
+        expectedUserRoles.add("esbtools-contributors");
+        expectedUserRoles.add("esbtools-developers");
+
+        // a page per user
+        PreloadedRolesProvider preloadedProvider = new PreloadedRolesProvider(provider, 60000, 1, true);
+
+        try {
+            assertTrue(preloadedProvider.awaitLoaded(5, TimeUnit.SECONDS));
+            assertTrue(preloadedProvider.size() >= 3);
+            assertEquals(expectedUserRoles, preloadedProvider.getUserRoles("derek63"));
+            assertEquals(expectedUserRoles, preloadedProvider.getUserRoles("DEREK63"));
+            assertTrue(preloadedProvider.getUserRoles("lcestari").isEmpty());
+            assertTrue(preloadedProvider.getUserRoles("twins").isEmpty());
+
+            // users added since are looked up live, until the next refresh
+            ldapServer.add("uid=preloaded,ou=Users,dc=example,dc=com", new Attribute[]{new Attribute("cn", "preloaded"),
+                new Attribute("uid", "preloaded"), new Attribute("objectClass", "person"),
+                new Attribute("memberOf", "cn=esbtools-contributors,ou=Groups,dc=example,dc=com")});
+            int preloadedUsers = preloadedProvider.size();
+
+            assertEquals(Collections.singleton("esbtools-contributors"), preloadedProvider.getUserRoles("preloaded"));
+            assertEquals(preloadedUsers, preloadedProvider.size());
+
+            preloadedProvider.refresh();
+
+            assertEquals(preloadedUsers + 1, preloadedProvider.size());
+            assertEquals(Collections.singleton("esbtools-contributors"), preloadedProvider.getUserRolesAsync("preloaded").get());
+        } finally {
+            preloadedProvider.close();
+        }
+    }
+
+    @Test
+    public void testPreloadRetriedUntilItSucceeds() throws Exception {
+        LdapRolesProvider failingProvider = Mockito.mock(LdapRolesProvider.class);
+        Mockito.when(failingProvider.getAllUserRoles(Mockito.anyInt()))
+            .thenThrow(new LDAPException(ResultCode.SERVER_DOWN))
+            .thenReturn(Collections.singletonMap("derek63", Collections.singleton("esbtools-developers")));
+        Mockito.when(failingProvider.getUserRoles("derek63")).thenReturn(Collections.singleton("live"));
+
+        PreloadedRolesProvider preloadedProvider = new PreloadedRolesProvider(failingProvider, 100, 1, false);
+
+        try {
+            assertTrue(preloadedProvider.awaitLoaded(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singleton("esbtools-developers"), preloadedProvider.getUserRoles("derek63"));
+            Mockito.verify(failingProvider, Mockito.atLeast(2)).getAllUserRoles(1);
+        } finally {
+            preloadedProvider.close();
+        }
+    }
+
+    @Test
+    public void testNotPreloadedYetLooksUpLive() throws Exception {
+        LdapRolesProvider failingProvider = Mockito.mock(LdapRolesProvider.class);
+        Mockito.when(failingProvider.getAllUserRoles(Mockito.anyInt())).thenThrow(new LDAPException(ResultCode.SERVER_DOWN));
+        Mockito.when(failingProvider.getUserRoles("derek63")).thenReturn(Collections.singleton("live"));
+
+        // no live fallback once loaded, but the index isn't there yet
+        PreloadedRolesProvider preloadedProvider = new PreloadedRolesProvider(failingProvider, 60000, 1, false);
+
+        try {
+            assertEquals(Collections.singleton("live"), preloadedProvider.getUserRoles("derek63"));
+        } finally {
+            preloadedProvider.close();
+        }
+    }
+
     @Test
     public void testUserWithNoRoles() throws Exception {
         assertTrue(provider.getUserRoles("lcestari").isEmpty());
@@ -64,20 +64,22 @@ public class LdapRoleProviderRecoveryTest {
       // fall through
     }
 
-    // Above should fail even if server already started due to retry interval, however it's possible
-    // (if unlikely) the test could take a second before calling getUserRoles which would mean it
-    // would attempt the connection, succeed, then fail the test. Thus to avoid a flakey test,
-    // not testing that case exactly.
+    // Connection recovery happens in the background, the first retry after at most
+    // retryIntervalSeconds. Lookups fail fast until then.
     ldapServer.startListening();
 
-    // Wait retry interval...
-    Thread.sleep(1000);
-
-    try {
-      provider.getUserRoles("test");
-      // pass!
-    } catch (LDAPException e) {
-      fail("Expected to recover after retry interval but got: " + e);
+    LDAPException lastError = null;
+    for (int i = 0; i < 30; i++) {
+      Thread.sleep(100);
+      try {
+        provider.getUserRoles("test");
+        // pass!
+        return;
+      } catch (LDAPException e) {
+        lastError = e;
+      }
     }
+
+    fail("Expected to recover after retry interval but got: " + lastError);
   }
 }
@@ -18,23 +18,44 @@
  */
 package org.esbtools.auth.jboss;
 
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.Principal;
 import java.security.acl.Group;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.login.LoginException;
 
+import com.unboundid.ldap.sdk.SearchScope;
 import org.apache.commons.lang.StringUtils;
+import org.esbtools.auth.ldap.DirectoryChangeListener;
+import org.esbtools.auth.ldap.DirectoryChangePoller;
 import org.esbtools.auth.ldap.LdapConfiguration;
 import org.esbtools.auth.ldap.LdapRolesProvider;
+import org.esbtools.auth.ldap.PreloadedRolesProvider;
+import org.esbtools.auth.ldap.ServerSelectionStrategy;
+import org.esbtools.auth.util.BatchingRolesProvider;
 import org.esbtools.auth.util.CachedRolesProvider;
+import org.esbtools.auth.util.CircuitBreaker;
 import org.esbtools.auth.util.Environment;
+import org.esbtools.auth.util.FallbackRolesStore;
+import org.esbtools.auth.util.InvalidationChannel;
+import org.esbtools.auth.util.MemcachedRolesCache;
 import org.esbtools.auth.util.RolesCache;
+import org.esbtools.auth.util.RolesCacheStats;
 import org.esbtools.auth.util.RolesProvider;
+import org.esbtools.auth.util.SharedCacheRolesProvider;
+import org.esbtools.auth.util.TcpInvalidationTransport;
 import org.jboss.security.SimpleGroup;
 import org.jboss.security.auth.spi.BaseCertLoginModule;
 import org.slf4j.Logger;
@@ -48,6 +69,10 @@ public class CertLdapLoginModule extends BaseCertLoginModule {
     public static final String AUTH_ROLE_NAME = "authRoleName";
     public static final String SERVER = "ldapServer";
     public static final String PORT = "port";
+    public static final String SERVERS = "ldapServers";
+    public static final String SERVER_SELECTION_STRATEGY = "serverSelectionStrategy";
+    public static final String HEALTH_CHECK_INTERVAL_MS = "healthCheckIntervalMS";
+    public static final String HEDGE_DELAY_PERCENTILE = "hedgeDelayPercentile";
     public static final String SEARCH_BASE = "searchBase";
     public static final String BIND_DN = "bindDn";
     public static final String BIND_PWD = "bindPassword";
@@ -61,21 +86,87 @@ public class CertLdapLoginModule extends BaseCertLoginModule {
     public static final String DEBUG = "debug";
     public static final String KEEP_ALIVE = "keepAlive";
     public static final String ROLES_CACHE_EXPIRY_MS = "rolesCacheExpiryMS";
+    public static final String ROLES_CACHE_REFRESH_MS = "rolesCacheRefreshMS";
     public static final String ENVIRONMENT = "environment";
     public static final String ALL_ACCESS_OU = "allAccessOu";
     public static final String RETRY_INTERVAL_SECONDS = "retryIntervalSeconds";
+    public static final String MAX_RETRY_INTERVAL_SECONDS = "maxRetryIntervalSeconds";
+    public static final String SEARCH_BATCH_SIZE = "searchBatchSize";
+    public static final String BATCH_WINDOW_MS = "batchWindowMS";
+    public static final String MAX_BATCH_SIZE = "maxBatchSize";
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE = "circuitBreakerFailureRate";
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_MS = "circuitBreakerSlowCallMS";
+    public static final String CIRCUIT_BREAKER_OPEN_MS = "circuitBreakerOpenMS";
+    public static final String ROLES_LOOKUP_BUDGET_MS = "rolesLookupBudgetMS";
+    public static final String NESTED_GROUPS = "nestedGroups";
+    public static final String NESTED_GROUP_CACHE_EXPIRY_MS = "nestedGroupCacheExpiryMS";
+    public static final String PRELOAD_INTERVAL_MS = "preloadIntervalMS";
+    public static final String PRELOAD_PAGE_SIZE = "preloadPageSize";
+    public static final String CHANGE_NOTIFICATIONS = "changeNotifications";
+    public static final String CHANGE_POLL_INTERVAL_MS = "changePollIntervalMS";
+    public static final String ROLES_CACHE_REVALIDATE = "rolesCacheRevalidate";
+    public static final String CHANGE_MARKER_ATTRIBUTE = "changeMarkerAttribute";
+    public static final String USER_ATTRIBUTE = "userAttribute";
+    public static final String MEMBERSHIP_ATTRIBUTE = "membershipAttribute";
+    public static final String USER_FILTER = "userFilter";
+    public static final String RETURNED_ATTRIBUTES = "returnedAttributes";
+    public static final String SEARCH_SCOPE = "searchScope";
+    public static final String SEARCH_SIZE_LIMIT = "searchSizeLimit";
+    public static final String SEARCH_TIME_LIMIT_SECONDS = "searchTimeLimitSeconds";
+    public static final String FALLBACK_STORE_FILE = "fallbackStoreFile";
+    public static final String FALLBACK_STORE_MAX_SIZE = "fallbackStoreMaxSize";
+    public static final String SHARED_CACHE_SERVER = "sharedCacheServer";
+    public static final String SHARED_CACHE_SECRET = "sharedCacheSecret";
+    public static final String INVALIDATION_PORT = "invalidationPort";
+    public static final String INVALIDATION_PEERS = "invalidationPeers";
+    public static final String INVALIDATION_BIND_ADDRESS = "invalidationBindAddress";
+    public static final String INVALIDATION_SECRET = "invalidationSecret";
+    public static final String ROLES_CACHE_EVICTION_POLICY = "rolesCacheEvictionPolicy";
+    public static final String ROLES_CACHE_BUDGET = "rolesCacheBudget";
+    public static final String ROLES_CACHE_CONCURRENCY_LEVEL = "rolesCacheConcurrencyLevel";
 
     private static final String[] ALL_VALID_OPTIONS = {
             AUTH_ROLE_NAME, SERVER, PORT, SEARCH_BASE, BIND_DN, BIND_PWD, USE_SSL,
             TRUST_STORE, TRUST_STORE_PASSWORD, POOL_SIZE, POOL_MAX_CONNECTION_AGE_MS,
             CONNECTION_TIMEOUT_MS,RESPONSE_TIMEOUT_MS,DEBUG,KEEP_ALIVE,
-            ROLES_CACHE_EXPIRY_MS, ENVIRONMENT, ALL_ACCESS_OU, RETRY_INTERVAL_SECONDS};
+            ROLES_CACHE_EXPIRY_MS, ENVIRONMENT, ALL_ACCESS_OU, RETRY_INTERVAL_SECONDS,
+            SEARCH_BATCH_SIZE, BATCH_WINDOW_MS, MAX_BATCH_SIZE, ROLES_CACHE_REFRESH_MS,
+            MAX_RETRY_INTERVAL_SECONDS, SERVERS, SERVER_SELECTION_STRATEGY, HEALTH_CHECK_INTERVAL_MS,
+            HEDGE_DELAY_PERCENTILE, CIRCUIT_BREAKER_FAILURE_RATE, CIRCUIT_BREAKER_SLOW_CALL_MS,
+            CIRCUIT_BREAKER_OPEN_MS, ROLES_LOOKUP_BUDGET_MS, NESTED_GROUPS, NESTED_GROUP_CACHE_EXPIRY_MS,
+            PRELOAD_INTERVAL_MS, PRELOAD_PAGE_SIZE, CHANGE_NOTIFICATIONS,
+            CHANGE_POLL_INTERVAL_MS, ROLES_CACHE_REVALIDATE, CHANGE_MARKER_ATTRIBUTE,
+            USER_ATTRIBUTE, MEMBERSHIP_ATTRIBUTE, USER_FILTER, RETURNED_ATTRIBUTES, SEARCH_SCOPE, SEARCH_SIZE_LIMIT,
+            SEARCH_TIME_LIMIT_SECONDS, FALLBACK_STORE_FILE, FALLBACK_STORE_MAX_SIZE,
+            SHARED_CACHE_SERVER, SHARED_CACHE_SECRET, INVALIDATION_PORT, INVALIDATION_PEERS, INVALIDATION_BIND_ADDRESS,
+            INVALIDATION_SECRET, ROLES_CACHE_EVICTION_POLICY, ROLES_CACHE_BUDGET, ROLES_CACHE_CONCURRENCY_LEVEL};
 
     public static final String UID = "uid";
     public static final String CN = "cn";
 
     private static volatile Environment environment;
     private static volatile RolesProvider rolesProvider = null;
+    private static volatile DirectoryChangeListener directoryChangeListener = null;
+    private static volatile DirectoryChangePoller directoryChangePoller = null;
+    private static volatile InvalidationChannel invalidationChannel = null;
+    private static volatile RolesCache rolesCache = null;
+
+    /**
+     * @return the channel to invalidate roles on all nodes with, null if not configured (see
+     * {@link #INVALIDATION_PORT}) or not initialized yet
+     */
+    public static InvalidationChannel getInvalidationChannel() {
+        return invalidationChannel;
+    }
+
+    /**
+     * @return statistics of the roles cache, to tune {@link #ROLES_CACHE_BUDGET} with. Null if
+     * not initialized yet.
+     */
+    public static RolesCacheStats getRolesCacheStats() {
+        RolesCache cache = rolesCache;
+        return cache != null ? cache.getStats() : null;
+    }
 
     @Override
     public void initialize(Subject subject, CallbackHandler callbackHandler, Map<String, ?> sharedState, Map<String, ?> options) {
@@ -89,13 +180,17 @@ public class CertLdapLoginModule extends BaseCertLoginModule {
         if (rolesProvider == null) {
             synchronized(LdapRolesProvider.class) {
                 if (rolesProvider == null) {
+                    // every option is parsed and checked before anything is started, so that a bad one
+                    // leaves no threads, connections or files behind
                     String env = (String) options.get(ENVIRONMENT);
                     String allAccessOu = (String) options.get(ALL_ACCESS_OU);
-                    environment = new Environment(env, allAccessOu);
+                    Environment newEnvironment = new Environment(env, allAccessOu);
 
                     LdapConfiguration ldapConf = new LdapConfiguration();
                     ldapConf.server((String) options.get(SERVER));
-                    ldapConf.port(Integer.parseInt((String) options.get(PORT)));
+                    if (options.containsKey(PORT)) {
+                        ldapConf.port(Integer.parseInt((String) options.get(PORT)));
+                    }
                     String searchBase = (String) options.get(SEARCH_BASE);
                     ldapConf.bindDn((String) options.get(BIND_DN));
                     ldapConf.bindDNPwd((String) options.get(BIND_PWD));
@@ -105,6 +200,20 @@ public class CertLdapLoginModule extends BaseCertLoginModule {
                     ldapConf.poolSize(Integer.parseInt((String) options.get(POOL_SIZE)));
 
                     // optional configurations
+                    if (options.containsKey(SERVERS)) {
+                        // comma separated host[:port] list, replaces ldapServer
+                        ldapConf.servers(Arrays.asList(StringUtils.split((String) options.get(SERVERS), ", ")));
+                    }
+                    if (options.containsKey(SERVER_SELECTION_STRATEGY)) {
+                        ldapConf.serverSelectionStrategy(ServerSelectionStrategy.valueOf(
+                                StringUtils.upperCase(StringUtils.trim((String) options.get(SERVER_SELECTION_STRATEGY)))));
+                    }
+                    if (options.containsKey(HEALTH_CHECK_INTERVAL_MS)) {
+                        ldapConf.healthCheckIntervalMS(Integer.parseInt((String) options.get(HEALTH_CHECK_INTERVAL_MS)));
+                    }
+                    if (options.containsKey(HEDGE_DELAY_PERCENTILE)) {
+                        ldapConf.hedgeDelayPercentile(Double.parseDouble((String) options.get(HEDGE_DELAY_PERCENTILE)));
+                    }
                     if (options.containsKey(CONNECTION_TIMEOUT_MS)) {
                         ldapConf.connectionTimeoutMS(Integer.parseInt((String)options.get(CONNECTION_TIMEOUT_MS)));
                     }
@@ -117,24 +226,284 @@ public class CertLdapLoginModule extends BaseCertLoginModule {
                     if (options.containsKey(KEEP_ALIVE)) {
                         ldapConf.keepAlive(Boolean.parseBoolean((String)options.get(KEEP_ALIVE)));
                     }
+                    if (options.containsKey(NESTED_GROUPS)) {
+                        ldapConf.nestedGroups(Boolean.parseBoolean((String)options.get(NESTED_GROUPS)));
+                    }
+                    if (options.containsKey(NESTED_GROUP_CACHE_EXPIRY_MS)) {
+                        ldapConf.nestedGroupCacheExpiryMS(Integer.parseInt((String)options.get(NESTED_GROUP_CACHE_EXPIRY_MS)));
+                    }
+                    if (options.containsKey(USER_ATTRIBUTE)) {
+                        ldapConf.userAttribute((String) options.get(USER_ATTRIBUTE));
+                    }
+                    if (options.containsKey(MEMBERSHIP_ATTRIBUTE)) {
+                        ldapConf.membershipAttribute((String) options.get(MEMBERSHIP_ATTRIBUTE));
+                    }
+                    if (options.containsKey(USER_FILTER)) {
+                        // {0} is replaced with the escaped user name
+                        ldapConf.userFilter((String) options.get(USER_FILTER));
+                    }
+                    if (options.containsKey(RETURNED_ATTRIBUTES)) {
+                        // comma separated attribute names
+                        ldapConf.returnedAttributes(Arrays.asList(StringUtils.split((String) options.get(RETURNED_ATTRIBUTES), ", ")));
+                    }
+                    if (options.containsKey(SEARCH_SCOPE)) {
+                        ldapConf.searchScope(parseSearchScope((String) options.get(SEARCH_SCOPE)));
+                    }
+                    if (options.containsKey(SEARCH_SIZE_LIMIT)) {
+                        ldapConf.searchSizeLimit(Integer.parseInt((String) options.get(SEARCH_SIZE_LIMIT)));
+                    }
+                    if (options.containsKey(SEARCH_TIME_LIMIT_SECONDS)) {
+                        ldapConf.searchTimeLimitSeconds(Integer.parseInt((String) options.get(SEARCH_TIME_LIMIT_SECONDS)));
+                    }
+                    if (options.containsKey(CHANGE_MARKER_ATTRIBUTE)) {
+                        ldapConf.changeMarkerAttribute((String) options.get(CHANGE_MARKER_ATTRIBUTE));
+                    }
                     if (options.containsKey(POOL_MAX_CONNECTION_AGE_MS)) {
                         ldapConf.poolMaxConnectionAgeMS(Integer.parseInt((String)options.get(POOL_MAX_CONNECTION_AGE_MS)));
                     }
                     if (options.containsKey(RETRY_INTERVAL_SECONDS)) {
                         ldapConf.retryIntervalSeconds(Integer.parseInt((String) options.get(RETRY_INTERVAL_SECONDS)));
                     }
+                    if (options.containsKey(MAX_RETRY_INTERVAL_SECONDS)) {
+                        ldapConf.maxRetryIntervalSeconds(Integer.parseInt((String) options.get(MAX_RETRY_INTERVAL_SECONDS)));
+                    }
+                    if (options.containsKey(SEARCH_BATCH_SIZE)) {
+                        ldapConf.searchBatchSize(Integer.parseInt((String) options.get(SEARCH_BATCH_SIZE)));
+                    }
 
                     int rolesCacheExpiry = 5*60*1000; // default 5 minutes
                     if (options.containsKey(ROLES_CACHE_EXPIRY_MS)) {
                         rolesCacheExpiry = Integer.parseInt((String)options.get(ROLES_CACHE_EXPIRY_MS));
                     }
+                    int rolesCacheRefresh = 0; // default no refresh ahead of expiry
+                    if (options.containsKey(ROLES_CACHE_REFRESH_MS)) {
+                        rolesCacheRefresh = Integer.parseInt((String)options.get(ROLES_CACHE_REFRESH_MS));
+                    }
+                    boolean rolesCacheRevalidate = false; // default look up expired roles again
+                    if (options.containsKey(ROLES_CACHE_REVALIDATE)) {
+                        rolesCacheRevalidate = Boolean.parseBoolean((String)options.get(ROLES_CACHE_REVALIDATE));
+                    }
+                    RolesCache.EvictionPolicy rolesCacheEvictionPolicy = RolesCache.EvictionPolicy.ENTRIES;
+                    if (options.containsKey(ROLES_CACHE_EVICTION_POLICY)) {
+                        // entries or weight
+                        rolesCacheEvictionPolicy = RolesCache.EvictionPolicy.valueOf(
+                                StringUtils.upperCase(StringUtils.trim((String) options.get(ROLES_CACHE_EVICTION_POLICY))));
+                    }
+                    // default 500 entries, or 1MB when weighed
+                    long rolesCacheBudget = rolesCacheEvictionPolicy == RolesCache.EvictionPolicy.WEIGHT
+                            ? RolesCache.maximumWeight : RolesCache.maximumSize;
+                    if (options.containsKey(ROLES_CACHE_BUDGET)) {
+                        rolesCacheBudget = Long.parseLong((String) options.get(ROLES_CACHE_BUDGET));
+                    }
+                    int rolesCacheConcurrencyLevel = RolesCache.concurrencyLevel;
+                    if (options.containsKey(ROLES_CACHE_CONCURRENCY_LEVEL)) {
+                        rolesCacheConcurrencyLevel = Integer.parseInt((String) options.get(ROLES_CACHE_CONCURRENCY_LEVEL));
+                    }
+
+                    int preloadPageSize = PreloadedRolesProvider.DEFAULT_PAGE_SIZE;
+                    if (options.containsKey(PRELOAD_PAGE_SIZE)) {
+                        preloadPageSize = Integer.parseInt((String) options.get(PRELOAD_PAGE_SIZE));
+                    }
+                    long preloadInterval = 0;
+                    if (options.containsKey(PRELOAD_INTERVAL_MS)) {
+                        preloadInterval = Long.parseLong((String) options.get(PRELOAD_INTERVAL_MS));
+                    }
+
+                    String sharedCacheHost = null;
+                    int sharedCachePort = 0;
+                    byte[] sharedCacheSecret = null;
+                    if (options.containsKey(SHARED_CACHE_SERVER)) {
+                        String sharedCacheServer = StringUtils.trim((String) options.get(SHARED_CACHE_SERVER));
+                        int portSeparator = sharedCacheServer.lastIndexOf(':');
+                        if (portSeparator < 0) {
+                            throw new IllegalArgumentException(SHARED_CACHE_SERVER + " must be host:port, was " + sharedCacheServer);
+                        }
+                        if (!options.containsKey(SHARED_CACHE_SECRET)) {
+                            throw new IllegalArgumentException(SHARED_CACHE_SECRET + " must be set with " + SHARED_CACHE_SERVER);
+                        }
+                        sharedCacheHost = sharedCacheServer.substring(0, portSeparator);
+                        sharedCachePort = Integer.parseInt(sharedCacheServer.substring(portSeparator + 1));
+                        sharedCacheSecret = ((String) options.get(SHARED_CACHE_SECRET)).getBytes(StandardCharsets.UTF_8);
+                    }
+
+                    long batchWindow = 0;
+                    if (options.containsKey(BATCH_WINDOW_MS)) {
+                        batchWindow = Long.parseLong((String) options.get(BATCH_WINDOW_MS));
+                    }
+                    int maxBatchSize = ldapConf.getSearchBatchSize();
+                    if (options.containsKey(MAX_BATCH_SIZE)) {
+                        maxBatchSize = Integer.parseInt((String) options.get(MAX_BATCH_SIZE));
+                    }
+
+                    // optional circuit breaker, enabled by setting any of its options
+                    CircuitBreaker circuitBreaker = null;
+                    if (options.containsKey(CIRCUIT_BREAKER_FAILURE_RATE) || options.containsKey(CIRCUIT_BREAKER_SLOW_CALL_MS)
+                            || options.containsKey(CIRCUIT_BREAKER_OPEN_MS)) {
+                        double failureRate = CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD;
+                        if (options.containsKey(CIRCUIT_BREAKER_FAILURE_RATE)) {
+                            failureRate = Double.parseDouble((String) options.get(CIRCUIT_BREAKER_FAILURE_RATE));
+                        }
+                        long slowCallMS = CircuitBreaker.DEFAULT_SLOW_CALL_DURATION_MS;
+                        if (options.containsKey(CIRCUIT_BREAKER_SLOW_CALL_MS)) {
+                            slowCallMS = Long.parseLong((String) options.get(CIRCUIT_BREAKER_SLOW_CALL_MS));
+                        }
+                        long openMS = CircuitBreaker.DEFAULT_OPEN_DURATION_MS;
+                        if (options.containsKey(CIRCUIT_BREAKER_OPEN_MS)) {
+                            openMS = Long.parseLong((String) options.get(CIRCUIT_BREAKER_OPEN_MS));
+                        }
+                        circuitBreaker = new CircuitBreaker(failureRate, slowCallMS, openMS);
+                    }
+
+                    int fallbackStoreMaxSize = FallbackRolesStore.DEFAULT_MAX_SIZE;
+                    if (options.containsKey(FALLBACK_STORE_MAX_SIZE)) {
+                        fallbackStoreMaxSize = Integer.parseInt((String) options.get(FALLBACK_STORE_MAX_SIZE));
+                    }
 
-                    rolesProvider = new CachedRolesProvider(new LdapRolesProvider(searchBase, ldapConf, false), new RolesCache(rolesCacheExpiry));
+                    // invalidate or update, from a persistent search, or from polling modifyTimestamp if a
+                    // poll interval is set
+                    boolean changes = options.containsKey(CHANGE_NOTIFICATIONS) || options.containsKey(CHANGE_POLL_INTERVAL_MS);
+                    String mode = "invalidate";
+                    if (options.containsKey(CHANGE_NOTIFICATIONS)) {
+                        mode = StringUtils.trim((String) options.get(CHANGE_NOTIFICATIONS));
+                    }
+                    if (!"invalidate".equalsIgnoreCase(mode) && !"update".equalsIgnoreCase(mode)) {
+                        throw new IllegalArgumentException(CHANGE_NOTIFICATIONS + " must be invalidate or update, was " + mode);
+                    }
+                    boolean updateInPlace = "update".equalsIgnoreCase(mode);
+                    long changePollInterval = 0;
+                    if (options.containsKey(CHANGE_POLL_INTERVAL_MS)) {
+                        changePollInterval = Long.parseLong((String) options.get(CHANGE_POLL_INTERVAL_MS));
+                    }
+
+                    // sent to a comma separated host:port list, received on the given interface only, and
+                    // signed with the secret if any
+                    InetSocketAddress invalidationAddress = null;
+                    List<InetSocketAddress> invalidationPeers = new ArrayList<>();
+                    byte[] invalidationSecret = null;
+                    if (options.containsKey(INVALIDATION_PORT)) {
+                        if (!options.containsKey(INVALIDATION_BIND_ADDRESS)) {
+                            throw new IllegalArgumentException(INVALIDATION_BIND_ADDRESS + " must be set with "
+                                    + INVALIDATION_PORT);
+                        }
+                        invalidationAddress = new InetSocketAddress((String) options.get(INVALIDATION_BIND_ADDRESS),
+                                Integer.parseInt((String) options.get(INVALIDATION_PORT)));
+                        if (options.containsKey(INVALIDATION_PEERS)) {
+                            for (String peer : StringUtils.split((String) options.get(INVALIDATION_PEERS), ", ")) {
+                                int portSeparator = peer.lastIndexOf(':');
+                                if (portSeparator < 0) {
+                                    throw new IllegalArgumentException(INVALIDATION_PEERS + " must be host:port, was " + peer);
+                                }
+                                invalidationPeers.add(new InetSocketAddress(peer.substring(0, portSeparator),
+                                        Integer.parseInt(peer.substring(portSeparator + 1))));
+                            }
+                        }
+                        if (options.containsKey(INVALIDATION_SECRET)) {
+                            invalidationSecret = ((String) options.get(INVALIDATION_SECRET)).getBytes(StandardCharsets.UTF_8);
+                        }
+                    }
+
+                    // closed in reverse if a later one fails to start, or the next login would leak
+                    // them again
+                    Deque<AutoCloseable> started = new ArrayDeque<>();
+                    try {
+                        LdapRolesProvider directoryRolesProvider = new LdapRolesProvider(searchBase, ldapConf, false);
+                        started.push(directoryRolesProvider::close);
+                        RolesProvider ldapRolesProvider = directoryRolesProvider;
+
+                        // optional in-memory index of all users, refreshed in the background
+                        if (options.containsKey(PRELOAD_INTERVAL_MS)) {
+                            PreloadedRolesProvider preloadedRolesProvider = new PreloadedRolesProvider(directoryRolesProvider,
+                                    preloadInterval, preloadPageSize, true);
+                            started.push(preloadedRolesProvider::close);
+                            ldapRolesProvider = preloadedRolesProvider;
+                        }
+
+                        // optional memcached shared by all nodes, asked before ldap
+                        SharedCacheRolesProvider sharedCacheRolesProvider = null;
+                        if (sharedCacheHost != null) {
+                            MemcachedRolesCache memcachedRolesCache = new MemcachedRolesCache(sharedCacheHost, sharedCachePort,
+                                    Math.max(1, rolesCacheExpiry / 1000), sharedCacheSecret);
+                            started.push(memcachedRolesCache);
+                            sharedCacheRolesProvider = new SharedCacheRolesProvider(ldapRolesProvider, memcachedRolesCache);
+                            started.push(sharedCacheRolesProvider);
+                            ldapRolesProvider = sharedCacheRolesProvider;
+                        }
+
+                        // optional coalescing of concurrent cache misses into bulk searches
+                        if (options.containsKey(BATCH_WINDOW_MS)) {
+                            BatchingRolesProvider batchingRolesProvider = new BatchingRolesProvider(ldapRolesProvider,
+                                    batchWindow, maxBatchSize);
+                            started.push(batchingRolesProvider::close);
+                            ldapRolesProvider = batchingRolesProvider;
+                        }
+
+                        // optional fallback roles on disk, surviving restarts
+                        FallbackRolesStore fallbackStore = null;
+                        if (options.containsKey(FALLBACK_STORE_FILE)) {
+                            fallbackStore = new FallbackRolesStore(Paths.get((String) options.get(FALLBACK_STORE_FILE)),
+                                    fallbackStoreMaxSize, FallbackRolesStore.DEFAULT_SYNC_INTERVAL_MS);
+                            started.push(fallbackStore);
+                        }
+
+                        RolesCache newRolesCache = new RolesCache(rolesCacheExpiry, rolesCacheRefresh, rolesCacheRevalidate,
+                                fallbackStore, rolesCacheEvictionPolicy, rolesCacheBudget, rolesCacheConcurrencyLevel);
+
+                        // optional push of directory changes into the cache
+                        DirectoryChangePoller newDirectoryChangePoller = null;
+                        DirectoryChangeListener newDirectoryChangeListener = null;
+                        if (options.containsKey(CHANGE_POLL_INTERVAL_MS)) {
+                            newDirectoryChangePoller = new DirectoryChangePoller(directoryRolesProvider, newRolesCache,
+                                    sharedCacheRolesProvider, updateInPlace, changePollInterval);
+                            started.push(newDirectoryChangePoller::close);
+                        } else if (changes) {
+                            newDirectoryChangeListener = new DirectoryChangeListener(directoryRolesProvider, newRolesCache,
+                                    sharedCacheRolesProvider, updateInPlace, ldapConf.getRetryIntervalSeconds() * 1000L);
+                            started.push(newDirectoryChangeListener::close);
+                        }
+
+                        // optional invalidation of roles on all nodes
+                        InvalidationChannel newInvalidationChannel = null;
+                        if (invalidationAddress != null) {
+                            newInvalidationChannel = new InvalidationChannel(newRolesCache, sharedCacheRolesProvider,
+                                    new TcpInvalidationTransport(invalidationAddress, invalidationPeers, invalidationSecret,
+                                            TcpInvalidationTransport.DEFAULT_TIMEOUT_MS),
+                                    InvalidationChannel.DEFAULT_BATCH_WINDOW_MS, InvalidationChannel.DEFAULT_MAX_BATCH_SIZE);
+                            started.push(newInvalidationChannel);
+                        }
+
+                        environment = newEnvironment;
+                        rolesCache = newRolesCache;
+                        directoryChangePoller = newDirectoryChangePoller;
+                        directoryChangeListener = newDirectoryChangeListener;
+                        invalidationChannel = newInvalidationChannel;
+                        rolesProvider = new CachedRolesProvider(ldapRolesProvider, newRolesCache, circuitBreaker);
+                    } catch (Throwable t) {
+                        while (!started.isEmpty()) {
+                            try {
+                                started.pop().close();
+                            } catch (Exception closeError) {
+                                LOGGER.warn("Failed to close roles provider component after failed initialization", closeError);
+                            }
+                        }
+                        throw t;
+                    }
                 }
             }
         }
     }
 
+    /**
+     * @param name one of base, one, sub or subordinate_subtree, case insensitive
+     */
+    private static SearchScope parseSearchScope(String name) {
+        for (SearchScope searchScope : SearchScope.values()) {
+            if (searchScope.getName().equalsIgnoreCase(StringUtils.trim(name))) {
+                return searchScope;
+            }
+        }
+        throw new IllegalArgumentException(SEARCH_SCOPE + " must be one of base, one, sub or subordinate_subtree, was " + name);
+    }
+
     /* (non-Javadoc)
      * @see org.jboss.security.auth.spi.AbstractServerLoginModule#getRoleSets()
      */
@@ -162,7 +531,13 @@ public class CertLdapLoginModule extends BaseCertLoginModule {
 
             environment.validate(certPrincipal);
 
-            Collection<String> groupNames = rolesProvider.getUserRoles(searchName);
+            Collection<String> groupNames;
+            if (options.containsKey(ROLES_LOOKUP_BUDGET_MS)) {
+                long budgetMS = Long.parseLong((String) options.get(ROLES_LOOKUP_BUDGET_MS));
+                groupNames = rolesProvider.getUserRoles(searchName, Instant.now().plusMillis(budgetMS));
+            } else {
+                groupNames = rolesProvider.getUserRoles(searchName);
+            }
 
             p = super.createIdentity(roleName);
 
@@ -1,5 +1,7 @@
 package org.esbtools.auth.spring;
 
+import java.time.Instant;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.esbtools.auth.ldap.LdapConfiguration;
@@ -23,6 +25,11 @@ public class LdapUserDetailsService implements UserDetailsService, Authenticatio
 
     private final RolesProvider rolesProvider;
 
+    /**
+     * Time allowed for a roles lookup, 0 for no limit other than the ldap timeouts.
+     */
+    private final long rolesLookupBudgetMS;
+
     public LdapUserDetailsService(String searchBase, LdapConfiguration ldapConfiguration, int rolesCacheExpiryMS) throws Exception {
       this(new LdapRolesProvider(searchBase, ldapConfiguration, false), rolesCacheExpiryMS);
     }
@@ -35,8 +42,33 @@ public class LdapUserDetailsService implements UserDetailsService, Authenticatio
       this(new CachedRolesProvider(rolesProvider, new RolesCache(rolesCacheExpiryMS)));
     }
 
+    public LdapUserDetailsService(String searchBase, LdapConfiguration ldapConfiguration, int rolesCacheExpiryMS,
+        long rolesLookupBudgetMS) throws Exception {
+      this(new CachedRolesProvider(new LdapRolesProvider(searchBase, ldapConfiguration, false),
+          new RolesCache(rolesCacheExpiryMS)), rolesLookupBudgetMS);
+    }
+
+    /**
+     * @param rolesCache configured with the budget and eviction policy fitting the user
+     * population, see {@link RolesCache#getStats()}
+     */
+    public LdapUserDetailsService(String searchBase, LdapConfiguration ldapConfiguration, RolesCache rolesCache,
+        long rolesLookupBudgetMS) throws Exception {
+      this(new CachedRolesProvider(new LdapRolesProvider(searchBase, ldapConfiguration, false), rolesCache),
+          rolesLookupBudgetMS);
+    }
+
     public LdapUserDetailsService(RolesProvider rolesProvider) {
+        this(rolesProvider, 0);
+    }
+
+    /**
+     * @param rolesLookupBudgetMS time allowed for each roles lookup (see
+     * {@link RolesProvider#getUserRoles(String, Instant)}), 0 for no limit
+     */
+    public LdapUserDetailsService(RolesProvider rolesProvider, long rolesLookupBudgetMS) {
         this.rolesProvider = rolesProvider;
+        this.rolesLookupBudgetMS = rolesLookupBudgetMS;
     }
 
     @Override
@@ -52,7 +84,7 @@ public class LdapUserDetailsService implements UserDetailsService, Authenticatio
             return new User(
                     username,
                     "no-password",
-                    rolesProvider.getUserRoles(username).stream()
+                    getUserRoles(username).stream()
                             .map(n -> new SimpleGrantedAuthority(n))
                             .collect(Collectors.toList())
                     );
@@ -64,4 +96,11 @@ public class LdapUserDetailsService implements UserDetailsService, Authenticatio
         }
     }
 
+    private Set<String> getUserRoles(String username) throws Exception {
+        if (rolesLookupBudgetMS > 0) {
+            return rolesProvider.getUserRoles(username, Instant.now().plusMillis(rolesLookupBudgetMS));
+        }
+        return rolesProvider.getUserRoles(username);
+    }
+
 }
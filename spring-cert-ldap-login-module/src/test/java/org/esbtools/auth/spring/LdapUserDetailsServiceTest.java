@@ -3,11 +3,13 @@ package org.esbtools.auth.spring;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.time.Instant;
 import java.util.Collections;
 import java.util.HashSet;
 
@@ -66,6 +68,20 @@ public class LdapUserDetailsServiceTest {
         verify(rolesProvider, times(1)).getUserRoles(anyString());
     }
 
+    @Test
+    public void testLoadUserByUsername_WithBudget() throws Exception {
+        when(rolesProvider.getUserRoles(anyString(), any(Instant.class))).thenReturn(
+                Collections.singleton("laser"));
+
+        UserDetails details = new LdapUserDetailsService(rolesProvider, 200)
+                .loadUserByUsername("johnny5");
+
+        assertEquals(1, details.getAuthorities().size());
+
+        verify(rolesProvider, times(1)).getUserRoles(anyString(), any(Instant.class));
+        verify(rolesProvider, times(0)).getUserRoles(anyString());
+    }
+
     @Test(expected = UsernameNotFoundException.class)
     public void testLoadUserByUsername_UsernameNotFound() throws Exception {
         when(rolesProvider.getUserRoles(anyString())).thenThrow(